@@ -0,0 +1,199 @@
+package au.edu.unimelb.plantcell.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
+import au.edu.unimelb.plantcell.seqdb.BgzfBlockCache;
+import au.edu.unimelb.plantcell.seqdb.FastaFileCatalog;
+import au.edu.unimelb.plantcell.seqdb.FastaOffsetIndex;
+import au.edu.unimelb.plantcell.seqdb.FastaPersistor;
+import au.edu.unimelb.plantcell.seqdb.FastaRegionPool;
+import au.edu.unimelb.plantcell.seqdb.SequenceReferenceLoader;
+
+/**
+ * Generates Oases-style transcript fasta files and ingests them into the embedded benchmark database, as <code>populateDatabase</code>
+ * does for the real datasets (including the sidecar index). There are two samples: <code>SMAL</code> has many short records and
+ * <code>LARG</code> has fewer, long records. Each locus has two transcripts, so a partial ID (<code>Locus_n_Transcript_</code>) matches two records.
+ *
+ * The files are written to <code>onekp.bench.dir</code> (default: a directory in <code>java.io.tmpdir</code>) and are re-used if present.
+ * The database is in memory, so is populated once per JVM (ie. per JMH fork).
+ *
+ * @author acassin
+ *
+ */
+public class BenchmarkDataset {
+	private final static Logger logger = Logger.getLogger("BenchmarkDataset");
+
+	public final static String SMALL_SAMPLE = "SMAL";
+	public final static String LARGE_SAMPLE = "LARG";
+
+	private final static int SMALL_LOCI  = 10000;
+	private final static int SMALL_BASES = 300;
+	private final static int LARGE_LOCI  = 100;
+	private final static int LARGE_BASES = 100000;
+
+	private static BenchmarkDataset singleton;
+
+	private boolean warned_page_cache;
+
+	private final BenchmarkService service;
+	private final File small_file, large_file;
+
+	private BenchmarkDataset() throws Exception {
+		// the services log every query at INFO, which would dominate the measurements
+		Logger.getLogger("").setLevel(Level.WARNING);
+		System.setProperty("onekp.ingest.gzip", "false");
+		File dir = new File(System.getProperty("onekp.bench.dir", new File(System.getProperty("java.io.tmpdir"), "onekp-bench").getAbsolutePath()));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create "+dir.getAbsolutePath());
+		}
+		System.setProperty("derby.stream.error.file", new File(dir, "derby.log").getAbsolutePath());
+		small_file = generate(new File(dir, SMALL_SAMPLE+".fa"), SMALL_LOCI, SMALL_BASES);
+		large_file = generate(new File(dir, LARGE_SAMPLE+".fa"), LARGE_LOCI, LARGE_BASES);
+		service = new BenchmarkService(new DatasetDesignation("k39", "benchmark dataset"));
+		populate();
+	}
+
+	public static synchronized BenchmarkDataset getInstance() throws Exception {
+		if (singleton == null) {
+			singleton = new BenchmarkDataset();
+		}
+		return singleton;
+	}
+
+	public BenchmarkService getService() {
+		return service;
+	}
+
+	public String getSampleID(final boolean large) {
+		return large ? LARGE_SAMPLE : SMALL_SAMPLE;
+	}
+
+	public File getFastaFile(final boolean large) {
+		return large ? large_file : small_file;
+	}
+
+	public int getLociCount(final boolean large) {
+		return large ? LARGE_LOCI : SMALL_LOCI;
+	}
+
+	/**
+	 * Returns the database ID of the specified transcript (one-based, as Oases numbers them)
+	 */
+	public static String getSequenceID(final int locus, final int transcript, final int length) {
+		return "Locus_"+locus+"_Transcript_"+transcript+"/2_Confidence_1.000_Length_"+length;
+	}
+
+	public static String getPartialID(final int locus) {
+		return "Locus_"+locus+"_Transcript_";
+	}
+
+	private static File generate(final File f, final int n_loci, final int n_bases) throws IOException {
+		if (f.exists() && f.length() > (long) n_loci * 2 * n_bases) {
+			return f;
+		}
+		logger.warning("Generating "+f.getAbsolutePath());
+		final char[] acgt = new char[] { 'A', 'C', 'G', 'T' };
+		Random r = new Random(n_loci);
+		PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(f), 1024 * 1024));
+		try {
+			char[] line = new char[60];
+			for (int locus=1; locus<=n_loci; locus++) {
+				for (int transcript=1; transcript<=2; transcript++) {
+					pw.print('>');
+					pw.println(getSequenceID(locus, transcript, n_bases));
+					for (int done=0; done<n_bases; done += line.length) {
+						int n = Math.min(line.length, n_bases - done);
+						for (int i=0; i<n; i++) {
+							line[i] = acgt[r.nextInt(4)];
+						}
+						pw.write(line, 0, n);
+						pw.print('\n');
+					}
+				}
+			}
+		} finally {
+			pw.close();
+		}
+		return f;
+	}
+
+	/**
+	 * Persists the fasta files and their sequence references. The references are streamed into the table by a {@link SequenceReferenceLoader},
+	 * which inserts them in batches since the embedded database does not support <code>load data local infile</code>.
+	 */
+	private void populate() throws Exception {
+		EntityManager em = service.getEntityManager();
+		SequenceReferenceLoader loader = SequenceReferenceLoader.start(em, service.getDesignation(), logger);
+		try {
+			List<FastaFile> files = new ArrayList<FastaFile>();
+			for (File f : new File[] { small_file, large_file }) {
+				files.add(new FastaFile(f));
+			}
+			new FastaPersistor(files, SequenceType.RNA, logger, loader.getWriter()).populateDatabase(em, service.getDesignation());
+		} catch (Exception e) {
+			loader.abort(e);
+			throw e;
+		} finally {
+			service.endRequest();
+		}
+		int n = loader.finish();
+		logger.warning("Loaded "+n+" sequence references into "+service.getDesignation().getSeqRefTable());
+	}
+
+	/**
+	 * Hides (or restores) the sidecar index of each fasta file, so that sequences are located via the SEQREF table (or the index)
+	 */
+	public void useSidecarIndex(final boolean use_index) throws IOException {
+		for (File f : new File[] { small_file, large_file }) {
+			File idx = FastaOffsetIndex.getIndexFile(f);
+			File hidden = new File(idx.getAbsolutePath()+".hidden");
+			File from = use_index ? hidden : idx;
+			File to   = use_index ? idx : hidden;
+			if (from.exists() && !from.renameTo(to)) {
+				throw new IOException("Unable to rename "+from.getAbsolutePath());
+			}
+		}
+		FastaOffsetIndex.clearCache();
+	}
+
+	/**
+	 * Discards everything cached about the fasta files: the catalog, sidecar indexes and mapped regions held by this JVM and, if permitted
+	 * (ie. when run as root on Linux), the operating system's page cache. The embedded database is in memory so is unaffected.
+	 */
+	public synchronized void dropCaches() {
+		FastaFileCatalog.invalidate();
+		FastaOffsetIndex.clearCache();
+		FastaRegionPool.getInstance().clear();
+		BgzfBlockCache.getInstance().clear();
+		File drop_caches = new File("/proc/sys/vm/drop_caches");
+		try {
+			Process p = new ProcessBuilder("sync").start();
+			p.waitFor();
+			FileWriter fw = new FileWriter(drop_caches);
+			try {
+				fw.write("1\n");
+			} finally {
+				fw.close();
+			}
+		} catch (Exception e) {
+			if (!warned_page_cache) {
+				logger.warning("Unable to drop the page cache (so fasta files may still be cached by the OS): "+e.getMessage());
+				warned_page_cache = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package au.edu.unimelb.plantcell.bench;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
+import au.edu.unimelb.plantcell.services.impl.DummyOneKPService;
+
+/**
+ * A service for the benchmark dataset, backed by the embedded <code>seqdb_bench</code> persistence unit rather than
+ * a container-managed one. As in the container, each thread has its own entity manager, which {@link #endRequest()} closes.
+ *
+ * @author acassin
+ *
+ */
+public class BenchmarkService extends DummyOneKPService {
+	private static EntityManagerFactory emf;
+
+	private final DatasetDesignation dsd;
+
+	public BenchmarkService(final DatasetDesignation dsd) {
+		assert(dsd != null);
+		this.dsd = dsd;
+	}
+
+	@Override
+	public DatasetDesignation getDesignation() {
+		return dsd;
+	}
+
+	@Override
+	public EntityManagerFactory getEntityManagerFactory() {
+		synchronized (BenchmarkService.class) {
+			if (emf == null) {
+				emf = Persistence.createEntityManagerFactory("seqdb_bench");
+			}
+			return emf;
+		}
+	}
+
+	/**
+	 * Releases the current thread's entity manager, as is done once a request completes
+	 */
+	public void endRequest() {
+		releaseEntityManager();
+	}
+}
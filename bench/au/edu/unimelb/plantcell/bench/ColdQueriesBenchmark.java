@@ -0,0 +1,31 @@
+package au.edu.unimelb.plantcell.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read path benchmarks of {@link QueriesBenchmark}, each timed as a single request after all caches of the fasta files have been
+ * dropped (see {@link BenchmarkDataset#dropCaches()}), as for the first request for a sample after a restart or a long idle period.
+ * The operating system's page cache can only be dropped when run as root.
+ *
+ * @author acassin
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 30, batchSize = 1)
+public class ColdQueriesBenchmark extends QueriesBenchmark {
+
+	@Setup(Level.Iteration)
+	public void dropCaches() {
+		dataset.dropCaches();
+	}
+}
@@ -0,0 +1,14 @@
+package au.edu.unimelb.plantcell.bench;
+
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * The read path benchmarks of {@link QueriesBenchmark}, with eight threads making requests at once (as for the lookup pool of the
+ * services), so that contention for the catalog, the mapped region pool and the entity manager factory is measured.
+ *
+ * @author acassin
+ *
+ */
+@Threads(8)
+public class ContendedQueriesBenchmark extends QueriesBenchmark {
+}
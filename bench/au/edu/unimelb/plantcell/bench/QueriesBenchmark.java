@@ -0,0 +1,194 @@
+package au.edu.unimelb.plantcell.bench;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReferenceInterface;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
+import au.edu.unimelb.plantcell.seqdb.Queries;
+import au.edu.unimelb.plantcell.services.impl.ByteSequenceCallback;
+
+/**
+ * Measures the read path used by the sequence services (<code>Queries.findFastaFile()</code>, <code>getSingleSequence()</code>,
+ * <code>getSequencesByPartialID()</code> and <code>reportFastaEntries()</code>) against the embedded database and generated fasta files of
+ * {@link BenchmarkDataset}, for short and long records, with sequences located via the sidecar index or the SEQREF table. Each operation is one
+ * request: it ends by releasing the entity manager, as the services do. Single-threaded by default: see {@link ContendedQueriesBenchmark} for
+ * many threads and {@link ColdQueriesBenchmark} for a cold page cache.
+ *
+ * Run <code>main()</code> (or <code>org.openjdk.jmh.Main QueriesBenchmark -prof gc</code>), which reports the allocation rate (<code>gc.alloc.rate.norm</code>,
+ * bytes per operation) as well as the throughput. The <code>bench</code> source folder must be compiled with the JMH annotation processor and run with
+ * Derby and a JPA provider on the classpath (see <code>bench/META-INF/persistence.xml</code>).
+ *
+ * @author acassin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class QueriesBenchmark {
+	/**
+	 * <code>small</code>: 300bp records, <code>large</code>: 100kb records
+	 */
+	@Param({ "small", "large" })
+	public String records;
+
+	/**
+	 * <code>index</code>: sequences are located via the sidecar index, <code>database</code>: via the SEQREF table
+	 */
+	@Param({ "index", "database" })
+	public String lookup;
+
+	protected BenchmarkDataset dataset;
+	protected BenchmarkService service;
+	protected boolean large;
+	protected File fasta_file;
+	protected String sample_id;
+	protected int n_loci;
+	protected List<List<SequenceReferenceInterface>> resolved;		// for reportFastaEntries()
+
+	private final static int RESOLVED = 1024;
+
+	@Setup(Level.Trial)
+	public void setupDataset() throws Exception {
+		dataset = BenchmarkDataset.getInstance();
+		service = dataset.getService();
+		large = records.equals("large");
+		fasta_file = dataset.getFastaFile(large);
+		sample_id  = dataset.getSampleID(large);
+		n_loci     = dataset.getLociCount(large);
+		dataset.useSidecarIndex(lookup.equals("index"));
+		Queries q = new Queries(service);
+		resolved = new ArrayList<List<SequenceReferenceInterface>>(RESOLVED);
+		Cursor c = new Cursor();
+		for (int i=0; i<RESOLVED; i++) {
+			resolved.add(q.findSequenceReferences(fasta_file, nextSequenceID(c)));
+		}
+		service.endRequest();
+	}
+
+	@TearDown(Level.Trial)
+	public void restoreIndex() throws Exception {
+		dataset.useSidecarIndex(true);
+	}
+
+	/**
+	 * Per-thread choice of sequence, so that threads do not all request the same record
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			next = (int) (Thread.currentThread().getId() * 7919);
+		}
+
+		int nextLocus(final int n_loci) {
+			next = (next * 1103515245 + 12345) & 0x7fffffff;
+			return 1 + (next % n_loci);
+		}
+	}
+
+	private static class ConsumingCallback implements ByteSequenceCallback {
+		private final Blackhole bh;
+
+		ConsumingCallback(final Blackhole bh) {
+			this.bh = bh;
+		}
+
+		@Override
+		public void matchingSequence(final ByteBuffer record) {
+			bh.consume(record.get(record.limit() - 1));
+		}
+
+		@Override
+		public void matchingSequence(final String s) {
+			bh.consume(s);
+		}
+	}
+
+	private String nextSequenceID(final Cursor c) {
+		return BenchmarkDataset.getSequenceID(c.nextLocus(n_loci), 1, large ? 100000 : 300);
+	}
+
+	@Benchmark
+	public File findFastaFile() {
+		try {
+			return new Queries(service).findFastaFile(SequenceType.RNA, sample_id);
+		} finally {
+			service.endRequest();
+		}
+	}
+
+	@Benchmark
+	public void getSingleSequence(final Cursor c, final Blackhole bh) throws Exception {
+		try {
+			new Queries(service).getSingleSequence(fasta_file, new ConsumingCallback(bh), nextSequenceID(c));
+		} finally {
+			service.endRequest();
+		}
+	}
+
+	@Benchmark
+	public void getSequencesByPartialID(final Cursor c, final Blackhole bh) throws Exception {
+		try {
+			new Queries(service).getSequencesByPartialID(fasta_file, BenchmarkDataset.getPartialID(c.nextLocus(n_loci)), new ConsumingCallback(bh), SequenceType.RNA);
+		} finally {
+			service.endRequest();
+		}
+	}
+
+	/**
+	 * The file read alone: references are resolved beforehand, as <code>doGet()</code> does before the response is written
+	 */
+	@Benchmark
+	public void reportFastaEntries(final Cursor c, final Blackhole bh) throws Exception {
+		try {
+			new Queries(service).reportFastaEntries(resolved.get(c.nextLocus(RESOLVED) - 1), new ConsumingCallback(bh));
+		} finally {
+			service.endRequest();
+		}
+	}
+
+	/**
+	 * Runs all of the read path benchmarks with the gc profiler. If OpenJPA is the persistence provider, each benchmark JVM is
+	 * started with its javaagent, as TomEE does, so that the entities are enhanced.
+	 */
+	public static void main(final String[] args) throws Exception {
+		ChainedOptionsBuilder opts = new OptionsBuilder().include(".*QueriesBenchmark.*").addProfiler(GCProfiler.class);
+		try {
+			Class<?> enhancer = Class.forName("org.apache.openjpa.enhance.PCEnhancer");
+			opts = opts.jvmArgsAppend("-javaagent:"+new File(enhancer.getProtectionDomain().getCodeSource().getLocation().toURI()).getAbsolutePath());
+		} catch (ClassNotFoundException cnfe) {
+			// another provider eg. EclipseLink
+		}
+		new Runner(opts.build()).run();
+	}
+}
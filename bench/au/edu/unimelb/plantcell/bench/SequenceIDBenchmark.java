@@ -0,0 +1,143 @@
+package au.edu.unimelb.plantcell.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import au.edu.unimelb.plantcell.seqdb.SampleIDSet;
+import au.edu.unimelb.plantcell.seqdb.SequenceID;
+import au.edu.unimelb.plantcell.seqdb.SequenceID.Grammar;
+
+/**
+ * Compares the per-request ID handling done by the services before {@link SequenceID} (<code>String.matches()</code> to validate,
+ * <code>Pattern.compile()</code> to remove the ORF suffix and <code>substring()</code> for the sample ID) with the hand-written parser and
+ * known-sample bitset. Run with the gc profiler to see the allocation per request, eg.
+ * <pre>
+ * java -cp build/bench:build/classes:&lt;jmh jars&gt; org.openjdk.jmh.Main SequenceIDBenchmark -prof gc
+ * </pre>
+ * The <code>bench</code> source folder must be compiled with the JMH annotation processor (jmh-generator-annprocess) on the classpath.
+ *
+ * @author acassin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceIDBenchmark {
+	@Param({ "k25", "k25s", "oases", "oases_orf", "invalid" })
+	public String kind;
+
+	private String id;
+	private Grammar grammar;
+	private final SequenceID parsed = new SequenceID();
+	private final SampleIDSet known = new SampleIDSet();
+
+	@Setup
+	public void setup() {
+		if (kind.equals("k25")) {
+			id = "ABCD_20145";
+			grammar = Grammar.K25;
+		} else if (kind.equals("k25s")) {
+			id = "scaffold-ABCD-2014581-Tetraselmis_striata";
+			grammar = Grammar.SCAFFOLD;
+		} else if (kind.equals("oases")) {
+			id = "ABCD_Locus_1021_Transcript_4/7_Confidence_0.417_Length_1203";
+			grammar = Grammar.OASES;
+		} else if (kind.equals("oases_orf")) {
+			id = "ABCD_Locus_1021_Transcript_4/7_Confidence_0.417_Length_1203_2";
+			grammar = Grammar.OASES;
+		} else {
+			id = "ABCD_Locus_1021_Transcript_4/7_Confidence_0.417_Length_x";
+			grammar = Grammar.OASES;
+		}
+		for (String sample : new String[] { "ABCD", "BDCS", "WXYZ", "ZZZZ" }) {
+			known.add(sample);
+		}
+	}
+
+	/*
+	 * The previous implementation, as it was in OneKPSequenceService and its subclasses
+	 */
+	private final static Pattern OASES_ID_REGEX = Pattern.compile("^([A-Z]{4}_Locus_\\d+_Transcript_\\d+/\\d+_Confidence_[\\d\\\\.]+_Length_\\d+)(_\\d+)?$");
+
+	private static boolean regexValidate(final Grammar g, final String id) {
+		switch (g) {
+		case K25:
+			return id.matches("^[A-Z]{4}_\\d+$");
+		case SCAFFOLD:
+			return id.matches("^scaffold-[A-Z]{4}-\\d+-\\S{1,60}$") || id.matches("^scaffold-[A-Z]{4}-\\d+$");
+		default:
+			return OASES_ID_REGEX.matcher(id).matches() || id.matches("^[A-Z]{4}_Locus_\\d+_Transcript_\\d+$") || id.matches("^[A-Z]{4}_Locus_\\d+$");
+		}
+	}
+
+	private static String regexSampleID(final Grammar g, final String id) {
+		int start = (g == Grammar.SCAFFOLD) ? "scaffold-".length() : 0;
+		return id.substring(start, start+4);
+	}
+
+	private static String regexTranscriptID(final Grammar g, final String id) {
+		if (g == Grammar.SCAFFOLD) {
+			return id;
+		}
+		String ret = id.substring(5);
+		if (ret.startsWith("Locus_")) {
+			Pattern p = Pattern.compile("Confidence_[\\d\\\\.]+_Length_\\d+(_\\d+)$");
+			Matcher m = p.matcher(ret);
+			if (m.find()) {
+				return ret.substring(0, ret.length() - m.group(1).length());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Validation only
+	 */
+	@Benchmark
+	public boolean validateRegex() {
+		return regexValidate(grammar, id);
+	}
+
+	@Benchmark
+	public boolean validateParser() {
+		return parsed.parse(grammar, id);
+	}
+
+	/**
+	 * Validation, sample ID and transcript database ID, as done for a transcript request
+	 */
+	@Benchmark
+	public void transcriptLookupRegex(final Blackhole bh) {
+		if (regexValidate(grammar, id)) {
+			bh.consume(regexSampleID(grammar, id));
+			bh.consume(regexTranscriptID(grammar, id));
+		}
+	}
+
+	/**
+	 * As for {@link #transcriptLookupRegex(Blackhole)}, with the known sample check done from the parsed view. Only the database ID allocates.
+	 */
+	@Benchmark
+	public void transcriptLookupParser(final Blackhole bh) {
+		if (parsed.parse(grammar, id) && known.contains(parsed.getSampleIndex())) {
+			bh.consume(parsed.getDatabaseID(false));
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Replays a mix of requests against a running server (eg. one started locally from the IDE) from many threads, at a fixed
+ * overall rate, and reports the latency percentiles and error rate of each kind of request. Unlike {@link QA}, which checks a few
+ * sequences one at a time, this shows how the services behave under concurrency. The kinds of request are:
+ * <ul>
+ * <li><code>exact</code>: a sequence by its full ID, which must match the expected record (as for <code>QA.compareFastaEntries()</code>)
+ * <li><code>partial</code>: an Oases ID with its length truncated, so that it is found via the partial ID fallback. The response must contain the expected record
+ * <li><code>miss</code>: a well-formed ID, for a known sample, which is not in the dataset. The request must fail cleanly (ie. not be an internal error)
+ * <li><code>proteome</code>: a whole-sample download, which is read to completion but checked only for being fasta
+ * <li><code>summary</code>: a sample summary, which must name the sample
+ * </ul>
+ *
+ * The expected records are read from a fasta file (<code>onekp.load.fasta</code>) of sequences extracted from the dataset under test, eg. part of
+ * one of its transcriptomes. Samples are taken from the first four characters of the ID's. Settings are system properties:
+ * <ul>
+ * <li><code>onekp.load.url</code>: root URL of the services (default: http://localhost:8080/onekp/)
+ * <li><code>onekp.load.dataset</code>: dataset label (default: k39)
+ * <li><code>onekp.load.type</code>: transcript or protein (default: transcript), the type of the sequences in the fasta file
+ * <li><code>onekp.load.threads</code>: concurrent requests (default: 8)
+ * <li><code>onekp.load.rate</code>: requests per second over all threads, or 0 to send each request as soon as a thread is free (default: 50)
+ * <li><code>onekp.load.duration</code>, <code>onekp.load.warmup</code>: seconds to record for, after seconds not recorded (default: 60, 10)
+ * <li><code>onekp.load.mix</code>: relative weight of each kind of request (default: exact=70,partial=10,miss=10,proteome=2,summary=8)
+ * <li><code>onekp.load.user</code>, <code>onekp.load.password</code>: HTTP basic credentials for the <code>1kp_user</code> role, if required
+ * <li><code>onekp.load.timeout</code>: connect and read timeout in milliseconds (default: 60000)
+ * <li><code>onekp.load.hgrm</code>: if set, a directory to which the percentile distribution of each kind of request is saved (<code>.hgrm</code> files, for the HdrHistogram plotter)
+ * </ul>
+ *
+ * When a rate is set, latency is measured from when each request was due to be sent rather than when it was sent, so that a stalled
+ * server is not under-reported because fewer requests were waiting on it (ie. coordinated omission is corrected for).
+ * Requires HdrHistogram on the classpath, so is not deployed with the services.
+ *
+ * @author acassin
+ *
+ */
+public class LoadTest {
+	private final static Logger logger = Logger.getLogger("LoadTest");
+
+	public enum Endpoint { EXACT, PARTIAL, MISS, PROTEOME, SUMMARY };
+
+	private final static long HIGHEST_LATENCY_US = 60L * 60 * 1000 * 1000;		// an hour
+	private final static int MAX_BODY = 64 * 1024 * 1024;							// longest response kept for checking
+
+	private final QA qa;
+	private final String root_url;
+	private final String dataset;
+	private final String seq_type;
+	private final List<String> ids = new ArrayList<String>();
+	private final List<String> entries = new ArrayList<String>();
+	private final List<String> samples;
+	private final List<Integer> partial = new ArrayList<Integer>();		// records which have a partial ID
+	private final int[] weights = new int[Endpoint.values().length];
+	private int total_weight;
+	private int n_threads = 8;
+	private double rate = 50.0;
+	private long warmup_ns, duration_ns;
+	private int timeout = 60 * 1000;
+	private String authorization;
+
+	// merged from each worker once it completes
+	private final Histogram[] histograms = new Histogram[Endpoint.values().length];
+	private final long[] errors = new long[Endpoint.values().length];
+	private final long[] mismatches = new long[Endpoint.values().length];
+	private long n_bytes;
+
+	public LoadTest(final String root_url, final String dataset, final String seq_type, final File expected) throws IOException {
+		assert(root_url != null && dataset != null && seq_type != null && expected != null);
+		this.root_url = root_url.endsWith("/") ? root_url : root_url+"/";
+		this.dataset = dataset;
+		this.seq_type = seq_type;
+		this.qa = new QA(this.root_url);
+		readExpected(expected);
+		if (ids.size() < 1) {
+			throw new IOException("No fasta records in "+expected.getAbsolutePath());
+		}
+		LinkedHashSet<String> s = new LinkedHashSet<String>();
+		for (String id : ids) {
+			s.add(id.substring(0, 4));
+		}
+		samples = new ArrayList<String>(s);
+		for (int i=0; i<ids.size(); i++) {
+			if (getPartialID(ids.get(i)) != null) {
+				partial.add(Integer.valueOf(i));
+			}
+		}
+		for (int i=0; i<histograms.length; i++) {
+			histograms[i] = new Histogram(HIGHEST_LATENCY_US, 3);
+		}
+		setMix("exact=70,partial=10,miss=10,proteome=2,summary=8");
+		setDuration(10, 60);
+	}
+
+	private void readExpected(final File f) throws IOException {
+		BufferedReader rdr = new BufferedReader(new FileReader(f));
+		try {
+			StringBuilder sb = null;
+			String line;
+			while ((line = rdr.readLine()) != null) {
+				if (line.startsWith(">")) {
+					if (sb != null) {
+						entries.add(sb.toString());
+					}
+					String id = line.substring(1).trim().split("\\s+")[0];
+					if (id.length() < 5) {
+						throw new IOException("Unsuitable ID (no sample): "+id);
+					}
+					ids.add(id);
+					sb = new StringBuilder();
+				} else if (sb == null) {
+					continue;
+				}
+				sb.append(line);
+				sb.append('\n');
+			}
+			if (sb != null) {
+				entries.add(sb.toString());
+			}
+		} finally {
+			rdr.close();
+		}
+	}
+
+	/**
+	 * Sets the relative frequency of each kind of request, eg. <code>exact=1,summary=1</code>. Kinds not listed are not sent.
+	 */
+	public void setMix(final String mix) {
+		assert(mix != null);
+		for (int i=0; i<weights.length; i++) {
+			weights[i] = 0;
+		}
+		total_weight = 0;
+		for (String s : mix.split(",")) {
+			String[] kv = s.trim().split("=");
+			if (kv.length != 2) {
+				throw new IllegalArgumentException("Expected kind=weight: "+s);
+			}
+			Endpoint e = Endpoint.valueOf(kv[0].trim().toUpperCase());
+			int w = Integer.parseInt(kv[1].trim());
+			if (w < 0) {
+				throw new IllegalArgumentException("Negative weight: "+s);
+			}
+			weights[e.ordinal()] = w;
+		}
+		if (weights[Endpoint.PARTIAL.ordinal()] > 0 && partial.size() < 1) {
+			logger.warning("Partial ID's are only made from Oases ID's: no partial ID requests will be sent.");
+			weights[Endpoint.PARTIAL.ordinal()] = 0;
+		}
+		for (int w : weights) {
+			total_weight += w;
+		}
+		if (total_weight < 1) {
+			throw new IllegalArgumentException("No requests in mix: "+mix);
+		}
+	}
+
+	public void setThreads(final int n_threads) {
+		if (n_threads < 1) {
+			throw new IllegalArgumentException("Must be at least one thread");
+		}
+		this.n_threads = n_threads;
+	}
+
+	public void setRate(final double requests_per_second) {
+		if (requests_per_second < 0.0) {
+			throw new IllegalArgumentException("Rate must not be negative");
+		}
+		this.rate = requests_per_second;
+	}
+
+	public void setDuration(final int warmup_seconds, final int seconds) {
+		this.warmup_ns   = warmup_seconds * 1000L * 1000L * 1000L;
+		this.duration_ns = seconds * 1000L * 1000L * 1000L;
+	}
+
+	public void setTimeout(final int ms) {
+		this.timeout = ms;
+	}
+
+	public void setCredentials(final String user, final String password) throws IOException {
+		if (user == null) {
+			authorization = null;
+			return;
+		}
+		authorization = "Basic "+DatatypeConverter.printBase64Binary((user+":"+(password != null ? password : "")).getBytes("UTF-8"));
+	}
+
+	/**
+	 * Returns the ID with the digits of its length (except the first) removed, which the service will only find by partial ID matching;
+	 * or null if the ID is not an Oases one
+	 */
+	public static String getPartialID(final String id) {
+		SequenceID sid = SequenceID.of(SequenceID.Grammar.OASES, id);
+		if (sid == null || sid.getLength() < 10) {
+			return null;
+		}
+		String length = "_Length_"+sid.getLength();
+		int idx = id.lastIndexOf(length);
+		if (idx < 0) {
+			return null;
+		}
+		return id.substring(0, idx)+"_Length_"+Long.toString(sid.getLength()).charAt(0)+id.substring(idx + length.length());
+	}
+
+	/**
+	 * Returns a valid ID, in the specified sample, which is not expected to be in any dataset
+	 */
+	public static String getMissingID(final String sample_id, final boolean oases) {
+		if (oases) {
+			return sample_id+"_Locus_987654321_Transcript_1/1_Confidence_1.000_Length_100";
+		}
+		return sample_id+"_987654321";
+	}
+
+	/**
+	 * Sends requests for the warmup and recorded periods, then returns once all in-flight requests have completed
+	 */
+	public void run() throws InterruptedException {
+		final long t0 = System.nanoTime();
+		final long recording_starts = t0 + warmup_ns;
+		final long ends = recording_starts + duration_ns;
+		final long interval_ns = rate > 0.0 ? (long) (1000L * 1000L * 1000L / rate) : 0L;
+		final AtomicLong tickets = new AtomicLong();
+
+		Thread[] threads = new Thread[n_threads];
+		Worker[] workers = new Worker[n_threads];
+		for (int i=0; i<n_threads; i++) {
+			final Worker w = new Worker(i);
+			workers[i] = w;
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					w.run(t0, recording_starts, ends, interval_ns, tickets);
+				}
+			}, "load-"+i);
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (Worker w : workers) {
+			for (int i=0; i<histograms.length; i++) {
+				histograms[i].add(w.histograms[i]);
+				errors[i]     += w.errors[i];
+				mismatches[i] += w.mismatches[i];
+			}
+			n_bytes += w.n_bytes;
+		}
+	}
+
+	private class Worker {
+		private final Random r;
+		private final Histogram[] histograms = new Histogram[Endpoint.values().length];
+		private final long[] errors = new long[Endpoint.values().length];
+		private final long[] mismatches = new long[Endpoint.values().length];
+		private long n_bytes;
+
+		Worker(final int idx) {
+			r = new Random(idx * 7919L + 1);
+			for (int i=0; i<histograms.length; i++) {
+				histograms[i] = new Histogram(HIGHEST_LATENCY_US, 3);
+			}
+		}
+
+		void run(final long t0, final long recording_starts, final long ends, final long interval_ns, final AtomicLong tickets) {
+			while (true) {
+				long due;
+				if (interval_ns > 0) {
+					due = t0 + tickets.getAndIncrement() * interval_ns;
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						try {
+							Thread.sleep(wait / (1000L * 1000L), (int) (wait % (1000L * 1000L)));
+						} catch (InterruptedException ie) {
+							return;
+						}
+					}
+				} else {
+					due = System.nanoTime();
+				}
+				if (due >= ends) {
+					return;
+				}
+				Endpoint e = pick();
+				boolean failed = false;
+				boolean correct = false;
+				try {
+					correct = request(e);
+				} catch (IOException ioe) {
+					logger.warning(e+" request failed: "+ioe.getMessage());
+					failed = true;
+				}
+				// as for the latencies, nothing is counted during the warmup
+				if (due >= recording_starts) {
+					long us = (System.nanoTime() - due) / 1000L;
+					histograms[e.ordinal()].recordValue(Math.min(us, HIGHEST_LATENCY_US));
+					if (failed || !correct) {
+						errors[e.ordinal()]++;
+					}
+					if (!failed && !correct) {
+						mismatches[e.ordinal()]++;
+					}
+				}
+			}
+		}
+
+		private Endpoint pick() {
+			int n = r.nextInt(total_weight);
+			for (Endpoint e : Endpoint.values()) {
+				n -= weights[e.ordinal()];
+				if (n < 0) {
+					return e;
+				}
+			}
+			throw new IllegalStateException("Bad weights");
+		}
+
+		/**
+		 * Sends one request of the specified kind and checks the response. Returns false if the response has an unexpected status or content
+		 * @throws IOException if the request failed
+		 */
+		private boolean request(final Endpoint e) throws IOException {
+			int idx = (e == Endpoint.PARTIAL) ? partial.get(r.nextInt(partial.size())).intValue() : r.nextInt(ids.size());
+			String id = ids.get(idx);
+			String sample_id = id.substring(0, 4);
+			try {
+				switch (e) {
+				case EXACT:
+					{
+						Result res = get(seq_type+"/"+encode(id), false);
+						return res.status == 200 && qa.compareFastaEntries(entries.get(idx), res.body, true);
+					}
+				case PARTIAL:
+					{
+						Result res = get(seq_type+"/"+encode(getPartialID(id)), false);
+						return res.status == 200 && qa.containsFastaSequence(res.body, entries.get(idx));
+					}
+				case MISS:
+					{
+						Result res = get(seq_type+"/"+encode(getMissingID(sample_id, SequenceID.isValid(SequenceID.Grammar.OASES, id))), false);
+						// a missing sequence is reported as an error by doGet(), but the request must not have failed
+						return res.status == 404 || (res.status == 500 && res.body.startsWith("No sequence for"));
+					}
+				case PROTEOME:
+					{
+						Result res = get("proteome/"+samples.get(r.nextInt(samples.size())), true);
+						return res.status == 200 && res.first == '>';
+					}
+				case SUMMARY:
+					{
+						String s = samples.get(r.nextInt(samples.size()));
+						Result res = get("summary/"+s, false);
+						return res.status == 200 && res.body.contains("Sample ID: "+s);
+					}
+				default:
+					throw new IllegalStateException("Unknown request: "+e);
+				}
+			} catch (IOException ioe) {
+				throw new IOException(id+": "+ioe.getMessage(), ioe);
+			}
+		}
+
+		private Result get(final String path, final boolean discard) throws IOException {
+			URL u = new URL(root_url+dataset+"/"+path);
+			HttpURLConnection c = (HttpURLConnection) u.openConnection();
+			c.setConnectTimeout(timeout);
+			c.setReadTimeout(timeout);
+			if (authorization != null) {
+				c.setRequestProperty("Authorization", authorization);
+			}
+			Result res = new Result();
+			res.status = c.getResponseCode();
+			InputStream is = res.status < 400 ? c.getInputStream() : c.getErrorStream();
+			if (is == null) {
+				res.body = "";
+				return res;
+			}
+			try {
+				if (discard) {
+					byte[] buf = new byte[64 * 1024];
+					int n;
+					while ((n = is.read(buf)) >= 0) {
+						if (n > 0 && res.first < 0) {
+							res.first = buf[0];
+						}
+						n_bytes += n;
+					}
+					res.body = "";
+				} else {
+					StringBuilder sb = new StringBuilder(8 * 1024);
+					InputStreamReader rdr = new InputStreamReader(is, "UTF-8");
+					char[] buf = new char[8 * 1024];
+					int n;
+					while ((n = rdr.read(buf)) >= 0) {
+						n_bytes += n;
+						if (sb.length() < MAX_BODY) {
+							sb.append(buf, 0, n);
+						}
+					}
+					res.body = sb.toString();
+				}
+			} finally {
+				is.close();
+			}
+			return res;
+		}
+	}
+
+	private static class Result {
+		int status;
+		int first = -1;
+		String body;
+	}
+
+	private static String encode(final String id) throws IOException {
+		// ID's have '/' which must remain part of the path parameter
+		return URLEncoder.encode(id, "UTF-8").replace("+", "%20").replace("%2F", "/");
+	}
+
+	/**
+	 * Reports, for each kind of request sent: count, errors (failed requests and incorrect responses), and the latency percentiles in milliseconds
+	 */
+	public void report(final PrintStream ps) {
+		ps.println(String.format("%-9s %8s %7s %7s %9s %9s %9s %9s %9s", "request", "count", "errors", "error%", "p50_ms", "p90_ms", "p99_ms", "p99.9_ms", "max_ms"));
+		long total = 0;
+		for (Endpoint e : Endpoint.values()) {
+			Histogram h = histograms[e.ordinal()];
+			long n = h.getTotalCount();
+			total += n;
+			if (n < 1) {
+				continue;
+			}
+			ps.println(String.format("%-9s %8d %7d %7.2f %9.2f %9.2f %9.2f %9.2f %9.2f", e.name().toLowerCase(), n, errors[e.ordinal()],
+					100.0 * errors[e.ordinal()] / n, ms(h.getValueAtPercentile(50.0)), ms(h.getValueAtPercentile(90.0)),
+					ms(h.getValueAtPercentile(99.0)), ms(h.getValueAtPercentile(99.9)), ms(h.getMaxValue())));
+			if (mismatches[e.ordinal()] > 0) {
+				ps.println("          ("+mismatches[e.ordinal()]+" unexpected status or content)");
+			}
+		}
+		double seconds = duration_ns / 1e9;
+		ps.println(String.format("%d requests recorded in %.0fs (%.1f/s, %d threads, target rate %s), %d bytes read", total, seconds, total / seconds,
+				n_threads, rate > 0.0 ? String.format("%.1f/s", rate) : "unlimited", n_bytes));
+	}
+
+	private static double ms(final long us) {
+		return us / 1000.0;
+	}
+
+	/**
+	 * Saves the percentile distribution of each kind of request to <code>kind.hgrm</code> in the specified directory, in milliseconds
+	 */
+	public void saveDistributions(final File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create "+dir.getAbsolutePath());
+		}
+		for (Endpoint e : Endpoint.values()) {
+			Histogram h = histograms[e.ordinal()];
+			if (h.getTotalCount() < 1) {
+				continue;
+			}
+			PrintStream ps = new PrintStream(new File(dir, e.name().toLowerCase()+".hgrm"), "UTF-8");
+			try {
+				h.outputPercentileDistribution(ps, 1000.0);
+			} finally {
+				ps.close();
+			}
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		String fasta = args.length > 0 ? args[0] : System.getProperty("onekp.load.fasta");
+		if (fasta == null) {
+			System.err.println("Usage: LoadTest expected.fasta (see the class documentation for the onekp.load.* properties)");
+			System.exit(1);
+		}
+		LoadTest lt = new LoadTest(System.getProperty("onekp.load.url", "http://localhost:8080/onekp/"),
+				System.getProperty("onekp.load.dataset", "k39"), System.getProperty("onekp.load.type", "transcript"), new File(fasta));
+		lt.setMix(System.getProperty("onekp.load.mix", "exact=70,partial=10,miss=10,proteome=2,summary=8"));
+		lt.setThreads(Integer.parseInt(System.getProperty("onekp.load.threads", "8")));
+		lt.setRate(Double.parseDouble(System.getProperty("onekp.load.rate", "50")));
+		lt.setDuration(Integer.parseInt(System.getProperty("onekp.load.warmup", "10")), Integer.parseInt(System.getProperty("onekp.load.duration", "60")));
+		lt.setTimeout(Integer.parseInt(System.getProperty("onekp.load.timeout", "60000")));
+		lt.setCredentials(System.getProperty("onekp.load.user"), System.getProperty("onekp.load.password"));
+		lt.run();
+		lt.report(System.out);
+		String hgrm = System.getProperty("onekp.load.hgrm");
+		if (hgrm != null) {
+			lt.saveDistributions(new File(hgrm));
+		}
+	}
+}
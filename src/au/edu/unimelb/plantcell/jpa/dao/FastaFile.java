@@ -32,6 +32,12 @@ public class FastaFile {
     private String onekp_sample_id;		// 1kp sample ID for the fasta file
     @Enumerated(EnumType.STRING)
     private SequenceType sequence_type; // each file consists of sequences of a SINGLE type: AA, RNA, DNA or unknown
+    private String gzip_path;			// gzip-compressed copy of the file for downloads (made at ingest) or null if none
+    
+    // fingerprint of the file as ingested, so that an incremental re-ingest need only re-index files which have changed
+    private long   file_size;
+    private long   last_modified;		// milliseconds since the epoch, as for File.lastModified()
+    private String content_hash;		// hex digest of the content or null if not computed
 	
 	public FastaFile() {
 	
@@ -84,6 +90,40 @@ public class FastaFile {
 		return path;
 	}
 	
+	/**
+	 * Returns the path to a gzip-compressed copy of the file, which is sent (as is) to clients which accept gzip
+	 * @return null if there is no such copy
+	 */
+	public String getGzipPath() {
+		return gzip_path;
+	}
+	
+	public void setGzipPath(final String gzip_path) {
+		this.gzip_path = gzip_path;
+	}
+	
+	public long getFileSize() {
+		return file_size;
+	}
+	
+	public long getLastModified() {
+		return last_modified;
+	}
+	
+	/**
+	 * Returns the digest of the file content as ingested
+	 * @return null if none was computed
+	 */
+	public String getContentHash() {
+		return content_hash;
+	}
+	
+	public void setFingerprint(final long file_size, final long last_modified, final String content_hash) {
+		this.file_size     = file_size;
+		this.last_modified = last_modified;
+		this.content_hash  = content_hash;
+	}
+	
 	public int getID() {
 		return id;
 	}
@@ -0,0 +1,93 @@
+package au.edu.unimelb.plantcell.jpa.dao;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.OneToOne;
+import javax.persistence.Table;
+
+/**
+ * Summary statistics of the sequences in a fasta file, computed as the file is ingested (so that summaries need not count SEQREF rows).
+ * Lengths are in residues ie. excluding the definition line and line terminators.
+ *
+ * @author acassin
+ *
+ */
+@Entity
+@Table(name="FASTAFILE_STATS")
+public class FastaFileStatistics {
+	@Id
+	@GeneratedValue(strategy=GenerationType.SEQUENCE)
+	private int id;
+
+	@OneToOne
+	private FastaFile fasta;
+
+	private int  n_records;
+	private long n_residues;
+	private int  min_length;		// zero if there are no records
+	private int  max_length;
+	private int  n50;				// half of all residues are in sequences of at least this length
+
+	public FastaFileStatistics() {
+
+	}
+
+	public FastaFileStatistics(final FastaFile ff) {
+		setFastaFile(ff);
+	}
+
+	public int getID() {
+		return id;
+	}
+
+	public FastaFile getFastaFile() {
+		return fasta;
+	}
+
+	public void setFastaFile(final FastaFile ff) {
+		assert(ff != null);
+		this.fasta = ff;
+	}
+
+	public int getRecordCount() {
+		return n_records;
+	}
+
+	public void setRecordCount(final int n_records) {
+		this.n_records = n_records;
+	}
+
+	public long getTotalResidues() {
+		return n_residues;
+	}
+
+	public void setTotalResidues(final long n_residues) {
+		this.n_residues = n_residues;
+	}
+
+	public int getMinLength() {
+		return min_length;
+	}
+
+	public void setMinLength(final int min_length) {
+		this.min_length = min_length;
+	}
+
+	public int getMaxLength() {
+		return max_length;
+	}
+
+	public void setMaxLength(final int max_length) {
+		this.max_length = max_length;
+	}
+
+	public int getN50() {
+		return n50;
+	}
+
+	public void setN50(final int n50) {
+		this.n50 = n50;
+	}
+}
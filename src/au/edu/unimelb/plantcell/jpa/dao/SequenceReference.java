@@ -28,6 +28,16 @@ public class SequenceReference {
 		
 	private String seqID;
 	
+	/*
+	 * layout of the record, as needed to compute the byte offset of a given residue. Recorded during ingest (in the sidecar index),
+	 * but not persisted to the database.
+	 */
+	private int header_length;		// bytes in the definition line, including its line terminator
+	private int line_bases;			// residues per sequence line (except the last) or zero if lines vary in length
+	private int line_width;			// bytes per sequence line, including the line terminator
+	private int n_lines;			// sequence lines seen so far
+	private boolean seen_short_line;
+	
 	public FastaFile getFastaFile() {
 		return fasta;
 	}
@@ -62,10 +72,79 @@ public class SequenceReference {
 		return seqID;
 	}
 
+	public int getHeaderLength() {
+		return header_length;
+	}
+	
+	public void setHeaderLength(final int new_header_length) {
+		header_length = new_header_length;
+	}
+	
+	public int getLineBases() {
+		return line_bases;
+	}
+	
+	public int getLineWidth() {
+		return line_width;
+	}
+	
+	public void setLineLayout(final int new_line_bases, final int new_line_width) {
+		line_bases = new_line_bases;
+		line_width = new_line_width;
+	}
+	
+	/**
+	 * Must be called for each sequence line of the record, in order, during parsing so that the line layout is known.
+	 * If the lines are not all the same length (other than a shorter final line) the layout is marked as unknown ie. zero
+	 * 
+	 * @param n_residues length of the line, excluding the line terminator
+	 * @param eol_length bytes in the line terminator
+	 */
+	public void addSequenceLine(final int n_residues, final int eol_length) {
+		n_lines++;
+		if (n_lines == 1) {
+			setLineLayout(n_residues, n_residues + eol_length);
+			seen_short_line = false;
+			return;
+		}
+		if (line_bases == 0) {
+			return;		// already known to be irregular
+		}
+		if (seen_short_line || n_residues > line_bases || (n_residues == line_bases && n_residues + eol_length != line_width)) {
+			setLineLayout(0, 0);
+			return;
+		}
+		if (n_residues < line_bases) {
+			seen_short_line = true;
+		}
+	}
+	
 	public boolean hasSequenceID() {
 		return (seqID != null && seqID.length() > 0);
 	}
 
+	/**
+	 * Reserves a block of consecutive ID's, for a file whose records are saved concurrently with those of other files
+	 * 
+	 * @param n number of ID's required
+	 * @return the first ID in the block
+	 */
+	public static synchronized int reserveIDs(final int n) {
+		assert(n >= 0);
+		int ret = unique_id;
+		unique_id += n;
+		return ret;
+	}
+	
+	/**
+	 * Ensures that ID's reserved from now on are greater than the specified ID eg. the largest already in the table being added to
+	 */
+	public static synchronized void reserveIDsAfter(final int last_used) {
+		if (unique_id <= last_used) {
+			unique_id = last_used + 1;
+		}
+	}
+	
 	/**
 	 * Saves the current state of this in a format suitable for mysql's load local data infile... (column order is VERY important
 	 * and must match schema exactly)
@@ -73,8 +152,15 @@ public class SequenceReference {
 	 * @param pw
 	 */
 	public void save(final PrintWriter pw) {
+		save(pw, reserveIDs(1));		// we cant use the id field: since we are not using getEntityManager().persist()
+	}
+	
+	/**
+	 * As for <code>save(PrintWriter)</code>, but using an ID from a block obtained by <code>reserveIDs()</code>
+	 */
+	public void save(final PrintWriter pw, final int id) {
 		assert(pw != null);
-		pw.append(String.valueOf(unique_id++))		// we cant use the id field: since we are not using getEntityManager().persist()
+		pw.append(String.valueOf(id))
 		  .append('\t').append(String.valueOf(getLength()))
 		  .append('\t').append(getSequenceID())
 		  .append('\t').append(String.valueOf(getStart()))
@@ -16,9 +16,14 @@ import javax.persistence.Persistence;
 import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
 import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
+import au.edu.unimelb.plantcell.seqdb.DeferredIndexes;
+import au.edu.unimelb.plantcell.seqdb.FastaFileSchema;
 import au.edu.unimelb.plantcell.seqdb.FastaPersistor;
+import au.edu.unimelb.plantcell.seqdb.IncrementalIngest;
+import au.edu.unimelb.plantcell.seqdb.IngestPipeline;
 import au.edu.unimelb.plantcell.seqdb.Queries;
 import au.edu.unimelb.plantcell.seqdb.SamplePersistor;
+import au.edu.unimelb.plantcell.seqdb.SequenceReferenceLoader;
 
 public class populateDatabase {
 	private static EntityManagerFactory singleton;
@@ -47,15 +52,26 @@ public class populateDatabase {
 		File f = new File("/tmp/1kp_sample_list_20140925.csv");
 		
 		Logger log = Logger.getLogger("OneKP");
-		log.info("Removing content from all tables. Please wait, this may take a long time.");
-		Queries.emptyTables(getEntityManager());
-		log.info("Deletion complete.");
-		wait5seconds();
+		// an existing database may lack FASTAFILE columns, or the FASTAFILE_STATS table, added since: -Donekp.schema.upgrade=true adds them
+		try {
+			FastaFileSchema.check(getEntityManager(), Boolean.getBoolean("onekp.schema.upgrade"), log);
+		} catch (Exception e) {
+			log.severe(e.getMessage());
+			System.exit(1);
+		}
+		// -Donekp.ingest.incremental=true keeps the existing tables and only re-indexes fasta files which have been added or changed
+		boolean incremental = Boolean.getBoolean("onekp.ingest.incremental");
+		if (!incremental) {
+			log.info("Removing content from all tables. Please wait, this may take a long time.");
+			Queries.emptyTables(getEntityManager());
+			log.info("Deletion complete.");
+			wait5seconds();
+		}
 		
 		SamplePersistor sp = new SamplePersistor();
 		
 		try {
-			int n = sp.persist1kpSamples(getEntityManager(), f);
+			int n = sp.persist1kpSamples(getEntityManager(), f, incremental);
 			log.info("Added metadata for "+n+" 1kp sequenced samples.");
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -81,6 +97,15 @@ public class populateDatabase {
 		}
 		wait5seconds();
 	
+		// -Donekp.ingest.threads=N parses N fasta files at a time
+		int n_threads = Integer.getInteger("onekp.ingest.threads", 1).intValue();
+		// -Donekp.ingest.stream=true loads sequence references as they are parsed, rather than via a temporary TSV file
+		boolean stream = Boolean.getBoolean("onekp.ingest.stream");
+		// -Donekp.ingest.pipeline=true parses with N threads and loads with -Donekp.ingest.loaders=M connections, concurrently
+		boolean pipeline = Boolean.getBoolean("onekp.ingest.pipeline");
+		int n_loaders = Integer.getInteger("onekp.ingest.loaders", 2).intValue();
+		// -Donekp.ingest.defer.indexes=true drops the secondary indexes on the SEQREF table during the load, then builds them once all rows are loaded
+		boolean defer_indexes = Boolean.getBoolean("onekp.ingest.defer.indexes");
 		for (File dataset_root : datasets) {
 			File protein_root = new File(dataset_root, "proteomes");
 			File transcriptome_root = new File(dataset_root, "transcriptomes");
@@ -108,33 +133,162 @@ public class populateDatabase {
 			log.info("Found "+protein_files.size()+" proteomes for dataset: "+dsd.getLabel());
 			log.info("Found "+transcript_files.size()+" transcriptomes for dataset: "+dsd.getLabel());
 			
+			if (incremental) {
+				try {
+					boolean use_hash = Boolean.getBoolean("onekp.ingest.hash");
+					IncrementalIngest prot_plan = new IncrementalIngest(getEntityManager(), dsd, log, use_hash);
+					prot_plan.plan(SequenceType.AA, proteomes);
+					IncrementalIngest trans_plan = new IncrementalIngest(getEntityManager(), dsd, log, use_hash);
+					trans_plan.plan(SequenceType.RNA, transcriptomes);
+					prot_plan.removeStale();
+					trans_plan.removeStale();
+					protein_files    = prot_plan.getFilesToIngest();
+					transcript_files = trans_plan.getFilesToIngest();
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				log.info("Re-indexing "+protein_files.size()+" proteomes and "+transcript_files.size()+" transcriptomes for dataset: "+dsd.getLabel());
+				if (protein_files.size() + transcript_files.size() == 0) {
+					continue;
+				}
+			}
 
+			DeferredIndexes deferred = null;
+			if (defer_indexes) {
+				// after any incremental deletes, which use the indexes
+				try {
+					deferred = new DeferredIndexes(getEntityManager(), dsd, log);
+					int n = deferred.drop();
+					log.info("Dropped "+n+" indexes on "+dsd.getSeqRefTable()+" until the load is complete");
+				} catch (Exception e) {
+					e.printStackTrace();
+					restoreIndexes(deferred);
+					System.exit(1);
+				}
+			}
+
+			if (pipeline) {
+				try {
+					IngestPipeline ip = new IngestPipeline(getEntityManager(), dsd, log, n_threads, n_loaders);
+					if (protein_files.size() > 0) {
+						ip.add(new FastaPersistor(protein_files, SequenceType.AA, log, null));
+					}
+					if (transcript_files.size() > 0) {
+						ip.add(new FastaPersistor(transcript_files, SequenceType.RNA, log, null));
+					}
+					int n = ip.run();
+					log.info("Processed "+n+" AA and RNA sequence records");
+				} catch (Exception e) {
+					e.printStackTrace();
+					restoreIndexes(deferred);
+					System.exit(1);
+				}
+				restoreIndexes(deferred);
+				log.info("Population of datasets complete.");
+				continue;
+			}
+
+			if (n_threads > 1) {
+				// each dataset is parsed by a pool of threads, which load their sequence references themselves
+				try {
+					File shard_dir = new File(System.getProperty("java.io.tmpdir"));
+					if (protein_files.size() > 0) {
+						log.info("Computing sequence records for "+protein_files.size()+" protein files using "+n_threads+" threads.");
+						FastaPersistor prot = new FastaPersistor(protein_files, SequenceType.AA, log, null);
+						int n_prot = prot.populateDatabaseInParallel(getEntityManager(), dsd, n_threads, shard_dir);
+						log.info("Processed "+n_prot+" AA sequence records");
+					}
+					
+					if (transcript_files.size() > 0) {
+						log.info("Computing sequence records for "+transcript_files.size()+" transcript files using "+n_threads+" threads.");
+						FastaPersistor trans = new FastaPersistor(transcript_files, SequenceType.RNA, log, null);
+						int n_trans = trans.populateDatabaseInParallel(getEntityManager(), dsd, n_threads, shard_dir);
+						log.info("Processed "+n_trans+" RNA sequence records");
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					restoreIndexes(deferred);
+					System.exit(1);
+				}
+				restoreIndexes(deferred);
+				log.info("Population of datasets complete.");
+				continue;
+			}
+
+			SequenceReferenceLoader loader = null;
 			try {
-				File seq_ref_tsv = File.createTempFile("4website_seqref", ".seqref.tsv");
-				log.info("Storing SequenceReference records to: "+seq_ref_tsv.getAbsolutePath());
+				File seq_ref_tsv = null;
+				PrintWriter pw;
+				if (stream) {
+					// references are loaded as they are saved, so there is no TSV file to write and read back
+					loader = SequenceReferenceLoader.start(getEntityManager(), dsd, log);
+					pw = loader.getWriter();
+				} else {
+					seq_ref_tsv = File.createTempFile("4website_seqref", ".seqref.tsv");
+					log.info("Storing SequenceReference records to: "+seq_ref_tsv.getAbsolutePath());
+					pw = new PrintWriter(seq_ref_tsv);
+				}
 				
 				log.info("Computing sequence records for "+protein_files.size()+" protein files.");
-				PrintWriter pw = new PrintWriter(seq_ref_tsv);
 				
-				FastaPersistor prot = new FastaPersistor(protein_files, SequenceType.AA, log, pw);
-				int n_prot = prot.populateDatabase(getEntityManager(), dsd);
-				log.info("Processed "+n_prot+" AA sequence records");
+				FastaPersistor last = null;
+				if (protein_files.size() > 0) {
+					FastaPersistor prot = new FastaPersistor(protein_files, SequenceType.AA, log, pw);
+					int n_prot = prot.populateDatabase(getEntityManager(), dsd);
+					log.info("Processed "+n_prot+" AA sequence records");
+					last = prot;
+				}
 
 				log.info("Computing sequence records for "+transcript_files.size()+" transcript files.");
-				FastaPersistor trans = new FastaPersistor(transcript_files, SequenceType.RNA, log, pw);
-				int n_trans = trans.populateDatabase(getEntityManager(), dsd);
-				log.info("Processed "+n_trans+" RNA sequence records");
-				pw.close();
-			
-				trans.saveSequenceReferences(seq_ref_tsv, getEntityManager(), dsd);
-				seq_ref_tsv.delete();
+				if (transcript_files.size() > 0) {
+					FastaPersistor trans = new FastaPersistor(transcript_files, SequenceType.RNA, log, pw);
+					int n_trans = trans.populateDatabase(getEntityManager(), dsd);
+					log.info("Processed "+n_trans+" RNA sequence records");
+					last = trans;
+				}
+				if (loader != null) {
+					loader.finish();
+				} else {
+					pw.close();
+					if (last != null) {
+						last.saveSequenceReferences(seq_ref_tsv, getEntityManager(), dsd);
+					}
+					seq_ref_tsv.delete();
+				}
 			} catch (Exception e) {
 				e.printStackTrace();
+				if (loader != null) {
+					loader.abort(e);
+				}
+				restoreIndexes(deferred);
 				System.exit(1);
 			}
 			
+			restoreIndexes(deferred);
 			log.info("Population of datasets complete.");
 		}
+		
+		// a running server notices a changed file when it next reads it (see FastaFileVersions), but loads its catalog of fasta files
+		// only once: until it reloads, it does not serve added files (nor, after a full ingest, the new FASTAFILE rows)
+		log.warning("Ingest complete: POST /admin/reload (as 1kp_admin) on each running server now, so that it "+
+					(incremental ? "serves any added files." : "uses the new catalog of fasta files."));
+	}
+
+	/**
+	 * Builds the indexes dropped before the load (if any) and checks they are present, as they must be before the dataset is served
+	 */
+	private static void restoreIndexes(final DeferredIndexes deferred) {
+		if (deferred == null) {
+			return;
+		}
+		try {
+			deferred.rebuild();
+			deferred.verify();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
 	}
 
 	private static void wait5seconds() {
@@ -152,7 +306,12 @@ public class populateDatabase {
 			@Override
 			public boolean accept(File pathname) {
 				String name = pathname.getName();
-				if (pathname.canRead() && (name.endsWith(".fa") || name.endsWith(".fasta")) ) {
+				// BGZF-compressed fasta (see BgzfOutputStream) is also accepted, unless it is the compressed copy of an uncompressed file
+				if (name.endsWith(".gz") && new File(pathname.getParentFile(), name.substring(0, name.length() - 3)).exists()) {
+					return false;
+				}
+				if (pathname.canRead() && (name.endsWith(".fa") || name.endsWith(".fasta") || 
+						name.endsWith(".fa.gz") || name.endsWith(".fasta.gz") || name.endsWith(".bgz")) ) {
 					added++;
 					if (added > max) {
 						return false;
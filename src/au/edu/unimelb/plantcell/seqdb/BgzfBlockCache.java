@@ -0,0 +1,276 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+
+/**
+ * Random access to BGZF-compressed (blocked gzip, as produced by <code>bgzip</code> or {@link BgzfOutputStream}) FASTA files.
+ * A BGZF file is a series of gzip members, each holding at most 64KB of uncompressed data, so a record can be read by
+ * decompressing only the blocks which contain it. For such files, the start of each sequence reference is a <i>virtual offset</i>:
+ * the address of the compressed block in the upper 48 bits and the offset into the decompressed block in the lower 16 bits,
+ * whilst the length remains the (uncompressed) record length.
+ *
+ * Decompressed blocks are shared between requests and evicted in least recently used order once the cache holds more than its budget, which may be
+ * set (in bytes) via the <code>onekp.bgzf.cache.bytes</code> system property.
+ *
+ * @author acassin
+ *
+ */
+public class BgzfBlockCache {
+	public final static long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * maximum size of a BGZF block, compressed or not
+	 */
+	public final static int MAX_BLOCK_SIZE = 64 * 1024;
+
+	private final static Logger logger = Logger.getLogger("BgzfBlockCache");
+
+	private static BgzfBlockCache singleton;
+
+	/**
+	 * A decompressed block together with the (compressed) size of the block on disk, so that the following block can be found
+	 */
+	public static class Block {
+		private final byte[] data;
+		private final int    compressed_size;
+
+		public Block(final byte[] data, final int compressed_size) {
+			this.data = data;
+			this.compressed_size = compressed_size;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public int getCompressedSize() {
+			return compressed_size;
+		}
+	}
+
+	private final LruCache<String,Block> blocks;
+
+	public BgzfBlockCache(final long max_bytes) {
+		assert(max_bytes >= 0);
+		this.blocks = new LruCache<String,Block>(max_bytes) {
+
+			@Override
+			protected long sizeOf(final Block b) {
+				return b.getData().length;
+			}
+
+			@Override
+			protected void evicted(final String key, final Block b) {
+				logger.fine("Evicted BGZF block "+key+", now "+getCachedBytes()+" bytes cached.");
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the cache shared by all services, created on first use
+	 */
+	public static synchronized BgzfBlockCache getInstance() {
+		if (singleton == null) {
+			singleton = new BgzfBlockCache(Long.getLong("onekp.bgzf.cache.bytes", DEFAULT_MAX_BYTES));
+		}
+		return singleton;
+	}
+
+	/**
+	 * Returns true if the fasta file is BGZF-compressed, judging by its name. Ingest ({@link BgzfInputStream}) refuses
+	 * any <code>.gz</code> file which is not BGZF, so the name is sufficient for persisted files.
+	 */
+	public static boolean isCompressed(final String path) {
+		return (path != null && (path.endsWith(".gz") || path.endsWith(".bgz")));
+	}
+
+	public static boolean isCompressed(final FastaFile ff) {
+		return isCompressed(ff.getPath());
+	}
+
+	public static long makeVirtualOffset(final long block_address, final int block_offset) {
+		assert(block_address >= 0 && block_address < (1L << 48) && block_offset >= 0 && block_offset < MAX_BLOCK_SIZE);
+		return (block_address << 16) | block_offset;
+	}
+
+	public static long getBlockAddress(final long virtual_offset) {
+		return virtual_offset >>> 16;
+	}
+
+	public static int getBlockOffset(final long virtual_offset) {
+		return (int) (virtual_offset & 0xffff);
+	}
+
+	/**
+	 * Returns <code>length</code> uncompressed bytes from the file, starting <code>skip</code> bytes past the virtual offset.
+	 *
+	 * @param ff BGZF-compressed fasta file
+	 * @param virtual_offset eg. the start of a sequence reference
+	 * @param skip number of uncompressed bytes to skip eg. to the first residue of interest
+	 * @param length number of uncompressed bytes required
+	 * @throws IOException if the file ends before <code>length</code> bytes are read, or is not BGZF
+	 */
+	public byte[] read(final FastaFile ff, final long virtual_offset, final long skip, final int length) throws IOException {
+		assert(ff != null && skip >= 0 && length >= 0);
+		byte[] ret = new byte[length];
+		long address = getBlockAddress(virtual_offset);
+		long offset  = getBlockOffset(virtual_offset) + skip;
+		int n = 0;
+		RandomAccessFile raf = null;		// only opened if a block is not in the cache
+		try {
+			while (n < length) {
+				String key = ff.getID() + ":" + address;
+				Block b = blocks.get(key);
+				if (b == null) {
+					if (raf == null) {
+						raf = new RandomAccessFile(ff.getPath(), "r");
+					}
+					b = readBlock(raf, address);
+					if (b == null) {
+						throw new IOException("Cannot read "+length+" bytes at "+virtual_offset+" (past end of file)!");
+					}
+					blocks.put(key, b);
+				}
+				byte[] data = b.getData();
+				if (offset < data.length) {
+					int n_copy = (int) Math.min(data.length - offset, length - n);
+					System.arraycopy(data, (int) offset, ret, n, n_copy);
+					n += n_copy;
+					offset = 0;
+				} else {
+					offset -= data.length;
+				}
+				address += b.getCompressedSize();
+			}
+			return ret;
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads and decompresses the block at the specified address
+	 * @return null if the address is at (or past) the end of the file
+	 * @throws IOException if the block is not a valid BGZF block
+	 */
+	public static Block readBlock(final RandomAccessFile raf, final long address) throws IOException {
+		assert(raf != null && address >= 0);
+		if (address >= raf.length()) {
+			return null;
+		}
+		raf.seek(address);
+		byte[] header = new byte[12];
+		raf.readFully(header);
+		int xlen = readBlockHeader(header);
+		byte[] extra = new byte[xlen];
+		raf.readFully(extra);
+		int block_size = getBlockSize(extra);
+		byte[] rest = new byte[block_size - 12 - xlen];
+		raf.readFully(rest);
+		return new Block(inflate(rest, 0, rest.length - 8, rest, rest.length - 8), block_size);
+	}
+
+	/**
+	 * Validates the fixed part of a BGZF block header
+	 * @return the length of the extra field
+	 */
+	static int readBlockHeader(final byte[] header) throws IOException {
+		if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0) {
+			throw new IOException("Not a BGZF file (compress with bgzip rather than gzip)!");
+		}
+		return (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+	}
+
+	/**
+	 * Returns the total size of the block, as recorded in the BC subfield of the extra field
+	 */
+	static int getBlockSize(final byte[] extra) throws IOException {
+		int i = 0;
+		while (i + 4 <= extra.length) {
+			int slen = (extra[i+2] & 0xff) | ((extra[i+3] & 0xff) << 8);
+			if (extra[i] == 'B' && extra[i+1] == 'C' && slen == 2 && i + 6 <= extra.length) {
+				return ((extra[i+4] & 0xff) | ((extra[i+5] & 0xff) << 8)) + 1;
+			}
+			i += 4 + slen;
+		}
+		throw new IOException("Not a BGZF file (no block size in gzip header)!");
+	}
+
+	/**
+	 * Decompresses the deflate data of a block and checks it against the CRC and size in the trailer
+	 */
+	static byte[] inflate(final byte[] buf, final int off, final int len, final byte[] trailer, final int trailer_off) throws IOException {
+		int crc   = readInt(trailer, trailer_off);
+		int isize = readInt(trailer, trailer_off + 4);
+		if (isize < 0 || isize > MAX_BLOCK_SIZE) {
+			throw new IOException("Corrupt BGZF block: "+isize+" bytes uncompressed");
+		}
+		byte[] ret = new byte[isize];
+		Inflater inf = new Inflater(true);
+		try {
+			inf.setInput(buf, off, len);
+			int n = 0;
+			while (n < isize && !inf.finished()) {
+				int got = inf.inflate(ret, n, isize - n);
+				if (got == 0 && (inf.needsInput() || inf.needsDictionary())) {
+					break;
+				}
+				n += got;
+			}
+			if (n != isize) {
+				throw new IOException("Corrupt BGZF block: expected "+isize+" bytes but got "+n);
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("Corrupt BGZF block: "+dfe.getMessage());
+		} finally {
+			inf.end();
+		}
+		CRC32 crc32 = new CRC32();
+		crc32.update(ret, 0, ret.length);
+		if ((int) crc32.getValue() != crc) {
+			throw new IOException("Corrupt BGZF block: CRC mismatch");
+		}
+		return ret;
+	}
+
+	private static int readInt(final byte[] b, final int off) {
+		return (b[off] & 0xff) | ((b[off+1] & 0xff) << 8) | ((b[off+2] & 0xff) << 16) | ((b[off+3] & 0xff) << 24);
+	}
+
+	/**
+	 * Discards all blocks eg. after the fasta files have been re-ingested
+	 */
+	public void clear() {
+		blocks.clear();
+	}
+
+	/**
+	 * Discards the blocks of the specified fasta file eg. because it has changed since they were read
+	 * @return the number of blocks discarded
+	 */
+	public int invalidate(final int fasta_id) {
+		final String prefix = fasta_id + ":";
+		return blocks.invalidate(new LruCache.KeyFilter<String>() {
+
+			@Override
+			public boolean matches(final String key) {
+				return key.startsWith(prefix);
+			}
+
+		});
+	}
+
+	public long getCachedBytes() {
+		return blocks.getCachedBytes();
+	}
+}
@@ -0,0 +1,125 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decompresses a BGZF file sequentially (for ingest), remembering where each block starts so that an uncompressed offset
+ * may be converted to the virtual offset used to read the record later (see {@link BgzfBlockCache}).
+ *
+ * @author acassin
+ *
+ */
+public class BgzfInputStream extends InputStream {
+	private final InputStream in;
+	private byte[] block = new byte[0];
+	private int    pos = 0;
+	private long   next_address = 0;		// address of the next compressed block to read
+
+	// uncompressed start and compressed address of each (non-empty) block read so far
+	private long[] block_starts    = new long[1024];
+	private long[] block_addresses = new long[1024];
+	private int    n_blocks = 0;
+	private long   uncompressed_end = 0;
+
+	public BgzfInputStream(final File f) throws IOException {
+		this.in = new BufferedInputStream(new FileInputStream(f), 256 * 1024);
+	}
+
+	/**
+	 * Returns the virtual offset for the specified uncompressed offset, which must lie within a block which has already been read
+	 */
+	public long getVirtualOffset(final long uncompressed_offset) {
+		if (uncompressed_offset == uncompressed_end) {
+			return BgzfBlockCache.makeVirtualOffset(next_address, 0);
+		}
+		int i = Arrays.binarySearch(block_starts, 0, n_blocks, uncompressed_offset);
+		if (i < 0) {
+			i = -i - 2;		// the block which starts before the offset
+		}
+		if (i < 0 || uncompressed_offset > uncompressed_end) {
+			throw new IllegalArgumentException("Offset "+uncompressed_offset+" has not been read!");
+		}
+		return BgzfBlockCache.makeVirtualOffset(block_addresses[i], (int) (uncompressed_offset - block_starts[i]));
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos >= block.length && !nextBlock()) {
+			return -1;
+		}
+		return block[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos >= block.length && !nextBlock()) {
+			return -1;
+		}
+		int n = Math.min(len, block.length - pos);
+		System.arraycopy(block, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads blocks until a non-empty one is found
+	 * @return false at end of file
+	 */
+	private boolean nextBlock() throws IOException {
+		do {
+			byte[] header = new byte[12];
+			if (!readFully(header, true)) {
+				return false;
+			}
+			int xlen = BgzfBlockCache.readBlockHeader(header);
+			byte[] extra = new byte[xlen];
+			readFully(extra, false);
+			int block_size = BgzfBlockCache.getBlockSize(extra);
+			byte[] rest = new byte[block_size - 12 - xlen];
+			readFully(rest, false);
+			block = BgzfBlockCache.inflate(rest, 0, rest.length - 8, rest, rest.length - 8);
+			pos = 0;
+			if (block.length > 0) {
+				if (n_blocks == block_starts.length) {
+					block_starts    = Arrays.copyOf(block_starts, n_blocks * 2);
+					block_addresses = Arrays.copyOf(block_addresses, n_blocks * 2);
+				}
+				block_starts[n_blocks]    = uncompressed_end;
+				block_addresses[n_blocks] = next_address;
+				n_blocks++;
+				uncompressed_end += block.length;
+			}
+			next_address += block_size;
+		} while (block.length == 0);
+		return true;
+	}
+
+	private boolean readFully(final byte[] b, final boolean eof_ok) throws IOException {
+		int n = 0;
+		while (n < b.length) {
+			int got = in.read(b, n, b.length - n);
+			if (got < 0) {
+				if (n == 0 && eof_ok) {
+					return false;
+				}
+				throw new EOFException("Truncated BGZF file!");
+			}
+			n += got;
+		}
+		return true;
+	}
+}
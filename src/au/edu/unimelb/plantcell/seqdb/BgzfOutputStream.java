@@ -0,0 +1,171 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (blocked gzip) data, equivalent to <code>bgzip</code>. The output is also a valid (multi-member) gzip file, so
+ * standard tools and HTTP clients can decompress it.
+ *
+ * May also be run to compress fasta files prior to ingest eg. <code>java au.edu.unimelb.plantcell.seqdb.BgzfOutputStream ABCD-SOAPdenovo-Trans-assembly.fa</code>
+ * writes <code>ABCD-SOAPdenovo-Trans-assembly.fa.gz</code> alongside the original.
+ *
+ * @author acassin
+ *
+ */
+public class BgzfOutputStream extends OutputStream {
+	/**
+	 * uncompressed bytes per block: slightly less than the maximum, so that incompressible data still fits within a block
+	 */
+	public final static int BLOCK_DATA_SIZE = 0xff00;
+
+	// the fixed part of every block header: gzip magic, deflate, FEXTRA, no mtime, unknown OS, 6 bytes of extra field holding the BC subfield
+	private final static byte[] HEADER = new byte[] { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0 };
+
+	// an empty block marks the end of the file
+	private final static byte[] EOF_BLOCK = new byte[] {
+		0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private final OutputStream out;
+	private final Deflater deflater;
+	private final byte[] buf = new byte[BLOCK_DATA_SIZE];
+	private final byte[] compressed = new byte[BgzfBlockCache.MAX_BLOCK_SIZE - HEADER.length - 2 - 8];
+	private int n = 0;
+	private boolean closed = false;
+
+	public BgzfOutputStream(final OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public BgzfOutputStream(final OutputStream out, final int level) {
+		assert(out != null);
+		this.out = out;
+		this.deflater = new Deflater(level, true);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if (n == buf.length) {
+			writeBlock();
+		}
+		buf[n++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (n == buf.length) {
+				writeBlock();
+			}
+			int n_copy = Math.min(len, buf.length - n);
+			System.arraycopy(b, off, buf, n, n_copy);
+			n   += n_copy;
+			off += n_copy;
+			len -= n_copy;
+		}
+	}
+
+	/**
+	 * Completes the current block (if any) and flushes the underlying stream
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (n > 0) {
+			writeBlock();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (n > 0) {
+				writeBlock();
+			}
+			out.write(EOF_BLOCK);
+			out.close();
+		} finally {
+			deflater.end();
+			closed = true;
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		deflater.reset();
+		deflater.setInput(buf, 0, n);
+		deflater.finish();
+		int clen = 0;
+		while (!deflater.finished() && clen < compressed.length) {
+			clen += deflater.deflate(compressed, clen, compressed.length - clen);
+		}
+		if (!deflater.finished()) {
+			throw new IOException("Block does not compress to "+compressed.length+" bytes!");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf, 0, n);
+		int block_size = HEADER.length + 2 + clen + 8;
+		out.write(HEADER);
+		writeShort(block_size - 1);
+		out.write(compressed, 0, clen);
+		writeInt((int) crc.getValue());
+		writeInt(n);
+		n = 0;
+	}
+
+	private void writeShort(final int v) throws IOException {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+	}
+
+	private void writeInt(final int v) throws IOException {
+		writeShort(v & 0xffff);
+		writeShort((v >>> 16) & 0xffff);
+	}
+
+	/**
+	 * Compresses each of the specified files to <code>name.gz</code>. The original file is not removed.
+	 */
+	public static void main(final String[] args) {
+		for (String path : args) {
+			File in_file  = new File(path);
+			File out_file = new File(path + ".gz");
+			try {
+				compress(in_file, out_file);
+				System.out.println("Wrote "+out_file.getAbsolutePath());
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+				System.exit(1);
+			}
+		}
+	}
+
+	public static void compress(final File in_file, final File out_file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(in_file));
+		try {
+			BgzfOutputStream out = new BgzfOutputStream(new BufferedOutputStream(new FileOutputStream(out_file)));
+			try {
+				byte[] b = new byte[BLOCK_DATA_SIZE];
+				int got;
+				while ((got = in.read(b)) >= 0) {
+					out.write(b, 0, got);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
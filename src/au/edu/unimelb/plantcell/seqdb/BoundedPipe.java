@@ -0,0 +1,193 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory pipe from one writing thread to one reading thread, holding at most a fixed number of chunks, so that a writer
+ * which is faster than the reader blocks rather than exhausting memory. Unlike <code>java.io.PipedInputStream</code>, either side
+ * may be used from any thread (eg. a pool) and a failure on one side is reported to the other, via {@link #abort(Throwable)},
+ * rather than leaving it blocked.
+ *
+ * @author acassin
+ *
+ */
+public class BoundedPipe {
+	private final static byte[] EOF = new byte[0];
+
+	private final BlockingQueue<byte[]> chunks;
+	private final int chunk_size;
+	private volatile Throwable failure;			// non-null once either side has aborted
+
+	private final OutputStream out = new OutputStream() {
+		private byte[] buf;			// allocated on first use: chunk_size is not yet set when this is created
+		private int pos;
+		private boolean closed;
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (buf == null || pos == buf.length) {
+				send();
+			}
+			buf[pos++] = (byte) b;
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (buf == null || pos == buf.length) {
+					send();
+				}
+				int n = Math.min(len, buf.length - pos);
+				System.arraycopy(b, off, buf, pos, n);
+				pos += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Sends any partly filled chunk to the reader
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (pos > 0) {
+				put(Arrays.copyOf(buf, pos));
+				pos = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				flush();
+				put(EOF);
+				closed = true;
+			}
+		}
+
+		private void send() throws IOException {
+			if (buf != null) {
+				put(buf);
+			}
+			buf = new byte[chunk_size];
+			pos = 0;
+		}
+	};
+
+	private final InputStream in = new InputStream() {
+		private byte[] chunk;
+		private int pos;
+
+		@Override
+		public int read() throws IOException {
+			if (!next()) {
+				return -1;
+			}
+			return chunk[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!next()) {
+				return -1;
+			}
+			int n = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (chunk != null) ? chunk.length - pos : 0;
+		}
+
+		/**
+		 * Ensures there are unread bytes in the current chunk, waiting for the writer if need be
+		 * @return false once the writer has closed the pipe and every byte has been read
+		 */
+		private boolean next() throws IOException {
+			while (chunk != EOF && (chunk == null || pos == chunk.length)) {
+				chunk = take();
+				pos = 0;
+			}
+			return (chunk != EOF);
+		}
+	};
+
+	/**
+	 * @param chunk_size bytes in each chunk passed from the writer to the reader
+	 * @param n_chunks chunks which may be waiting to be read before the writer blocks
+	 */
+	public BoundedPipe(final int chunk_size, final int n_chunks) {
+		assert(chunk_size > 0 && n_chunks > 0);
+		this.chunk_size = chunk_size;
+		this.chunks = new ArrayBlockingQueue<byte[]>(n_chunks);
+	}
+
+	/**
+	 * Returns the writing side of the pipe, which must be closed once all the data has been written. Not thread-safe.
+	 */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Returns the reading side of the pipe, which reports end of stream once the writer has closed the pipe. Not thread-safe.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Fails the pipe: any current or subsequent read or write (from either side) throws an <code>IOException</code> caused by <code>cause</code>.
+	 * Called by one side, when it cannot continue, so that the other does not wait forever.
+	 */
+	public void abort(final Throwable cause) {
+		if (failure == null) {
+			failure = cause;
+		}
+		chunks.clear();
+	}
+
+	private void put(final byte[] chunk) throws IOException {
+		try {
+			checkFailure();
+			while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted while writing to pipe");
+		}
+	}
+
+	private byte[] take() throws IOException {
+		try {
+			byte[] ret;
+			while ((ret = chunks.poll(100, TimeUnit.MILLISECONDS)) == null) {
+				checkFailure();
+			}
+			checkFailure();
+			return ret;
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted while reading from pipe");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		// a new exception each time, as callers (eg. BufferedWriter.close()) may add one as suppressed by another
+		if (failure != null) {
+			throw new IOException("Pipe aborted: "+failure, failure);
+		}
+	}
+}
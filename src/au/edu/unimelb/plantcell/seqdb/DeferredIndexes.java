@@ -0,0 +1,287 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
+
+/**
+ * Drops the secondary indexes of a dataset's SEQREF table before a bulk load and builds them again afterwards, since loading tens of
+ * millions of rows into an indexed table is much slower than loading them and then building each index once. The definition of each
+ * index (name, uniqueness and columns) is read from the database metadata before it is dropped, so any index created by hand is
+ * rebuilt as it was. The <code>(FASTAFILE_ID, SEQ_ID)</code> lookup index used by {@link Queries} is always built, if no index covers it.
+ *
+ * An index which cannot be dropped (eg. one needed by a foreign key) is kept and maintained during the load as usual. If the ingest
+ * fails, the dropped indexes must still be rebuilt, so each drop is logged with the statement which recreates it.
+ *
+ * @author acassin
+ *
+ */
+public class DeferredIndexes {
+	private final static String[] LOOKUP_COLUMNS = new String[] { "FASTAFILE_ID", "SEQ_ID" };
+	private final static int REPORT_SECONDS = Integer.getInteger("onekp.ingest.report.seconds", 10).intValue();
+
+	/**
+	 * The definition of an index, as needed to create it again
+	 */
+	public static class IndexDefinition {
+		private final String name;
+		private final boolean unique;
+		private final List<String> columns = new ArrayList<String>();		// in index order
+
+		public IndexDefinition(final String name, final boolean unique) {
+			assert(name != null);
+			this.name = name;
+			this.unique = unique;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public List<String> getColumns() {
+			return columns;
+		}
+
+		/**
+		 * Returns true if this index can be used to look up the specified columns ie. they are its leading columns, in order
+		 */
+		public boolean covers(final String[] cols) {
+			if (columns.size() < cols.length) {
+				return false;
+			}
+			for (int i=0; i<cols.length; i++) {
+				if (!columns.get(i).equalsIgnoreCase(cols[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public String getCreateSQL(final String table) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(unique ? "create unique index " : "create index ").append(name).append(" on ").append(table).append(" (");
+			for (int i=0; i<columns.size(); i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				sb.append(columns.get(i));
+			}
+			return sb.append(')').toString();
+		}
+
+		@Override
+		public String toString() {
+			return name+" "+columns;
+		}
+	}
+
+	private final Map<String,Object> props;
+	private final String table;
+	private final Logger logger;
+	private final List<IndexDefinition> dropped = new ArrayList<IndexDefinition>();
+
+	public DeferredIndexes(final EntityManager em, final DatasetDesignation dsd, final Logger logger) throws Exception {
+		assert(em != null && dsd != null && logger != null);
+		this.props = em.getEntityManagerFactory().getProperties();
+		this.table = dsd.getSeqRefTable();
+		this.logger = logger;
+	}
+
+	/**
+	 * Drops each secondary index of the table, remembering its definition for {@link #rebuild()}
+	 * @return the number of indexes dropped
+	 */
+	public int drop() throws SQLException {
+		Connection c = SequenceReferenceLoader.getConnection(props);
+		try {
+			boolean mysql = c.getMetaData().getURL().startsWith("jdbc:mysql:");
+			for (IndexDefinition idx : getSecondaryIndexes(c, table)) {
+				Statement st = c.createStatement();
+				try {
+					st.executeUpdate(mysql ? "alter table "+table+" drop index "+idx.getName() : "drop index "+idx.getName());
+					dropped.add(idx);
+					logger.warning("Dropped index "+idx+" on "+table+" until the load is complete. To restore it: "+idx.getCreateSQL(table));
+				} catch (SQLException sqle) {
+					logger.warning("Keeping index "+idx+" on "+table+", which cannot be dropped: "+sqle.getMessage());
+				} finally {
+					st.close();
+				}
+			}
+			return dropped.size();
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Builds each index dropped by {@link #drop()} which does not yet exist, and the lookup index if no index covers it, logging
+	 * progress as each is built. May be called again after a failure.
+	 */
+	public void rebuild() throws SQLException {
+		Connection c = SequenceReferenceLoader.getConnection(props);
+		try {
+			List<IndexDefinition> present = getSecondaryIndexes(c, table);
+			List<IndexDefinition> todo = new ArrayList<IndexDefinition>();
+			for (IndexDefinition idx : dropped) {
+				if (!hasIndex(present, idx.getName())) {
+					todo.add(idx);
+				}
+			}
+			if (!isCovered(present, LOOKUP_COLUMNS) && !isCovered(todo, LOOKUP_COLUMNS)) {
+				IndexDefinition lookup = new IndexDefinition(table+"_FASTA_SEQ", false);
+				lookup.getColumns().addAll(Arrays.asList(LOOKUP_COLUMNS));
+				todo.add(lookup);
+			}
+			for (int i=0; i<todo.size(); i++) {
+				build(c, todo.get(i), (i+1)+" of "+todo.size());
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Checks that the table has every index dropped by {@link #drop()} and the lookup index, as must be the case before the dataset is served
+	 * @throws SQLException if any is missing
+	 */
+	public void verify() throws SQLException {
+		Connection c = SequenceReferenceLoader.getConnection(props);
+		try {
+			List<IndexDefinition> present = getSecondaryIndexes(c, table);
+			List<String> missing = new ArrayList<String>();
+			for (IndexDefinition idx : dropped) {
+				if (!hasIndex(present, idx.getName())) {
+					missing.add(idx.toString());
+				}
+			}
+			if (!isCovered(present, LOOKUP_COLUMNS)) {
+				missing.add(Arrays.asList(LOOKUP_COLUMNS).toString());
+			}
+			if (missing.size() > 0) {
+				throw new SQLException(table+" is missing indexes: "+missing);
+			}
+			logger.info("Verified the indexes on "+table+": "+present);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Returns the indexes dropped by {@link #drop()}
+	 */
+	public List<IndexDefinition> getDropped() {
+		return new ArrayList<IndexDefinition>(dropped);
+	}
+
+	private void build(final Connection c, final IndexDefinition idx, final String progress) throws SQLException {
+		final String what = "index "+progress+" ("+idx+") on "+table;
+		final long t0 = System.currentTimeMillis();
+		logger.info("Building "+what);
+		// a single statement builds the index, so only the time taken so far can be reported
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "onekp-index-report");
+				t.setDaemon(true);
+				return t;
+			}
+
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				logger.info("Still building "+what+" after "+(System.currentTimeMillis() - t0) / 1000+" seconds");
+			}
+
+		}, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+		Statement st = c.createStatement();
+		try {
+			st.executeUpdate(idx.getCreateSQL(table));
+		} finally {
+			st.close();
+			reporter.shutdownNow();
+		}
+		logger.info("Built "+what+" in "+(System.currentTimeMillis() - t0) / 1000+" seconds");
+	}
+
+	private static boolean hasIndex(final List<IndexDefinition> l, final String name) {
+		for (IndexDefinition idx : l) {
+			if (idx.getName().equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isCovered(final List<IndexDefinition> l, final String[] cols) {
+		for (IndexDefinition idx : l) {
+			if (idx.covers(cols)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns each index of the table except that of the primary key
+	 */
+	static List<IndexDefinition> getSecondaryIndexes(final Connection c, final String table) throws SQLException {
+		DatabaseMetaData md = c.getMetaData();
+		List<String> pk = new ArrayList<String>();
+		ResultSet rs = md.getPrimaryKeys(c.getCatalog(), null, table);
+		try {
+			while (rs.next()) {
+				pk.add(rs.getString("COLUMN_NAME"));
+			}
+		} finally {
+			rs.close();
+		}
+
+		Map<String,IndexDefinition> indexes = new LinkedHashMap<String,IndexDefinition>();
+		rs = md.getIndexInfo(c.getCatalog(), null, table, false, true);
+		try {
+			while (rs.next()) {
+				String name = rs.getString("INDEX_NAME");
+				if (name == null || rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic) {
+					continue;
+				}
+				IndexDefinition idx = indexes.get(name);
+				if (idx == null) {
+					idx = new IndexDefinition(name, !rs.getBoolean("NON_UNIQUE"));
+					indexes.put(name, idx);
+				}
+				// rows are ordered by index and then ORDINAL_POSITION
+				idx.getColumns().add(rs.getString("COLUMN_NAME"));
+			}
+		} finally {
+			rs.close();
+		}
+
+		List<IndexDefinition> ret = new ArrayList<IndexDefinition>();
+		for (IndexDefinition idx : indexes.values()) {
+			boolean is_pk = idx.unique && idx.getColumns().size() == pk.size() && idx.covers(pk.toArray(new String[0]));
+			if (!is_pk && !idx.getName().equalsIgnoreCase("PRIMARY")) {
+				ret.add(idx);
+			}
+		}
+		return ret;
+	}
+}
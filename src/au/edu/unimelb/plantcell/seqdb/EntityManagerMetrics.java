@@ -0,0 +1,98 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * Counts the entity managers used by the services, each of which is held for a single request, so that
+ * the administrator can judge whether the connection pool is correctly sized (see <code>WEB-INF/resources.xml</code>).
+ *
+ * @author acassin
+ *
+ */
+public class EntityManagerMetrics {
+	private static EntityManagerMetrics singleton;
+
+	private final AtomicInteger in_use   = new AtomicInteger();
+	private final AtomicInteger peak     = new AtomicInteger();
+	private final AtomicLong    acquired = new AtomicLong();
+	private final AtomicLong    total_held_ns = new AtomicLong();
+	private final AtomicLong    max_held_ns   = new AtomicLong();
+
+	public static synchronized EntityManagerMetrics getInstance() {
+		if (singleton == null) {
+			singleton = new EntityManagerMetrics();
+		}
+		return singleton;
+	}
+
+	/**
+	 * Must be called when an entity manager is created for a request
+	 * @return the time of acquisition, which must be passed to {@link #released(long)}
+	 */
+	public long acquired() {
+		acquired.incrementAndGet();
+		int n = in_use.incrementAndGet();
+		int p;
+		while (n > (p = peak.get()) && !peak.compareAndSet(p, n)) {
+			// retry until the peak is at least n
+		}
+		return System.nanoTime();
+	}
+
+	public void released(final long acquired_at) {
+		in_use.decrementAndGet();
+		long held = System.nanoTime() - acquired_at;
+		total_held_ns.addAndGet(held);
+		long m;
+		while (held > (m = max_held_ns.get()) && !max_held_ns.compareAndSet(m, held)) {
+			// retry until the maximum is at least held
+		}
+	}
+
+	public int getInUse() {
+		return in_use.get();
+	}
+
+	public int getPeakInUse() {
+		return peak.get();
+	}
+
+	public long getAcquired() {
+		return acquired.get();
+	}
+
+	@Override
+	public String toString() {
+		long n = getAcquired();
+		return "Entity managers in use: "+getInUse()+" (peak "+getPeakInUse()+")\n"+
+			   "Entity managers acquired: "+n+"\n"+
+			   "Mean time held: "+(n > 0 ? (total_held_ns.get() / n / 1000) : 0)+" us (max "+(max_held_ns.get() / 1000)+" us)\n";
+	}
+
+	/**
+	 * Reports the state of the container's connection pool, if it provides the usual (tomcat-jdbc or commons-dbcp) statistics.
+	 * These are not part of the <code>DataSource</code> interface, so are looked up by name.
+	 */
+	public static String describeDataSource(final DataSource ds) {
+		if (ds == null) {
+			return "No datasource available.\n";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("Datasource: "+ds.getClass().getName()+"\n");
+		for (String getter : new String[] { "getNumActive", "getNumIdle", "getMaxActive", "getMaxTotal", "getWaitCount" }) {
+			try {
+				Method m = ds.getClass().getMethod(getter);
+				sb.append(getter.substring(3)+": "+m.invoke(ds)+"\n");
+			} catch (NoSuchMethodException nsme) {
+				// not provided by this pool implementation
+			} catch (Exception e) {
+				sb.append(getter.substring(3)+": unavailable ("+e.getMessage()+")\n");
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,214 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFileStatistics;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
+
+/**
+ * An immutable in-memory copy of the FASTAFILE table. The table has a few thousand rows which only change
+ * when <code>populateDatabase</code> is run, so rather than query it for every request the services load it once at deployment
+ * (see {@link au.edu.unimelb.plantcell.services.impl.Admin}) and search it here. It is indexed by (dataset label, sample ID, sequence type)
+ * and by path. The statistics recorded for each file at ingest (FASTAFILE_STATS) are loaded with it. Once a re-ingest is complete, {@link #reload(EntityManager)} must be called so that the new rows are visible.
+ *
+ * @author acassin
+ *
+ */
+public class FastaFileCatalog {
+	private final static Logger logger = Logger.getLogger("FastaFileCatalog");
+
+	private static volatile FastaFileCatalog current;
+
+	private final Map<String,FastaFile> by_sample;			// keyed by makeKey()
+	private final Map<String,List<FastaFile>> by_path;		// a path may be loaded into more than one dataset
+	private final Map<String,SampleIDSet> samples;			// keyed by dataset label
+	private final Map<Integer,FastaFileStatistics> stats;	// keyed by fasta file ID
+	private final int n_files;
+
+	private FastaFileCatalog(final List<FastaFile> files, final List<FastaFileStatistics> file_stats) {
+		assert(files != null && file_stats != null);
+		Map<String,FastaFile> sample_map = new HashMap<String,FastaFile>(files.size() * 2);
+		Map<String,List<FastaFile>> path_map = new HashMap<String,List<FastaFile>>(files.size() * 2);
+		Map<String,SampleIDSet> sample_sets = new HashMap<String,SampleIDSet>();
+		for (FastaFile ff : files) {
+			if (ff.getDesignation() == null) {
+				logger.warning("Ignoring fasta file without a dataset: "+ff.getPath());
+				continue;
+			}
+			SampleIDSet set = sample_sets.get(ff.getDesignation().getLabel());
+			if (set == null) {
+				set = new SampleIDSet();
+				sample_sets.put(ff.getDesignation().getLabel(), set);
+			}
+			set.add(ff.getSampleID());
+			String key = makeKey(ff.getDesignation().getLabel(), ff.getSampleID(), ff.getSequenceType());
+			if (!sample_map.containsKey(key)) {
+				sample_map.put(key, ff);
+			} else {
+				logger.warning("Multiple fasta files for "+key+", using "+sample_map.get(key).getPath());
+			}
+			List<FastaFile> l = path_map.get(ff.getPath());
+			if (l == null) {
+				l = new ArrayList<FastaFile>(1);
+				path_map.put(ff.getPath(), l);
+			}
+			l.add(ff);
+		}
+		for (String path : path_map.keySet()) {
+			path_map.put(path, Collections.unmodifiableList(path_map.get(path)));
+		}
+		Map<Integer,FastaFileStatistics> stats_map = new HashMap<Integer,FastaFileStatistics>(file_stats.size() * 2);
+		for (FastaFileStatistics ffs : file_stats) {
+			if (ffs.getFastaFile() != null) {
+				stats_map.put(Integer.valueOf(ffs.getFastaFile().getID()), ffs);
+			}
+		}
+		n_files   = files.size();
+		by_sample = Collections.unmodifiableMap(sample_map);
+		by_path   = Collections.unmodifiableMap(path_map);
+		samples   = Collections.unmodifiableMap(sample_sets);
+		stats     = Collections.unmodifiableMap(stats_map);
+	}
+
+	/**
+	 * Returns the current catalog, loading it from the database if this has not yet been done
+	 * @param em used only if the catalog must be loaded
+	 * @return
+	 */
+	public static FastaFileCatalog getInstance(final EntityManager em) {
+		FastaFileCatalog ret = current;
+		if (ret != null) {
+			return ret;
+		}
+		synchronized (FastaFileCatalog.class) {
+			if (current == null) {
+				current = load(em);
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Replaces the current catalog with the FASTAFILE table as it is now. Requests in progress continue to
+	 * use the catalog they started with.
+	 */
+	public static synchronized FastaFileCatalog reload(final EntityManager em) {
+		current = load(em);
+		return current;
+	}
+
+	/**
+	 * Discards the current catalog so that it is re-loaded on next use eg. after fasta files are persisted in this JVM
+	 */
+	public static synchronized void invalidate() {
+		current = null;
+	}
+
+	private static FastaFileCatalog load(final EntityManager em) {
+		assert(em != null);
+		TypedQuery<FastaFile> q = em.createQuery("select ff from FastaFile ff", FastaFile.class);
+		List<FastaFile> files = q.getResultList();
+		List<FastaFileStatistics> file_stats;
+		try {
+			file_stats = em.createQuery("select s from FastaFileStatistics s", FastaFileStatistics.class).getResultList();
+		} catch (PersistenceException pe) {
+			// a database populated before statistics were recorded: summaries count the SEQREF rows instead
+			logger.warning("Unable to load fasta file statistics: "+pe.getMessage());
+			file_stats = Collections.emptyList();
+		}
+		FastaFileCatalog ret = new FastaFileCatalog(files, file_stats);
+		logger.info("Loaded catalog of "+files.size()+" fasta files ("+file_stats.size()+" with statistics).");
+		return ret;
+	}
+
+	private static String makeKey(final String dsd_label, final String onekp_sample_id, final SequenceType st) {
+		return dsd_label + '\t' + onekp_sample_id + '\t' + st;
+	}
+
+	/**
+	 * Returns the fasta file of the given type for a sample within the specified dataset
+	 * @return null if no such file is known
+	 */
+	public FastaFile find(final String dsd_label, final String onekp_sample_id, final SequenceType st) {
+		assert(dsd_label != null && onekp_sample_id != null && st != null);
+		return by_sample.get(makeKey(dsd_label, onekp_sample_id, st));
+	}
+
+	/**
+	 * Returns the fasta file with the specified path (as persisted ie. absolute) within the dataset
+	 * @return null if no such file is known
+	 */
+	public FastaFile findByPath(final String path, final String dsd_label) {
+		assert(path != null && dsd_label != null);
+		for (FastaFile ff : findByPath(path)) {
+			if (dsd_label.equals(ff.getDesignation().getLabel())) {
+				return ff;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns all fasta files (from any dataset) with the specified path
+	 * @return an empty list if no such file is known
+	 */
+	public List<FastaFile> findByPath(final String path) {
+		assert(path != null);
+		List<FastaFile> ret = by_path.get(path);
+		if (ret == null) {
+			return Collections.emptyList();
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the labels of all datasets which provide sequences of the given type for the sample
+	 * @return labels in ascending order
+	 */
+	public List<String> getDatasetLabels(final String onekp_sample_id, final SequenceType st) {
+		TreeSet<String> ret = new TreeSet<String>();
+		for (FastaFile ff : by_sample.values()) {
+			if (ff.getSequenceType() == st && onekp_sample_id.equals(ff.getSampleID())) {
+				ret.add(ff.getDesignation().getLabel());
+			}
+		}
+		return new ArrayList<String>(ret);
+	}
+
+	/**
+	 * Returns true if the dataset has at least one fasta file for the sample ID starting at <code>offset</code> within the given ID.
+	 * Does not allocate.
+	 */
+	public boolean isKnownSample(final String dsd_label, final CharSequence id, final int offset) {
+		assert(dsd_label != null);
+		SampleIDSet set = samples.get(dsd_label);
+		return set != null && set.contains(id, offset);
+	}
+
+	/**
+	 * Returns the statistics recorded when the fasta file was ingested
+	 * @return null if none were recorded
+	 */
+	public FastaFileStatistics getStatistics(final FastaFile ff) {
+		assert(ff != null);
+		return stats.get(Integer.valueOf(ff.getID()));
+	}
+
+	/**
+	 * Returns the number of fasta files in the catalog
+	 */
+	public int size() {
+		return n_files;
+	}
+}
@@ -0,0 +1,133 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Columns added to the FASTAFILE table since it was first deployed, and the FASTAFILE_STATS table which has been added alongside it. The schema
+ * is not built by OpenJPA (<code>SynchronizeMappings</code> is disabled in persistence.xml) so an existing database must be altered before the
+ * new code can use these tables: otherwise every query of {@link au.edu.unimelb.plantcell.jpa.dao.FastaFile} fails, as does the ingest of
+ * {@link au.edu.unimelb.plantcell.jpa.dao.FastaFileStatistics}. <code>populateDatabase</code> checks the schema before it changes anything
+ * (so before <code>Queries.emptyTables()</code> or {@link IncrementalIngest} query the tables) and, with <code>-Donekp.schema.upgrade=true</code>,
+ * makes the changes itself. The statements required are also logged (by <code>populateDatabase</code>, {@link IncrementalIngest}
+ * and at deployment) so that they may be run by hand.
+ *
+ * @author acassin
+ *
+ */
+public class FastaFileSchema {
+	public final static String TABLE = "FASTAFILE";
+	public final static String STATS_TABLE = "FASTAFILE_STATS";
+
+	/**
+	 * Each added column and the statement which adds it to an existing table
+	 */
+	private final static String[][] ADDED_COLUMNS = new String[][] {
+		{ "GZIP_PATH", "alter table FASTAFILE add column GZIP_PATH varchar(255)" },
+		// the fingerprint of each file as ingested, for incremental re-ingest: zero (ie. unknown) for existing rows, so those files are re-indexed
+		{ "FILE_SIZE",     "alter table FASTAFILE add column FILE_SIZE bigint default 0 not null" },
+		{ "LAST_MODIFIED", "alter table FASTAFILE add column LAST_MODIFIED bigint default 0 not null" },
+		{ "CONTENT_HASH",  "alter table FASTAFILE add column CONTENT_HASH varchar(255)" },
+	};
+
+	/**
+	 * The statements which create FASTAFILE_STATS, as OpenJPA maps it (FASTA_ID is the ID of the FASTAFILE row). Files ingested before
+	 * the table existed have no statistics until they are ingested again.
+	 */
+	private final static String[] CREATE_STATS = new String[] {
+		"create table FASTAFILE_STATS (ID integer not null, FASTA_ID integer, N_RECORDS integer, N_RESIDUES bigint, "+
+			"MIN_LENGTH integer, MAX_LENGTH integer, N50 integer, primary key (ID))",
+		"create index I_FSTFTTS_FASTA on FASTAFILE_STATS (FASTA_ID)"
+	};
+
+	/**
+	 * Returns the statements needed to add the missing columns to the FASTAFILE table, and the missing FASTAFILE_STATS table
+	 * @return an empty list if the schema is up to date or the FASTAFILE table does not exist
+	 */
+	public static List<String> getUpgradeSQL(final Connection c) throws SQLException {
+		assert(c != null);
+		List<String> existing = new ArrayList<String>();
+		DatabaseMetaData md = c.getMetaData();
+		ResultSet rs = md.getColumns(c.getCatalog(), null, TABLE, null);
+		try {
+			while (rs.next()) {
+				existing.add(rs.getString("COLUMN_NAME").toUpperCase(Locale.US));
+			}
+		} finally {
+			rs.close();
+		}
+		List<String> ret = new ArrayList<String>();
+		if (existing.isEmpty()) {
+			return ret;
+		}
+		for (String[] col : ADDED_COLUMNS) {
+			if (!existing.contains(col[0])) {
+				ret.add(col[1]);
+			}
+		}
+		if (!hasTable(md, c.getCatalog(), STATS_TABLE)) {
+			ret.addAll(Arrays.asList(CREATE_STATS));
+		}
+		return ret;
+	}
+
+	private static boolean hasTable(final DatabaseMetaData md, final String catalog, final String table) throws SQLException {
+		ResultSet rs = md.getTables(catalog, null, table, null);
+		try {
+			return rs.next();
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Checks that the FASTAFILE table has every mapped column and that FASTAFILE_STATS exists, making any changes needed if <code>upgrade</code> is true
+	 * @throws SQLException if a change is needed and <code>upgrade</code> is false (the message gives the statements to run) or cannot be made
+	 */
+	public static void check(final Connection c, final boolean upgrade, final Logger logger) throws SQLException {
+		List<String> todo = getUpgradeSQL(c);
+		if (todo.isEmpty()) {
+			return;
+		}
+		if (!upgrade) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("The ").append(TABLE).append(" and ").append(STATS_TABLE).append(" tables predate this version: run with -Donekp.schema.upgrade=true, or apply:");
+			for (String sql : todo) {
+				sb.append("\n\t").append(sql).append(';');
+			}
+			throw new SQLException(sb.toString());
+		}
+		Statement st = c.createStatement();
+		try {
+			for (String sql : todo) {
+				logger.info("Upgrading schema: "+sql);
+				st.executeUpdate(sql);
+			}
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	 * As for {@link #check(Connection, boolean, Logger)}, using a new connection to the database of the entity manager
+	 */
+	public static void check(final EntityManager em, final boolean upgrade, final Logger logger) throws SQLException {
+		assert(em != null);
+		Connection c = SequenceReferenceLoader.getConnection(em.getEntityManagerFactory().getProperties());
+		try {
+			check(c, upgrade, logger);
+		} finally {
+			c.close();
+		}
+	}
+}
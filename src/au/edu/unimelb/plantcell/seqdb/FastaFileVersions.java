@@ -0,0 +1,118 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+
+/**
+ * Detects that a fasta file has been replaced since the server first read it (eg. by an incremental re-ingest) and discards whatever was
+ * cached from the old file: its opened {@link FastaOffsetIndex}, its regions in the {@link FastaRegionPool} and its blocks in the
+ * {@link BgzfBlockCache}, all of which would otherwise locate sequences at their old offsets. A re-ingested file keeps its FASTAFILE_ID,
+ * so the ID cannot tell the versions apart: the version of a file is its size and modification time, and the modification time of its
+ * sidecar index (which the ingest rewrites once the file has been loaded).
+ *
+ * {@link Queries} checks the file before each lookup, and the response cache checks the files of a response (see {@link Snapshot})
+ * before serving it, so that a re-ingested file is served correctly without <code>POST /admin/reload</code>. That is still needed for
+ * the catalog to see added and removed files.
+ *
+ * @author acassin
+ *
+ */
+public class FastaFileVersions {
+	private final static Logger logger = Logger.getLogger("FastaFileVersions");
+
+	/**
+	 * the version of each file (by path) when last checked
+	 */
+	private final static ConcurrentHashMap<String,Version> seen = new ConcurrentHashMap<String,Version>();
+
+	/**
+	 * The size and modification time of a fasta file, and the modification time of its index (zero if there is none)
+	 */
+	public static class Version {
+		private final long size, last_modified, index_modified;
+
+		public Version(final File fasta_file) {
+			assert(fasta_file != null);
+			this.size           = fasta_file.length();
+			this.last_modified  = fasta_file.lastModified();
+			this.index_modified = FastaOffsetIndex.getIndexFile(fasta_file).lastModified();
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Version)) {
+				return false;
+			}
+			Version v = (Version) o;
+			return (size == v.size && last_modified == v.last_modified && index_modified == v.index_modified);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (size ^ last_modified ^ index_modified);
+		}
+
+		@Override
+		public String toString() {
+			return size+" bytes, modified "+last_modified+", index modified "+index_modified;
+		}
+	}
+
+	/**
+	 * The versions of the fasta files which a response was read from, so that a cached copy of it can be checked before it is served
+	 */
+	public static class Snapshot {
+		private final FastaFile[] files;
+		private final Version[]   versions;
+
+		private Snapshot(final Collection<FastaFile> files) {
+			this.files    = files.toArray(new FastaFile[0]);
+			this.versions = new Version[this.files.length];
+			for (int i=0; i<this.files.length; i++) {
+				versions[i] = check(this.files[i]);
+			}
+		}
+
+		/**
+		 * Returns true if none of the files has changed since the snapshot was taken
+		 */
+		public boolean isCurrent() {
+			for (int i=0; i<files.length; i++) {
+				if (!check(files[i]).equals(versions[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the current version of the file, first discarding everything cached from it if it has changed since it was last checked
+	 */
+	public static Version check(final FastaFile ff) {
+		assert(ff != null);
+		File f = new File(ff.getPath());
+		Version now = new Version(f);
+		Version was = seen.putIfAbsent(ff.getPath(), now);
+		// only the thread which records the change need discard the old state
+		if (was != null && !was.equals(now) && seen.replace(ff.getPath(), was, now)) {
+			logger.warning(ff.getPath()+" has changed ("+was+" is now "+now+"): discarding its cached index, regions and blocks.");
+			FastaOffsetIndex.invalidate(f);
+			FastaRegionPool.getInstance().invalidate(ff.getID());
+			BgzfBlockCache.getInstance().invalidate(ff.getID());
+		}
+		return now;
+	}
+
+	/**
+	 * Returns the current version of each file, to be checked by {@link Snapshot#isCurrent()} once the files have been read
+	 */
+	public static Snapshot snapshot(final Collection<FastaFile> files) {
+		assert(files != null);
+		return new Snapshot(files);
+	}
+}
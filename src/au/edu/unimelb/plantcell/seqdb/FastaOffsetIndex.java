@@ -0,0 +1,677 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReference;
+
+/**
+ * A binary index, stored alongside each FASTA file, which maps sequence ID's to the byte offset and length of
+ * each record. It holds the same information as the <code>K*_SEQREF</code> tables, but as the FASTA files never change
+ * once loaded, a lookup can be done by binary search over a memory-mapped copy without a database round trip.
+ *
+ * The index is written by {@link FastaPersistor} during ingest, using a {@link Writer}. Layout (all integers big-endian):
+ * <pre>
+ *   magic (8 bytes: 1KPIDX03), number of records (int), reserved (int)
+ *   per record, sorted by ID: start (long), length (int), ID offset into heap (long), ID length (int),
+ *                             header length (int), line bases (int), line width (int)
+ *   heap of US-ASCII sequence ID's
+ * </pre>
+ * The last three fields describe the layout of the record (see {@link SequenceReference}), so that the offset of any residue can be computed.
+ * Indexes with a different magic (eg. from an older version) are ignored, in the same way as a missing index.
+ *
+ * The index of a file with tens of millions of records exceeds 2GB, which is more than a single mapping can hold, so the index is mapped
+ * in segments of <code>SEGMENT_SIZE</code> bytes and all offsets into it are longs.
+ *
+ * @author acassin
+ *
+ */
+public class FastaOffsetIndex {
+	public final static String SUFFIX = ".1kpidx";
+
+	private final static byte[] MAGIC = "1KPIDX03".getBytes(Charset.forName("US-ASCII"));
+	private final static int HEADER_SIZE = 16;
+	private final static int RECORD_SIZE = 36;
+	private final static int SEGMENT_SIZE = 1024 * 1024 * 1024;
+	private final static Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * opened indexes, keyed by fasta file path. Failed opens are not cached so that an index built
+	 * after startup will be picked up.
+	 */
+	private final static ConcurrentHashMap<String,FastaOffsetIndex> open_indexes = new ConcurrentHashMap<String,FastaOffsetIndex>();
+
+	private final MappedByteBuffer[] segments;		// segment i maps the bytes from i * segment_size
+	private final long segment_size;
+	private final int n;
+	private final long heap_start;
+
+	private FastaOffsetIndex(final MappedByteBuffer[] segments, final int segment_size, final long size) throws IOException {
+		assert(segments != null && segment_size >= 8);
+		this.segments = segments;
+		this.segment_size = segment_size;
+		if (size < HEADER_SIZE) {
+			throw new IOException("Truncated sequence index!");
+		}
+		for (int i=0; i<MAGIC.length; i++) {
+			if (getByte(i) != MAGIC[i]) {
+				throw new IOException("Not a sequence index (bad magic)!");
+			}
+		}
+		this.n = getInt(MAGIC.length);
+		this.heap_start = HEADER_SIZE + ((long) n) * RECORD_SIZE;
+		if (n < 0 || heap_start > size) {
+			throw new IOException("Corrupt sequence index: "+n+" records");
+		}
+	}
+
+	/**
+	 * Returns the sidecar index file for the specified fasta file (which need not exist)
+	 */
+	public static File getIndexFile(final File fasta_file) {
+		return new File(fasta_file.getAbsolutePath() + SUFFIX);
+	}
+
+	/**
+	 * Returns the index for the specified fasta file or null if no usable index is available (missing or older than the fasta file).
+	 * Callers must fall back to the database when null is returned. The age of the index is checked only when it is first opened: once a
+	 * re-ingest has rewritten the file, the index is discarded by {@link FastaFileVersions#check(au.edu.unimelb.plantcell.jpa.dao.FastaFile)},
+	 * which must be called before each lookup.
+	 *
+	 * @param fasta_file
+	 * @return
+	 */
+	public static FastaOffsetIndex getInstance(final File fasta_file) {
+		assert(fasta_file != null);
+		String key = fasta_file.getAbsolutePath();
+		FastaOffsetIndex ret = open_indexes.get(key);
+		if (ret != null) {
+			return ret;
+		}
+		File idx = getIndexFile(fasta_file);
+		if (!idx.canRead() || idx.lastModified() < fasta_file.lastModified()) {
+			return null;
+		}
+		try {
+			ret = open(idx);
+			FastaOffsetIndex existing = open_indexes.putIfAbsent(key, ret);
+			return (existing != null) ? existing : ret;
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Forgets all opened indexes eg. after a re-ingest has rebuilt them
+	 */
+	public static void clearCache() {
+		open_indexes.clear();
+	}
+
+	/**
+	 * Forgets the opened index of the specified fasta file eg. because the file has changed
+	 */
+	public static void invalidate(final File fasta_file) {
+		open_indexes.remove(fasta_file.getAbsolutePath());
+	}
+
+	public static FastaOffsetIndex open(final File index_file) throws IOException {
+		return open(index_file, SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the index, mapping it in segments of the specified size (in bytes)
+	 */
+	public static FastaOffsetIndex open(final File index_file, final int segment_size) throws IOException {
+		assert(index_file != null && segment_size >= 8);
+		RandomAccessFile raf = new RandomAccessFile(index_file, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size();
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + segment_size - 1) / segment_size)];
+			for (int i=0; i<segments.length; i++) {
+				long pos = ((long) i) * segment_size;
+				segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(segment_size, size - pos));
+			}
+			return new FastaOffsetIndex(segments, segment_size, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes an index for the specified references, replacing any existing index. The index is written to a temporary file first,
+	 * so that readers never see a partial index.
+	 *
+	 * @param fasta_file the file which the references refer to
+	 * @param refs must not contain duplicate ID's
+	 * @throws IOException
+	 */
+	public static void write(final File fasta_file, final List<SequenceReference> refs) throws IOException {
+		assert(fasta_file != null && refs != null);
+		Writer w = new Writer(fasta_file);
+		try {
+			for (SequenceReference sr : refs) {
+				w.add(sr);
+			}
+			w.finish();
+		} finally {
+			w.abandon();
+		}
+	}
+
+	/**
+	 * Builds an index as a fasta file is parsed, without keeping an object per record. Entries are held in parallel arrays until
+	 * <code>onekp.ingest.index.records</code> (default 262144) have been added, when they are sorted by ID and spilled to a temporary
+	 * file beside the index. {@link #finish()} merges the spilled runs into the index, so memory use is bounded however many records
+	 * the file has.
+	 */
+	public static class Writer {
+		private final static int RUN_RECORDS = Integer.getInteger("onekp.ingest.index.records", 256 * 1024).intValue();
+
+		private final File fasta_file;
+		private final int run_records;
+		private final List<File> runs = new ArrayList<File>();
+		private int total;
+
+		// the current run, in the order added
+		private long[] starts;
+		private int[] lengths, header_lengths, line_bases, line_widths, id_offsets, id_lengths;
+		private byte[] ids = new byte[64 * 1024];
+		private int n, ids_used;
+
+		public Writer(final File fasta_file) {
+			this(fasta_file, RUN_RECORDS);
+		}
+
+		/**
+		 * @param run_records the number of entries held in memory before they are spilled
+		 */
+		public Writer(final File fasta_file, final int run_records) {
+			assert(fasta_file != null && run_records > 0);
+			this.fasta_file = fasta_file;
+			this.run_records = run_records;
+			allocate(Math.min(1024, run_records));
+		}
+
+		public void add(final SequenceReference sr) throws IOException {
+			assert(sr != null);
+			if (n == run_records) {
+				spill();
+			}
+			if (n == starts.length) {
+				allocate(Math.min(n * 2, run_records));
+			}
+			byte[] id = sr.getSequenceID().getBytes(US_ASCII);
+			if (ids_used + id.length > ids.length) {
+				ids = Arrays.copyOf(ids, Math.max(ids.length * 2, ids_used + id.length));
+			}
+			System.arraycopy(id, 0, ids, ids_used, id.length);
+			starts[n]         = sr.getStart();
+			lengths[n]        = sr.getLength();
+			header_lengths[n] = sr.getHeaderLength();
+			line_bases[n]     = sr.getLineBases();
+			line_widths[n]    = sr.getLineWidth();
+			id_offsets[n]     = ids_used;
+			id_lengths[n]     = id.length;
+			ids_used += id.length;
+			n++;
+			total++;
+		}
+
+		/**
+		 * Writes the index, replacing any existing index. The entries must not contain duplicate ID's.
+		 */
+		public void finish() throws IOException {
+			File idx = getIndexFile(fasta_file);
+			File tmp = new File(idx.getAbsolutePath()+".tmp");
+			try {
+				if (runs.isEmpty()) {
+					writeSorted(tmp);
+				} else {
+					spill();
+					merge(tmp);
+				}
+			} finally {
+				abandon();
+			}
+			if (idx.exists() && !idx.delete()) {
+				throw new IOException("Unable to replace "+idx.getAbsolutePath());
+			}
+			if (!tmp.renameTo(idx)) {
+				throw new IOException("Unable to rename "+tmp.getAbsolutePath()+" to "+idx.getAbsolutePath());
+			}
+		}
+
+		/**
+		 * Deletes any spilled runs eg. because parsing has failed. The index is not written.
+		 */
+		public void abandon() {
+			for (File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+		}
+
+		private void allocate(final int size) {
+			starts         = (starts == null) ? new long[size] : Arrays.copyOf(starts, size);
+			lengths        = (lengths == null) ? new int[size] : Arrays.copyOf(lengths, size);
+			header_lengths = (header_lengths == null) ? new int[size] : Arrays.copyOf(header_lengths, size);
+			line_bases     = (line_bases == null) ? new int[size] : Arrays.copyOf(line_bases, size);
+			line_widths    = (line_widths == null) ? new int[size] : Arrays.copyOf(line_widths, size);
+			id_offsets     = (id_offsets == null) ? new int[size] : Arrays.copyOf(id_offsets, size);
+			id_lengths     = (id_lengths == null) ? new int[size] : Arrays.copyOf(id_lengths, size);
+		}
+
+		/**
+		 * Writes the current run, sorted by ID, to a temporary file and empties it
+		 */
+		private void spill() throws IOException {
+			int[] order = sort();
+			File run = File.createTempFile(fasta_file.getName()+".", ".run", getIndexFile(fasta_file).getAbsoluteFile().getParentFile());
+			runs.add(run);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+			try {
+				out.writeInt(n);
+				for (int i : order) {
+					out.writeLong(starts[i]);
+					out.writeInt(lengths[i]);
+					out.writeInt(header_lengths[i]);
+					out.writeInt(line_bases[i]);
+					out.writeInt(line_widths[i]);
+					out.writeInt(id_lengths[i]);
+					out.write(ids, id_offsets[i], id_lengths[i]);
+				}
+			} finally {
+				out.close();
+			}
+			n = 0;
+			ids_used = 0;
+		}
+
+		/**
+		 * Writes the index from the current run alone, when nothing has been spilled
+		 */
+		private void writeSorted(final File tmp) throws IOException {
+			int[] order = sort();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+			try {
+				writeHeader(out, n);
+				long heap_offset = 0;
+				for (int i : order) {
+					writeRecord(out, starts[i], lengths[i], heap_offset, id_lengths[i], header_lengths[i], line_bases[i], line_widths[i]);
+					heap_offset += id_lengths[i];
+				}
+				for (int i : order) {
+					out.write(ids, id_offsets[i], id_lengths[i]);
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Merges the spilled runs into the index. The ID's are written to a second temporary file, which is appended to the index as its heap.
+		 */
+		private void merge(final File tmp) throws IOException {
+			File heap = new File(tmp.getAbsolutePath()+".heap");
+			PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+
+				@Override
+				public int compare(final Run a, final Run b) {
+					return compareBytes(a.id, 0, a.id.length, b.id, 0, b.id.length);
+				}
+
+			});
+			List<Run> open = new ArrayList<Run>();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+			OutputStream heap_out = new BufferedOutputStream(new FileOutputStream(heap), 64 * 1024);
+			try {
+				for (File f : runs) {
+					Run r = new Run(f);
+					open.add(r);
+					if (r.next()) {
+						queue.add(r);
+					}
+				}
+				writeHeader(out, total);
+				long heap_offset = 0;
+				while (!queue.isEmpty()) {
+					Run r = queue.poll();
+					writeRecord(out, r.start, r.length, heap_offset, r.id.length, r.header_length, r.line_bases, r.line_width);
+					heap_out.write(r.id);
+					heap_offset += r.id.length;
+					if (r.next()) {
+						queue.add(r);
+					}
+				}
+				heap_out.close();
+				InputStream in = new FileInputStream(heap);
+				try {
+					byte[] buf = new byte[64 * 1024];
+					int got;
+					while ((got = in.read(buf)) >= 0) {
+						out.write(buf, 0, got);
+					}
+				} finally {
+					in.close();
+				}
+			} finally {
+				for (Run r : open) {
+					r.close();
+				}
+				heap_out.close();
+				out.close();
+				heap.delete();
+			}
+		}
+
+		/**
+		 * Returns the positions of the current run in ID order (a merge sort of positions, as the entries are held in parallel arrays)
+		 */
+		private int[] sort() {
+			int[] order = new int[n];
+			int[] merged = new int[n];
+			for (int i=0; i<n; i++) {
+				order[i] = i;
+			}
+			for (int width=1; width<n; width *= 2) {
+				for (int lo=0; lo<n; lo += 2 * width) {
+					int mid = Math.min(lo + width, n);
+					int hi  = Math.min(lo + 2 * width, n);
+					int i = lo, j = mid, k = lo;
+					while (i < mid && j < hi) {
+						merged[k++] = (compare(order[j], order[i]) < 0) ? order[j++] : order[i++];
+					}
+					while (i < mid) {
+						merged[k++] = order[i++];
+					}
+					while (j < hi) {
+						merged[k++] = order[j++];
+					}
+				}
+				int[] t = order;
+				order = merged;
+				merged = t;
+			}
+			return order;
+		}
+
+		private int compare(final int a, final int b) {
+			return compareBytes(ids, id_offsets[a], id_lengths[a], ids, id_offsets[b], id_lengths[b]);
+		}
+	}
+
+	/**
+	 * A run spilled by a {@link Writer}, read an entry at a time
+	 */
+	private static class Run {
+		private final DataInputStream in;
+		private int remaining;
+
+		long start;
+		int length, header_length, line_bases, line_width;
+		byte[] id;
+
+		Run(final File f) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+			remaining = in.readInt();
+		}
+
+		/**
+		 * Reads the next entry
+		 * @return false if the run is exhausted
+		 */
+		boolean next() throws IOException {
+			if (remaining < 1) {
+				return false;
+			}
+			remaining--;
+			start         = in.readLong();
+			length        = in.readInt();
+			header_length = in.readInt();
+			line_bases    = in.readInt();
+			line_width    = in.readInt();
+			id = new byte[in.readInt()];
+			in.readFully(id);
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static void writeHeader(final DataOutputStream out, final int n) throws IOException {
+		out.write(MAGIC);
+		out.writeInt(n);
+		out.writeInt(0);
+	}
+
+	private static void writeRecord(final DataOutputStream out, final long start, final int length, final long heap_offset, final int id_len,
+			final int header_length, final int line_bases, final int line_width) throws IOException {
+		out.writeLong(start);
+		out.writeInt(length);
+		out.writeLong(heap_offset);
+		out.writeInt(id_len);
+		out.writeInt(header_length);
+		out.writeInt(line_bases);
+		out.writeInt(line_width);
+	}
+
+	/**
+	 * Compares two ID's as unsigned bytes (the same order as <code>String.compareTo()</code>, as ID's are US-ASCII)
+	 */
+	private static int compareBytes(final byte[] a, final int a_off, final int a_len, final byte[] b, final int b_off, final int b_len) {
+		int len = Math.min(a_len, b_len);
+		for (int j=0; j<len; j++) {
+			int x = a[a_off + j] & 0xff;
+			int y = b[b_off + j] & 0xff;
+			if (x != y) {
+				return x - y;
+			}
+		}
+		return a_len - b_len;
+	}
+
+	/**
+	 * Returns the number of sequences in the index
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Binary search for the specified sequence ID
+	 *
+	 * @param id
+	 * @return the index of the record or -1 if not present
+	 */
+	public int find(final String id) {
+		assert(id != null);
+		byte[] key = id.getBytes(US_ASCII);
+		int lo = 0;
+		int hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareID(mid, key);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the range of records whose ID starts with the specified prefix. As the records are sorted by ID, the matches
+	 * are contiguous and are found by two binary searches, no matter how many there are.
+	 * 
+	 * @param prefix
+	 * @return two element array: the first matching record and one past the last matching record (equal if there are no matches)
+	 */
+	public int[] findPrefixRange(final String prefix) {
+		assert(prefix != null);
+		byte[] key = prefix.getBytes(US_ASCII);
+		// first record >= prefix
+		int lo = 0;
+		int hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareID(mid, key) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int from = lo;
+		// first record after from which does not start with the prefix
+		hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (comparePrefix(mid, key) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return new int[] { from, lo };
+	}
+	
+	public long getStart(final int i) {
+		return getLong(recordOffset(i));
+	}
+
+	public int getLength(final int i) {
+		return getInt(recordOffset(i) + 8);
+	}
+
+	/**
+	 * Returns the number of bytes in the definition line of the i'th record (including the line terminator)
+	 */
+	public int getHeaderLength(final int i) {
+		return getInt(recordOffset(i) + 24);
+	}
+	
+	/**
+	 * Returns the number of residues per line of the i'th record or zero if the lines vary in length
+	 */
+	public int getLineBases(final int i) {
+		return getInt(recordOffset(i) + 28);
+	}
+	
+	/**
+	 * Returns the number of bytes per line of the i'th record (including the line terminator) or zero if the lines vary in length
+	 */
+	public int getLineWidth(final int i) {
+		return getInt(recordOffset(i) + 32);
+	}
+	
+	public String getSequenceID(final int i) {
+		long r = recordOffset(i);
+		byte[] id = new byte[getInt(r + 20)];
+		long id_start = heap_start + getLong(r + 12);
+		for (int j=0; j<id.length; j++) {
+			id[j] = getByte(id_start + j);
+		}
+		return new String(id, US_ASCII);
+	}
+
+	private long recordOffset(final int i) {
+		assert(i >= 0 && i < n);
+		return HEADER_SIZE + ((long) i) * RECORD_SIZE;
+	}
+
+	private byte getByte(final long pos) {
+		return segments[(int) (pos / segment_size)].get((int) (pos % segment_size));
+	}
+
+	/**
+	 * Returns the big-endian int at the specified offset, which may span two segments
+	 */
+	private int getInt(final long pos) {
+		MappedByteBuffer seg = segments[(int) (pos / segment_size)];
+		int off = (int) (pos % segment_size);
+		if (off + 4 <= seg.capacity()) {
+			return seg.getInt(off);
+		}
+		int ret = 0;
+		for (int i=0; i<4; i++) {
+			ret = (ret << 8) | (getByte(pos + i) & 0xff);
+		}
+		return ret;
+	}
+
+	/**
+	 * As for <code>getInt()</code>, but for a long
+	 */
+	private long getLong(final long pos) {
+		MappedByteBuffer seg = segments[(int) (pos / segment_size)];
+		int off = (int) (pos % segment_size);
+		if (off + 8 <= seg.capacity()) {
+			return seg.getLong(off);
+		}
+		return (((long) getInt(pos)) << 32) | (getInt(pos + 4) & 0xffffffffL);
+	}
+
+	/**
+	 * Compares the ID of the i'th record with the key, as unsigned bytes
+	 * @return negative, zero or positive as the record ID is less than, equal to or greater than the key
+	 */
+	private int compareID(final int i, final byte[] key) {
+		long r = recordOffset(i);
+		long id_start = heap_start + getLong(r + 12);
+		int id_len    = getInt(r + 20);
+		int len = Math.min(id_len, key.length);
+		for (int j=0; j<len; j++) {
+			int a = getByte(id_start + j) & 0xff;
+			int b = key[j] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return id_len - key.length;
+	}
+
+	/**
+	 * As for <code>compareID()</code>, except that a record ID which starts with the key compares equal
+	 */
+	private int comparePrefix(final int i, final byte[] key) {
+		long r = recordOffset(i);
+		int id_len = getInt(r + 20);
+		int cmp = compareID(i, key);
+		if (cmp > 0 && id_len > key.length) {
+			// longer ID: is it greater only because of the extra bytes?
+			long id_start = heap_start + getLong(r + 12);
+			for (int j=0; j<key.length; j++) {
+				if (getByte(id_start + j) != key[j]) {
+					return cmp;
+				}
+			}
+			return 0;
+		}
+		return cmp;
+	}
+}
@@ -1,11 +1,27 @@
 package au.edu.unimelb.plantcell.seqdb;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.persistence.EntityManager;
@@ -17,6 +33,7 @@ import javax.persistence.criteria.Root;
 
 import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
 import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFileStatistics;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceReference;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
 
@@ -38,6 +55,24 @@ public class FastaPersistor {
 	 */
 	private PrintWriter pw;
 	
+	/*
+	 * if true, a gzip-compressed copy of each uncompressed fasta file is made (if not already up to date) and
+	 * recorded against the file, so that downloads need not be compressed per request. Disable with -Donekp.ingest.gzip=false
+	 */
+	private boolean make_gzip = Boolean.parseBoolean(System.getProperty("onekp.ingest.gzip", "true"));
+	
+	/*
+	 * if true, a digest of each file's content is recorded with its size and modification time, so that an incremental re-ingest
+	 * (see IncrementalIngest) can recognise a file whose time has changed but whose content has not. Enable with -Donekp.ingest.hash=true
+	 */
+	private boolean make_hash = Boolean.parseBoolean(System.getProperty("onekp.ingest.hash", "false"));
+	
+	/*
+	 * if true, populateDatabaseInParallel() streams each worker's sequence references straight into the database (see SequenceReferenceLoader)
+	 * rather than via a TSV shard. Enable with -Donekp.ingest.stream=true
+	 */
+	private boolean stream = Boolean.getBoolean("onekp.ingest.stream");
+	
 	public FastaPersistor(final List<FastaFile> files, SequenceType st, final Logger logger, final PrintWriter pw) throws IOException {
 		assert(files != null && files.size() > 0 && logger != null);
 		this.files = files;
@@ -46,6 +81,10 @@ public class FastaPersistor {
 		this.pw = pw;
 	}
 	
+	List<FastaFile> getFiles() {
+		return files;
+	}
+	
 	public void saveSequenceReferences(final File ref_file_to_read_from, 
 										final EntityManager em, final DatasetDesignation dsd) throws Exception {
 		assert(dsd != null && em != null && ref_file_to_read_from != null);
@@ -57,8 +96,7 @@ public class FastaPersistor {
 			String path = ref_file_to_read_from.getAbsolutePath();
 			path = path.replaceAll("\\\\", "/");
 			String table = dsd.getSeqRefTable();
-			Query q = em.createNativeQuery("load data local infile \'"+path+
-					"\' replace into table "+table+" fields terminated by '\\t' (id, length, SEQ_ID, start, FASTAFILE_ID);");
+			Query q = em.createNativeQuery(getLoadDataSQL(path, table));
 			logger.info("Persisting sequence references into "+table);
 			int ret = q.executeUpdate();
 			em.getTransaction().commit();
@@ -72,80 +110,460 @@ public class FastaPersistor {
 		}
 	}
 	
+	/**
+	 * Returns the statement which loads a TSV of sequence references, as saved by <code>SequenceReference.save()</code>, into the specified table
+	 */
+	static String getLoadDataSQL(final String path, final String table) {
+		return "load data local infile \'"+path+
+				"\' replace into table "+table+" fields terminated by '\\t' (id, length, SEQ_ID, start, FASTAFILE_ID);";
+	}
+	
 	public int populateDatabase(final EntityManager em, final DatasetDesignation dsd) throws Exception {				
 		int total = 0;
+		long t0 = System.currentTimeMillis();
+		long n_bytes = 0;
 		for (FastaFile ff : files) {
 			logger.info("Populating database from: "+ff.getPath());
 			
 			total += populateDatabaseFromFile(pw, em, ff.getPath(), dsd);
+			n_bytes += new File(ff.getPath()).length();
 		}
-		logger.info("Processed "+total+" sequences.");
+		logger.info("Processed "+total+" sequences"+throughput(n_bytes, t0));
+		// any catalog loaded in this JVM no longer matches the FASTAFILE table
+		FastaFileCatalog.invalidate();
 		return total;
 	}
 	
-	private int populateDatabaseFromFile(final PrintWriter pw, final EntityManager em, String fasta_path, final DatasetDesignation dsd) throws Exception {
-		assert(pw != null && fasta_path != null && em != null && dsd != null);
-		BufferedReader rdr = new BufferedReader(new FileReader(new File(fasta_path)));
-		int n = 0;
-		int saved = 0;
+	/**
+	 * As for <code>populateDatabase()</code> followed by <code>saveSequenceReferences()</code>, but the files are parsed concurrently by
+	 * a pool of <code>n_threads</code> workers. Each worker writes the sequence references of the files it parses to its own TSV shard
+	 * (in <code>shard_dir</code>), and each shard is then loaded with a single <code>load data</code>. The records of a file are numbered from an ID
+	 * block reserved (once the records have been counted) before it is parsed, so that each sample has a contiguous block of ID's as required by
+	 * {@link SequenceReference}. The pool is ignored for the database: fasta file records are created before parsing starts and statistics
+	 * are saved once it is complete, using the calling thread.
+	 * 
+	 * With <code>-Donekp.ingest.stream=true</code> no shards are written: each worker instead streams its references into the table through
+	 * its own {@link SequenceReferenceLoader}, which loads them while the worker parses, and <code>shard_dir</code> is not used.
+	 * 
+	 * @return the number of sequences persisted
+	 */
+	public int populateDatabaseInParallel(final EntityManager em, final DatasetDesignation dsd, final int n_threads, final File shard_dir) throws Exception {
+		assert(em != null && dsd != null && n_threads > 0 && shard_dir != null);
+		long t0 = System.currentTimeMillis();
+		final ConcurrentLinkedQueue<FastaFile> todo = new ConcurrentLinkedQueue<FastaFile>();
+		final Map<FastaFile,String> paths = new HashMap<FastaFile,String>();
+		long n_bytes = 0;
 		em.getTransaction().begin();
-		FastaFile ff = getFastaRecord(em, fasta_path, persistDatasetDesignation(em, dsd));
+		DatasetDesignation persisted = persistDatasetDesignation(em, dsd);
 		em.getTransaction().commit();
-		try {
-			String line;
-			long offset = 0;
-			long cur_start = -1;
-			SequenceReference sr = newSequenceReference(ff);
-			while ((line = rdr.readLine()) != null) {
-				if (line.startsWith(">")) {
-					n++;
-					if (cur_start >= 0) {
-						sr.setLength((int) (offset - cur_start - 1));
-						sr.save(pw);
-						saved++;
-						sr = newSequenceReference(ff);
-					}
-					sr.setStart(offset);
-					cur_start = offset;
-					int id_end = line.indexOf(' ');
-					if (id_end < 0) {
-						id_end = line.length();
+		// largest files first, so that no worker is left with a large file once the others are done
+		List<FastaFile> by_size = new ArrayList<FastaFile>(files);
+		Collections.sort(by_size, new Comparator<FastaFile>() {
+
+			@Override
+			public int compare(final FastaFile a, final FastaFile b) {
+				long diff = new File(b.getPath()).length() - new File(a.getPath()).length();
+				return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+			}
+			
+		});
+		for (FastaFile f : by_size) {
+			em.getTransaction().begin();
+			FastaFile ff = getFastaRecord(em, f.getPath(), persisted);
+			em.getTransaction().commit();
+			todo.add(ff);
+			paths.put(ff, f.getPath());
+			n_bytes += new File(f.getPath()).length();
+		}
+		
+		final List<ParsedFile> parsed = Collections.synchronizedList(new ArrayList<ParsedFile>());
+		final AtomicBoolean failed = new AtomicBoolean();		// set by the first worker to fail, so that the others stop
+		List<File> shards = new ArrayList<File>();
+		List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+		for (int i=0; i<n_threads; i++) {
+			final File shard = stream ? null : File.createTempFile(dsd.getLabel()+"_seqref_"+i+"_", ".tsv", shard_dir);
+			if (shard != null) {
+				shards.add(shard);
+			}
+			workers.add(new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws Exception {
+					try {
+						if (shard == null) {
+							return Integer.valueOf(parseAndLoad(em, dsd, todo, paths, parsed, failed));
+						}
+						PrintWriter shard_pw = new PrintWriter(new BufferedWriter(new FileWriter(shard), 1024 * 1024));
+						int n = 0;
+						try {
+							n = parseFiles(shard_pw, todo, paths, parsed, failed);
+						} finally {
+							shard_pw.close();
+						}
+						if (shard_pw.checkError()) {
+							throw new IOException("Unable to write "+shard.getAbsolutePath());
+						}
+						return Integer.valueOf(n);
+					} catch (Exception e) {
+						failed.set(true);
+						throw e;
 					}
-					String id = line.substring(1, id_end);
-					sr.setSequenceID(id);
-				} 
-				offset += line.length() + 1;		// +1 for newline
+				}
+				
+			});
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(n_threads, new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "onekp-ingest-"+n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
 			}
+		});
+		int total = 0;
+		try {
+			// results are taken as each worker finishes, so that the first failure is reported without waiting for the others
+			CompletionService<Integer> cs = new ExecutorCompletionService<Integer>(pool);
+			for (Callable<Integer> w : workers) {
+				cs.submit(w);
+			}
+			for (int i=0; i<workers.size(); i++) {
+				try {
+					total += cs.take().get().intValue();
+				} catch (ExecutionException ee) {
+					// the other workers abandon their work (see parseAndLoad()) once their current file is done
+					failed.set(true);
+					Throwable cause = ee.getCause();
+					throw (cause instanceof Exception) ? (Exception) cause : ee;
+				}
+			}
+			logger.info("Parsed "+total+" sequences from "+files.size()+" files using "+n_threads+" threads"+throughput(n_bytes, t0));
 			
-			if (sr.hasSequenceID()) {
-				sr.setLength((int) (offset - cur_start - 1));
-				sr.save(pw);
-				saved++;
+			for (ParsedFile pf : parsed) {
+				finishFile(em, pf);
 			}
+			FastaFileCatalog.invalidate();
 			
-			logger.info("Saved "+saved+" sequences, processed: "+n);
-			if (n != saved) {
-				throw new IOException("Did not save all fasta sequences processed! "+n+" != "+saved);
+			long t1 = System.currentTimeMillis();
+			for (File shard : shards) {
+				if (shard.length() > 0) {
+					saveSequenceReferences(shard, em, dsd);
+				}
+			}
+			if (!stream) {
+				logger.info("Loaded "+total+" sequence references from "+shards.size()+" shards"+throughput(n_bytes, t1));
+			}
+			return total;
+		} finally {
+			pool.shutdownNow();
+			for (File shard : shards) {
+				shard.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Parses files from <code>todo</code> until it is empty, or another worker has failed, saving the references of each to <code>pw</code>
+	 * @return the number of sequences saved
+	 */
+	private int parseFiles(final PrintWriter pw, final ConcurrentLinkedQueue<FastaFile> todo, 
+								final Map<FastaFile,String> paths, final List<ParsedFile> parsed, final AtomicBoolean failed) throws Exception {
+		int n = 0;
+		FastaFile ff;
+		while (!failed.get() && (ff = todo.poll()) != null) {
+			File f = new File(paths.get(ff));
+			int n_records = countRecords(f);
+			ParsedFile pf = parseFile(pw, ff, f.getAbsolutePath(), SequenceReference.reserveIDs(n_records), n_records);
+			checkSaved(pw, f.getAbsolutePath());
+			parsed.add(pf);
+			n += pf.n;
+		}
+		return n;
+	}
+	
+	/**
+	 * As for <code>parseFiles()</code>, but the references are loaded into the dataset's table as they are saved. Nothing is committed
+	 * if another worker has failed.
+	 */
+	private int parseAndLoad(final EntityManager em, final DatasetDesignation dsd, final ConcurrentLinkedQueue<FastaFile> todo, 
+								final Map<FastaFile,String> paths, final List<ParsedFile> parsed, final AtomicBoolean failed) throws Exception {
+		SequenceReferenceLoader loader = SequenceReferenceLoader.start(em, dsd, logger);
+		int n;
+		try {
+			n = parseFiles(loader.getWriter(), todo, paths, parsed, failed);
+			if (failed.get()) {
+				throw new IOException("Abandoned loading into "+dsd.getSeqRefTable()+" as another worker has failed");
 			}
-			return n;
 		} catch (Exception e) {
+			loader.abort(e);
 			throw e;
+		}
+		int n_loaded = loader.finish();
+		if (n_loaded != n) {
+			throw new IOException("Parsed "+n+" sequences but loaded "+n_loaded+" into "+dsd.getSeqRefTable());
+		}
+		return n;
+	}
+	
+	/**
+	 * Returns a description of the elapsed time since <code>t0</code> and the rate at which the specified bytes (of fasta) were processed
+	 */
+	private static String throughput(final long n_bytes, final long t0) {
+		double seconds = Math.max(1, System.currentTimeMillis() - t0) / 1000.0;
+		return String.format(" in %.1f seconds (%.1f MB/s).", seconds, n_bytes / seconds / (1024.0 * 1024.0));
+	}
+	
+	/**
+	 * Returns the number of fasta records in the file ie. the number of lines starting with '&gt;'
+	 */
+	static int countRecords(final File f) throws IOException {
+		if (!BgzfBlockCache.isCompressed(f.getAbsolutePath())) {
+			return FastaScanner.countRecords(f);
+		}
+		InputStream is = new BgzfInputStream(f);
+		try {
+			return (int) FastaScanner.scan(is, new FastaScanner.RecordHandler() {
+
+				@Override
+				public void startRecord(final long start, final String id, final int header_length) {
+				}
+
+				@Override
+				public void sequenceLine(final int n_residues, final int eol_length) {
+				}
+
+				@Override
+				public void endRecord(final long start, final long end) {
+				}
+				
+			});
 		} finally {
-			rdr.close();
+			is.close();
 		}
 	}
+	
+	private int populateDatabaseFromFile(final PrintWriter pw, final EntityManager em, String fasta_path, final DatasetDesignation dsd) throws Exception {
+		assert(pw != null && fasta_path != null && em != null && dsd != null);
+		em.getTransaction().begin();
+		FastaFile ff = getFastaRecord(em, fasta_path, persistDatasetDesignation(em, dsd));
+		em.getTransaction().commit();
+		ParsedFile pf = parseFile(pw, ff, fasta_path, -1, -1);
+		checkSaved(pw, fasta_path);
+		finishFile(em, pf);
+		return pf.n;
+	}
+	
+	/**
+	 * <code>PrintWriter</code> does not throw, so once a file has been parsed its writer is checked: a failed write (eg. to a full disk, or
+	 * to a {@link SequenceReferenceLoader} whose load has failed) ends the ingest now, rather than after every remaining file has been parsed
+	 */
+	private static void checkSaved(final PrintWriter pw, final String fasta_path) throws IOException {
+		if (pw.checkError()) {
+			throw new IOException("Unable to save the sequence references of "+fasta_path);
+		}
+	}
+	
+	/**
+	 * The outcome of parsing a fasta file, which must be recorded in the database once parsing is complete
+	 */
+	static class ParsedFile {
+		FastaFile ff;
+		int n;
+		LengthStatistics stats;
+		File gz;		// compressed copy or null if none was made
+		long size, last_modified;
+		String hash;	// null unless onekp.ingest.hash is enabled
+	}
+	
+	/**
+	 * Parses the fasta file, saving a reference to each record (to <code>pw</code>) and writing the sidecar index and compressed copy.
+	 * Does not use the database so may be run concurrently for different files.
+	 * 
+	 * @param first_id the ID of the first record, which are numbered consecutively, or -1 to number them from {@link SequenceReference#reserveIDs(int)} as they are saved
+	 * @param n_expected the number of records for which ID's were reserved (ignored if <code>first_id</code> is -1)
+	 */
+	ParsedFile parseFile(final PrintWriter pw, final FastaFile ff, final String fasta_path, final int first_id, final int n_expected) throws Exception {
+		File f = new File(fasta_path);
+		// fingerprint before parsing: a file modified during the ingest then looks changed to the next incremental ingest
+		long size = f.length();
+		long last_modified = f.lastModified();
+		String hash = make_hash ? IncrementalIngest.computeContentHash(f) : null;
+		FastaOffsetIndex.Writer index = new FastaOffsetIndex.Writer(f);
+		RecordSaver rs;
+		try {
+			// BGZF-compressed files are parsed as for uncompressed ones, but each record start is persisted as a virtual offset
+			if (BgzfBlockCache.isCompressed(fasta_path)) {
+				BgzfInputStream bgzf = new BgzfInputStream(f);
+				try {
+					rs = new RecordSaver(pw, ff, bgzf, index, first_id, n_expected);
+					FastaScanner.scan(bgzf, rs);
+				} finally {
+					bgzf.close();
+				}
+			} else {
+				rs = new RecordSaver(pw, ff, null, index, first_id, n_expected);
+				FastaScanner.scan(f, rs);
+			}
+			
+			logger.info("Saved "+rs.saved+" sequences from "+fasta_path);
+			if (first_id >= 0 && rs.saved != n_expected) {
+				throw new IOException("Expected "+n_expected+" sequences in "+fasta_path+" but found "+rs.saved+": was it modified during ingest?");
+			}
+			index.finish();
+		} finally {
+			index.abandon();
+		}
+		logger.info("Wrote sequence index: "+FastaOffsetIndex.getIndexFile(f).getAbsolutePath());
+		ParsedFile ret = new ParsedFile();
+		ret.ff = ff;
+		ret.n = rs.saved;
+		ret.stats = rs.stats;
+		ret.size = size;
+		ret.last_modified = last_modified;
+		ret.hash = hash;
+		if (make_gzip && !BgzfBlockCache.isCompressed(fasta_path)) {
+			ret.gz = makeCompressedCopy(f);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Saves a reference to each record as it is scanned
+	 */
+	private static class RecordSaver implements FastaScanner.RecordHandler {
+		private final PrintWriter pw;
+		private final FastaFile ff;
+		private final BgzfInputStream bgzf;		// null if the file is uncompressed
+		private final FastaOffsetIndex.Writer index;
+		private final int first_id, n_expected;
+		
+		// the length of each reference is counted, for the summary statistics of the file
+		final LengthStatistics stats = new LengthStatistics();
+		int saved;
+		
+		private SequenceReference sr;
+		private int residues;
+		
+		RecordSaver(final PrintWriter pw, final FastaFile ff, final BgzfInputStream bgzf, final FastaOffsetIndex.Writer index, final int first_id, final int n_expected) {
+			this.pw = pw;
+			this.ff = ff;
+			this.bgzf = bgzf;
+			this.index = index;
+			this.first_id = first_id;
+			this.n_expected = n_expected;
+		}
+
+		@Override
+		public void startRecord(final long start, final String id, final int header_length) throws IOException {
+			if (id.length() < 1) {
+				throw new IOException("Fasta record without an ID at offset "+start+" in "+ff.getPath());
+			}
+			sr = new SequenceReference();
+			sr.setFastaFile(ff);
+			sr.setStart((bgzf != null) ? bgzf.getVirtualOffset(start) : start);
+			sr.setSequenceID(id);
+			sr.setHeaderLength(header_length);
+			residues = 0;
+		}
+
+		@Override
+		public void sequenceLine(final int n_residues, final int eol_length) {
+			sr.addSequenceLine(n_residues, eol_length);
+			residues += n_residues;
+		}
+
+		@Override
+		public void endRecord(final long start, final long end) throws IOException {
+			sr.setLength((int) (end - start));
+			save(sr, pw, first_id, saved, n_expected);
+			index.add(sr);
+			stats.add(residues);
+			saved++;
+		}
+	}
+	
+	private static void save(final SequenceReference sr, final PrintWriter pw, final int first_id, final int idx, final int n_expected) throws IOException {
+		if (first_id < 0) {
+			sr.save(pw);
+		} else if (idx < n_expected) {
+			sr.save(pw, first_id + idx);
+		} else {
+			throw new IOException("More sequences than the "+n_expected+" expected in "+sr.getFastaFile().getPath());
+		}
+	}
+	
+	/**
+	 * Records the fingerprint, compressed copy and statistics of a parsed file
+	 */
+	void finishFile(final EntityManager em, final ParsedFile pf) {
+		em.getTransaction().begin();
+		pf.ff.setFingerprint(pf.size, pf.last_modified, pf.hash);
+		if (pf.gz != null) {
+			pf.ff.setGzipPath(pf.gz.getAbsolutePath());
+		}
+		em.getTransaction().commit();
+		saveStatistics(em, pf.ff, pf.stats);
+	}
 
-	private SequenceReference newSequenceReference(final FastaFile ff) {
-		 SequenceReference sr = new SequenceReference();
-		 sr.setFastaFile(ff);
-	     return sr;
+	/**
+	 * Records the statistics of the file, replacing any from a previous ingest of it
+	 */
+	private void saveStatistics(final EntityManager em, final FastaFile ff, final LengthStatistics stats) {
+		em.getTransaction().begin();
+		try {
+			TypedQuery<FastaFileStatistics> q = em.createQuery("select s from FastaFileStatistics s where s.fasta = :fasta", FastaFileStatistics.class);
+			q.setParameter("fasta", ff);
+			List<FastaFileStatistics> l = q.getResultList();
+			if (l.size() > 0) {
+				stats.save(l.get(0));
+			} else {
+				em.persist(stats.save(new FastaFileStatistics(ff)));
+			}
+			em.getTransaction().commit();
+		} catch (RuntimeException e) {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			throw e;
+		}
+		logger.info("Saved statistics of "+ff.getPath()+": "+stats.getCount()+" sequences, "+stats.getTotal()+" residues, N50 "+stats.getN50());
 	}
 
-	private FastaFile getFastaRecord(final EntityManager em, final String path, final DatasetDesignation dsd) {
-		Query q = em.createQuery("select f from FastaFile f where f.path=:path");
+	/**
+	 * Writes <code>fasta_file.gz</code> (BGZF, which any gzip client can decompress) unless it is already newer than the fasta file
+	 */
+	private File makeCompressedCopy(final File fasta_file) throws IOException {
+		File gz = new File(fasta_file.getAbsolutePath() + ".gz");
+		if (gz.exists() && gz.lastModified() >= fasta_file.lastModified()) {
+			logger.info("Compressed copy is up to date: "+gz.getAbsolutePath());
+			return gz;
+		}
+		File tmp = new File(gz.getAbsolutePath() + ".tmp");
+		BgzfOutputStream.compress(fasta_file, tmp);
+		if (gz.exists() && !gz.delete()) {
+			throw new IOException("Unable to replace "+gz.getAbsolutePath());
+		}
+		if (!tmp.renameTo(gz)) {
+			throw new IOException("Unable to rename "+tmp.getAbsolutePath()+" to "+gz.getAbsolutePath());
+		}
+		logger.info("Wrote compressed copy: "+gz.getAbsolutePath()+" ("+gz.length()+" bytes)");
+		return gz;
+	}
+	
+	/**
+	 * Returns the record of the specified file in the dataset, creating it if the file has not been ingested before
+	 * (a changed file keeps its record, and thus its FASTAFILE_ID, during an incremental re-ingest)
+	 */
+	FastaFile getFastaRecord(final EntityManager em, final String path, final DatasetDesignation dsd) {
+		TypedQuery<FastaFile> q = em.createQuery("select f from FastaFile f where f.path=:path and f.dsd=:dsd", FastaFile.class);
 		q.setParameter("path", path);
+		q.setParameter("dsd", dsd);
 		
-		FastaFile ret = em.find(FastaFile.class, q.getFirstResult());
+		List<FastaFile> l = q.getResultList();
+		FastaFile ret = (l.size() > 0) ? l.get(0) : null;
 		if (ret == null) {
 			FastaFile ff = new FastaFile();
 			ff.setDesignation(dsd);
@@ -157,15 +575,15 @@ public class FastaPersistor {
 		return ret;
 	}
 	
-	private DatasetDesignation persistDatasetDesignation(final EntityManager em, final DatasetDesignation dsd) {
+	DatasetDesignation persistDatasetDesignation(final EntityManager em, final DatasetDesignation dsd) {
 		CriteriaBuilder cb = em.getCriteriaBuilder();
 		CriteriaQuery<DatasetDesignation> q = cb.createQuery(DatasetDesignation.class);
 		Root<DatasetDesignation> b = q.from(DatasetDesignation.class);
 		q.select(b).where(cb.equal(b.get("label"), dsd.getLabel()));
 		TypedQuery<DatasetDesignation> tq = em.createQuery(q);
 					
-		int pk_id = tq.getFirstResult();
-		DatasetDesignation dd = em.find(DatasetDesignation.class, pk_id);
+		List<DatasetDesignation> l = tq.getResultList();
+		DatasetDesignation dd = (l.size() > 0) ? l.get(0) : null;
 		if (dd == null) {
 			em.persist(dsd);
 			return dsd;
@@ -0,0 +1,155 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+
+/**
+ * A shared pool of read-only memory mappings over the FASTA files served by the site. Each file is
+ * mapped in fixed size regions (which overlap slightly, so that nearly all records lie wholly within a single region)
+ * and the regions are keyed by {@link FastaFile} id. Once the total number of mapped bytes exceeds the configured budget,
+ * the least recently used regions are dropped from the pool.
+ *
+ * Java provides no safe way to unmap a buffer which another thread may still be reading from, so dropped regions
+ * are unmapped by the garbage collector once the last slice of them is no longer reachable. The budget is therefore
+ * a bound on the regions held by the pool, not a hard limit on address space.
+ *
+ * The budget and region size may be set (in bytes) via the <code>onekp.mmap.max.bytes</code> and <code>onekp.mmap.region.bytes</code>
+ * system properties.
+ *
+ * @author acassin
+ *
+ */
+public class FastaRegionPool {
+	public final static long DEFAULT_MAX_MAPPED_BYTES = 16L * 1024 * 1024 * 1024;
+	public final static int  DEFAULT_REGION_SIZE      = 256 * 1024 * 1024;
+
+	/**
+	 * each region is mapped with this many bytes past its nominal end, so that records which start
+	 * near the end of a region can still be served from it
+	 */
+	public final static int REGION_OVERLAP = 4 * 1024 * 1024;
+
+	private final static Logger logger = Logger.getLogger("FastaRegionPool");
+
+	private static FastaRegionPool singleton;
+
+	private final long region_size;
+	private final LruCache<Long,MappedByteBuffer> regions;
+
+	public FastaRegionPool(final long max_mapped_bytes, final int region_size) {
+		assert(max_mapped_bytes > 0 && region_size > 0 && region_size <= Integer.MAX_VALUE - REGION_OVERLAP);
+		this.region_size = region_size;
+		this.regions = new LruCache<Long,MappedByteBuffer>(max_mapped_bytes) {
+
+			@Override
+			protected long sizeOf(final MappedByteBuffer region) {
+				return region.capacity();
+			}
+
+			@Override
+			protected void evicted(final Long key, final MappedByteBuffer region) {
+				logger.fine("Evicted mapped region "+key+", now "+getCachedBytes()+" bytes mapped.");
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the pool shared by all services, created on first use
+	 */
+	public static synchronized FastaRegionPool getInstance() {
+		if (singleton == null) {
+			long max  = Long.getLong("onekp.mmap.max.bytes", DEFAULT_MAX_MAPPED_BYTES);
+			int  size = Integer.getInteger("onekp.mmap.region.bytes", DEFAULT_REGION_SIZE);
+			singleton = new FastaRegionPool(max, size);
+		}
+		return singleton;
+	}
+
+	/**
+	 * Returns a read-only view of the specified bytes from the fasta file. The returned buffer is positioned at zero
+	 * and its limit is <code>length</code>. The caller need not (and must not) release it.
+	 *
+	 * @param ff fasta file to read from. Must have a valid path and database ID
+	 * @param start byte offset from the start of the file
+	 * @param length number of bytes required
+	 * @return null if the record is not wholly contained within a single region, in which case the caller must read it some other way
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public ByteBuffer getRecord(final FastaFile ff, final long start, final int length) throws IOException {
+		assert(ff != null && start >= 0 && length >= 0);
+
+		long region_idx   = start / region_size;
+		long region_start = region_idx * region_size;
+		int  offset       = (int) (start - region_start);
+		MappedByteBuffer region = getRegion(ff, region_idx, region_start);
+		if (region == null || ((long) offset) + length > region.capacity()) {
+			return null;
+		}
+		// slice from a duplicate so that concurrent readers never see each others position/limit
+		ByteBuffer dup = region.duplicate();
+		dup.position(offset);
+		dup.limit(offset + length);
+		return dup.slice();
+	}
+
+	/**
+	 * Drops all regions from the pool eg. after the fasta files have been re-ingested
+	 */
+	public void clear() {
+		regions.clear();
+	}
+
+	/**
+	 * Drops the regions of the specified fasta file eg. because it has changed since they were mapped
+	 * @return the number of regions dropped
+	 */
+	public int invalidate(final int fasta_id) {
+		return regions.invalidate(new LruCache.KeyFilter<Long>() {
+
+			@Override
+			public boolean matches(final Long key) {
+				return (int) (key.longValue() >>> 32) == fasta_id;
+			}
+
+		});
+	}
+
+	public long getMappedBytes() {
+		return regions.getCachedBytes();
+	}
+
+	public int getRegionCount() {
+		return regions.size();
+	}
+
+	private synchronized MappedByteBuffer getRegion(final FastaFile ff, final long region_idx, final long region_start) throws IOException {
+		Long key = Long.valueOf((((long) ff.getID()) << 32) | region_idx);
+		MappedByteBuffer ret = regions.get(key);
+		if (ret != null) {
+			return ret;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(ff.getPath(), "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long file_size = fc.size();
+			if (region_start >= file_size) {
+				return null;
+			}
+			long map_size = Math.min(region_size + REGION_OVERLAP, file_size - region_start);
+			// the mapping remains valid after the channel is closed
+			ret = fc.map(FileChannel.MapMode.READ_ONLY, region_start, map_size);
+		} finally {
+			raf.close();
+		}
+		regions.put(key, ret);
+		return ret;
+	}
+}
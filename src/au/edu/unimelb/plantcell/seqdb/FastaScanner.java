@@ -0,0 +1,225 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Parses the layout of a fasta file from its bytes: where each record starts and ends, its ID, and the length of each sequence line.
+ * Offsets are byte offsets so are exact for any line terminator (LF or CRLF) and any (ASCII compatible) encoding of the definition lines.
+ * Only the ID of each record is decoded (as UTF-8): sequence lines are only measured, so nothing is allocated per sequence line.
+ * An uncompressed file is scanned via a memory-mapped window of up to <code>onekp.ingest.map.size</code> bytes (default 256MB) at a time;
+ * a compressed file is scanned from a stream.
+ *
+ * The ID is the text after '&gt;' up to the first space (or the end of the line). Lines before the first record are ignored.
+ *
+ * @author acassin
+ *
+ */
+public class FastaScanner {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final static int MAP_SIZE = Integer.getInteger("onekp.ingest.map.size", 256 * 1024 * 1024).intValue();
+
+	/**
+	 * Receives the structure of each record, in file order
+	 */
+	public interface RecordHandler {
+		/**
+		 * Called once the definition line of a record has been read
+		 * @param start offset of the '&gt;'
+		 * @param id sequence ID
+		 * @param header_length bytes in the definition line, including its line terminator
+		 */
+		public void startRecord(final long start, final String id, final int header_length) throws IOException;
+
+		/**
+		 * Called for each line of the record after the definition line, including blank lines
+		 * @param n_residues bytes in the line, excluding the line terminator
+		 * @param eol_length bytes in the line terminator: 1 (LF), 2 (CRLF) or 0 for an unterminated last line
+		 */
+		public void sequenceLine(final int n_residues, final int eol_length);
+
+		/**
+		 * Called once the last line of a record has been read
+		 * @param start offset of the '&gt;'
+		 * @param end offset just after the last residue of the record (ie. excluding the final line terminator)
+		 */
+		public void endRecord(final long start, final long end) throws IOException;
+	}
+
+	private final RecordHandler handler;
+
+	// state carried from one buffer to the next
+	private long    line_start;				// offset of the first byte of the current line
+	private boolean in_header;				// the current line is a definition line
+	private boolean id_done;				// the ID of the current definition line is complete
+	private byte[]  id_bytes = new byte[256];
+	private int     id_length;
+	private boolean last_cr;				// the previous byte was '\r'
+	private long    record_start = -1;		// offset of the current record or -1 if none has started
+	private int     last_eol;				// length of the terminator of the previous line
+	private long    n_records;
+
+	public FastaScanner(final RecordHandler handler) {
+		assert(handler != null);
+		this.handler = handler;
+	}
+
+	/**
+	 * Scans an uncompressed fasta file
+	 * @return the number of records found
+	 */
+	public static long scan(final File f, final RecordHandler handler) throws IOException {
+		FastaScanner fs = new FastaScanner(handler);
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size();
+			for (long pos = 0; pos < size; pos += MAP_SIZE) {
+				fs.scan(fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_SIZE, size - pos)), pos);
+			}
+			fs.finish(size);
+		} finally {
+			raf.close();
+		}
+		return fs.n_records;
+	}
+
+	/**
+	 * Scans the (decompressed) bytes of a fasta file from a stream, which is not closed
+	 * @return the number of records found
+	 */
+	public static long scan(final InputStream is, final RecordHandler handler) throws IOException {
+		FastaScanner fs = new FastaScanner(handler);
+		byte[] buf = new byte[256 * 1024];
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		long pos = 0;
+		int n;
+		while ((n = is.read(buf)) >= 0) {
+			bb.clear();
+			bb.limit(n);
+			fs.scan(bb, pos);
+			pos += n;
+		}
+		fs.finish(pos);
+		return fs.n_records;
+	}
+
+	/**
+	 * Returns the number of records in an uncompressed fasta file ie. the number of lines starting with '&gt;'
+	 */
+	public static int countRecords(final File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size();
+			int n = 0;
+			boolean line_start = true;
+			for (long pos = 0; pos < size; pos += MAP_SIZE) {
+				ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_SIZE, size - pos));
+				int limit = bb.limit();
+				for (int i=0; i<limit; i++) {
+					byte b = bb.get(i);
+					if (b == '>' && line_start) {
+						n++;
+					}
+					line_start = (b == '\n');
+				}
+			}
+			return n;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Scans the bytes from the buffer's position to its limit, which are at the specified offset in the file.
+	 * Buffers must be supplied in order and without gaps.
+	 */
+	public void scan(final ByteBuffer bb, final long base) throws IOException {
+		final int first = bb.position();
+		final int limit = bb.limit();
+		int i = first;
+		while (i < limit) {
+			if (base + i == line_start && bb.get(i) == '>') {
+				startHeader(base + i);
+				i++;
+			}
+			// the ID is the only part of a record which is examined byte by byte
+			while (in_header && !id_done && i < limit) {
+				byte b = bb.get(i);
+				if (b == '\n') {
+					break;
+				}
+				if (b == ' ' || b == '\r') {
+					id_done = true;
+				} else {
+					if (id_length == id_bytes.length) {
+						id_bytes = Arrays.copyOf(id_bytes, id_length * 2);
+					}
+					id_bytes[id_length++] = b;
+				}
+				i++;
+			}
+			while (i < limit && bb.get(i) != '\n') {
+				i++;
+			}
+			if (i == limit) {
+				break;
+			}
+			boolean cr = (i > first) ? (bb.get(i - 1) == '\r') : last_cr;
+			endLine(base + i, cr ? 2 : 1);
+			line_start = base + i + 1;
+			i++;
+		}
+		if (limit > first) {
+			last_cr = (bb.get(limit - 1) == '\r');
+		}
+	}
+
+	/**
+	 * Completes the scan of a file of the specified length
+	 */
+	public void finish(final long length) throws IOException {
+		if (length > line_start) {
+			// an unterminated last line: a '\r' is part of it, as there is no '\n' to complete the terminator
+			endLine(length, 0);
+		}
+		if (record_start >= 0) {
+			handler.endRecord(record_start, length - last_eol);
+			record_start = -1;
+		}
+	}
+
+	public long getRecordCount() {
+		return n_records;
+	}
+
+	private void startHeader(final long offset) throws IOException {
+		if (record_start >= 0) {
+			handler.endRecord(record_start, offset - last_eol);
+		}
+		record_start = offset;
+		in_header = true;
+		id_done = false;
+		id_length = 0;
+	}
+
+	private void endLine(final long eol_offset, final int eol_length) throws IOException {
+		int content_length = (int) (eol_offset - line_start) - (eol_length == 2 ? 1 : 0);
+		if (in_header) {
+			in_header = false;
+			n_records++;
+			handler.startRecord(record_start, new String(id_bytes, 0, id_length, UTF8), content_length + eol_length);
+		} else if (record_start >= 0) {
+			handler.sequenceLine(content_length, eol_length);
+		}
+		last_eol = eol_length;
+	}
+}
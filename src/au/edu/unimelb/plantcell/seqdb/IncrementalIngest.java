@@ -0,0 +1,196 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReference;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
+
+/**
+ * Compares the fasta files of a dataset (of one sequence type) on disk with those already ingested, using the fingerprint recorded
+ * against each FASTAFILE row (size, modification time and, optionally, a digest of the content), so that a re-ingest need only
+ * index files which are new or have changed. The sequence references of changed and removed files are deleted (by FASTAFILE_ID) and
+ * removed files are deleted from the FASTAFILE table, so that the remaining datasets can be served throughout the re-ingest.
+ *
+ * A file ingested before fingerprints were recorded is treated as changed. If digests are enabled (<code>onekp.ingest.hash</code>), a
+ * file whose size or time differs but whose content does not is only re-fingerprinted.
+ *
+ * @author acassin
+ *
+ */
+public class IncrementalIngest {
+	private final EntityManager em;
+	private final DatasetDesignation dsd;
+	private final Logger logger;
+	private final boolean use_hash;
+
+	private final List<FastaFile> to_ingest = new ArrayList<FastaFile>();	// new (unpersisted) records for added and changed files
+	private final List<FastaFile> changed   = new ArrayList<FastaFile>();
+	private final List<FastaFile> removed   = new ArrayList<FastaFile>();
+	private int n_added, n_unchanged;
+
+	public IncrementalIngest(final EntityManager em, final DatasetDesignation dsd, final Logger logger, final boolean use_hash) {
+		assert(em != null && dsd != null && logger != null);
+		this.em = em;
+		this.dsd = dsd;
+		this.logger = logger;
+		this.use_hash = use_hash;
+	}
+
+	/**
+	 * Compares the specified files (all of the dataset's files of the given type currently on disk) with those already ingested
+	 */
+	public void plan(final SequenceType st, final File[] on_disk) throws IOException, SQLException {
+		assert(st != null && on_disk != null);
+		// the fingerprints are recorded in columns which an older FASTAFILE table lacks (and the statistics in a table it lacks): say so, rather than fail below
+		FastaFileSchema.check(em, false, logger);
+		TypedQuery<FastaFile> q = em.createQuery("select ff from FastaFile ff where ff.dsd.label = :l and ff.sequence_type = :st", FastaFile.class);
+		q.setParameter("l", dsd.getLabel());
+		q.setParameter("st", st);
+		Map<String,FastaFile> ingested = new HashMap<String,FastaFile>();
+		Set<String> copies = new HashSet<String>();
+		for (FastaFile ff : q.getResultList()) {
+			ingested.put(ff.getPath(), ff);
+			if (ff.getGzipPath() != null) {
+				copies.add(ff.getGzipPath());
+			}
+		}
+
+		for (File f : on_disk) {
+			if (copies.contains(f.getAbsolutePath())) {
+				continue;		// the compressed copy of a file which has been removed: it is deleted by removeStale()
+			}
+			FastaFile ff = ingested.remove(f.getAbsolutePath());
+			if (ff == null) {
+				to_ingest.add(new FastaFile(f));
+				n_added++;
+			} else if (isUnchanged(ff, f)) {
+				n_unchanged++;
+			} else {
+				to_ingest.add(new FastaFile(f));
+				changed.add(ff);
+			}
+		}
+		// anything left has been removed (or is no longer accepted) since it was ingested
+		removed.addAll(ingested.values());
+		logger.info(dsd.getLabel()+" "+st+": "+n_added+" added, "+changed.size()+" changed, "+removed.size()+" removed and "+n_unchanged+" unchanged files so far.");
+	}
+
+	private boolean isUnchanged(final FastaFile ff, final File f) throws IOException {
+		if (ff.getLastModified() == 0L) {
+			logger.info("No fingerprint (ingested before they were recorded): "+f.getAbsolutePath());
+			return false;
+		}
+		if (ff.getFileSize() == f.length() && ff.getLastModified() == f.lastModified()) {
+			return true;
+		}
+		if (use_hash && ff.getContentHash() != null && ff.getFileSize() == f.length() && ff.getContentHash().equals(computeContentHash(f))) {
+			logger.info("Content unchanged (only the time differs): "+f.getAbsolutePath());
+			em.getTransaction().begin();
+			ff.setFingerprint(f.length(), f.lastModified(), ff.getContentHash());
+			em.getTransaction().commit();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the files which must be ingested (those added or changed since the last ingest)
+	 */
+	public List<FastaFile> getFilesToIngest() {
+		return to_ingest;
+	}
+
+	public List<FastaFile> getRemovedFiles() {
+		return removed;
+	}
+
+	/**
+	 * Deletes the sequence references of each changed or removed file, and the FASTAFILE rows (and the sidecar index and compressed copy)
+	 * of removed files. Then ensures that the ID's of references saved from now on follow those already in the dataset's table.
+	 */
+	public void removeStale() throws Exception {
+		String table = dsd.getSeqRefTable();
+		List<FastaFile> stale = new ArrayList<FastaFile>(changed);
+		stale.addAll(removed);
+		for (FastaFile ff : stale) {
+			em.getTransaction().begin();
+			try {
+				int n = em.createNativeQuery("delete from "+table+" where FASTAFILE_ID = ?1").setParameter(1, ff.getID()).executeUpdate();
+				logger.info("Deleted "+n+" sequence references to "+ff.getPath());
+				if (removed.contains(ff)) {
+					em.createQuery("delete from FastaFileStatistics s where s.fasta = :ff").setParameter("ff", ff).executeUpdate();
+					em.remove(ff);
+				}
+				em.getTransaction().commit();
+			} catch (Exception e) {
+				if (em.getTransaction().isActive()) {
+					em.getTransaction().rollback();
+				}
+				throw e;
+			}
+		}
+		for (FastaFile ff : removed) {
+			File idx = FastaOffsetIndex.getIndexFile(new File(ff.getPath()));
+			if (idx.exists() && !idx.delete()) {
+				logger.warning("Unable to delete "+idx.getAbsolutePath());
+			}
+			// a compressed copy would otherwise be found (and ingested) as a fasta file in its own right
+			if (ff.getGzipPath() != null && new File(ff.getGzipPath()).exists() && !new File(ff.getGzipPath()).delete()) {
+				logger.warning("Unable to delete "+ff.getGzipPath());
+			}
+		}
+		if (stale.size() > 0) {
+			FastaFileCatalog.invalidate();
+		}
+
+		Object max = em.createNativeQuery("select max(id) from "+table).getSingleResult();
+		if (max instanceof Number) {
+			SequenceReference.reserveIDsAfter(((Number) max).intValue());
+		}
+	}
+
+	/**
+	 * Returns the (hex) SHA-1 digest of the file content
+	 */
+	public static String computeContentHash(final File f) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException(nsae);
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size();
+			for (long pos = 0; pos < size; pos += 256 * 1024 * 1024) {
+				md.update(fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(256 * 1024 * 1024, size - pos)));
+			}
+		} finally {
+			raf.close();
+		}
+		StringBuilder sb = new StringBuilder(40);
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+}
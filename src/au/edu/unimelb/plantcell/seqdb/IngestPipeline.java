@@ -0,0 +1,584 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReference;
+
+/**
+ * Ingests the fasta files of a dataset (of any number of sequence types) as a pipeline of stages connected by bounded queues,
+ * so that memory use is flat however large the dataset and parsing overlaps loading:
+ * <ol>
+ * <li>discover: the calling thread records each file in the FASTAFILE table and queues it for parsing, largest first</li>
+ * <li>parse: <code>n_parsers</code> threads each parse a file at a time, queueing its sequence references as chunks of whole rows</li>
+ * <li>batch: a thread gathers the chunks into batches of <code>onekp.ingest.batch.rows</code> rows (default 100000)</li>
+ * <li>load: <code>n_loaders</code> threads each load and commit a batch at a time (see {@link SequenceReferenceLoader}), each over its own connection</li>
+ * </ol>
+ * A stage waits when its output queue is full, so the slowest stage holds back those before it. Nor does a parser keep the records of
+ * its file: the sidecar index is built by a {@link FastaOffsetIndex.Writer}, which spills sorted runs to disk, and the statistics count
+ * each length rather than keep it (see {@link LengthStatistics}), so the largest file needs no more memory than the smallest. The statistics and fingerprint of each
+ * file are saved by the calling thread once the file has been parsed. Unlike <code>FastaPersistor.populateDatabase()</code>, each batch is
+ * committed as it is loaded, so a failed ingest may leave some of the dataset's references loaded.
+ *
+ * Every <code>onekp.ingest.report.seconds</code> (default 10) the depth of each queue is logged, and for each stage its throughput and the
+ * proportion of its threads' time spent waiting for input (starved) and for space in its output queue (held back). The bottleneck is
+ * the stage which is neither: the parsers for disk or CPU, the loaders for MySQL.
+ *
+ * @author acassin
+ *
+ */
+public class IngestPipeline {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final static int CHUNK_SIZE     = 64 * 1024;
+	private final static int BATCH_ROWS     = Integer.getInteger("onekp.ingest.batch.rows", 100000).intValue();
+	private final static int CHUNK_QUEUE    = Integer.getInteger("onekp.ingest.queue.chunks", 256).intValue();
+	private final static int REPORT_SECONDS = Integer.getInteger("onekp.ingest.report.seconds", 10).intValue();
+
+	/**
+	 * A file to be parsed (by the persistor for its sequence type) and, once it has been, the outcome
+	 */
+	private static class ParseTask {
+		final FastaPersistor fp;
+		final FastaFile ff;
+		final File f;
+		FastaPersistor.ParsedFile result;
+
+		ParseTask(final FastaPersistor fp, final FastaFile ff, final File f) {
+			this.fp = fp;
+			this.ff = ff;
+			this.f = f;
+		}
+	}
+
+	/**
+	 * Whole rows of sequence references, as saved by <code>SequenceReference.save()</code> and UTF-8 encoded
+	 */
+	private static class Chunk {
+		final byte[] data;
+		final int rows;
+
+		Chunk(final byte[] data, final int rows) {
+			this.data = data;
+			this.rows = rows;
+		}
+	}
+
+	private static class Batch {
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+		int rows;
+		long bytes;
+
+		void add(final Chunk c) {
+			chunks.add(c.data);
+			rows += c.rows;
+			bytes += c.data.length;
+		}
+
+		InputStream getInputStream() {
+			List<InputStream> l = new ArrayList<InputStream>(chunks.size());
+			for (byte[] b : chunks) {
+				l.add(new ByteArrayInputStream(b));
+			}
+			return new SequenceInputStream(Collections.enumeration(l));
+		}
+	}
+
+	// each marks the end of the input to the next stage
+	private final static ParseTask NO_MORE_FILES   = new ParseTask(null, null, null);
+	private final static Chunk     NO_MORE_CHUNKS  = new Chunk(new byte[0], 0);
+	private final static Batch     NO_MORE_BATCHES = new Batch();
+
+	/**
+	 * Counts the work done by a stage and the time its threads spend waiting
+	 */
+	public static class Stage {
+		private final String name;
+		private final int n_threads;
+		private final String unit;				// what each item is eg. files
+		final AtomicLong items = new AtomicLong();
+		final AtomicLong rows  = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong input_wait_ns  = new AtomicLong();
+		final AtomicLong output_wait_ns = new AtomicLong();
+
+		Stage(final String name, final int n_threads, final String unit) {
+			this.name = name;
+			this.n_threads = n_threads;
+			this.unit = unit;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getItems() {
+			return items.get();
+		}
+
+		public long getRows() {
+			return rows.get();
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * Returns a one-line summary of the work done in the specified time
+		 */
+		public String describe(final long elapsed_ns) {
+			double seconds = Math.max(1L, elapsed_ns) / 1e9;
+			double thread_ns = Math.max(1L, elapsed_ns) * (double) n_threads;
+			return String.format("%-8s %2d thread(s): %d %s, %d rows, %.1f MB (%.0f rows/s, %.1f MB/s); starved %.0f%%, held back %.0f%%",
+					name, n_threads, getItems(), unit, getRows(), getBytes() / (1024.0 * 1024.0), getRows() / seconds,
+					getBytes() / seconds / (1024.0 * 1024.0), 100.0 * input_wait_ns.get() / thread_ns, 100.0 * output_wait_ns.get() / thread_ns);
+		}
+	}
+
+	private final EntityManager em;
+	private final DatasetDesignation dsd;
+	private final Logger logger;
+	private final int n_parsers, n_loaders;
+	private final boolean use_batch = Boolean.getBoolean("onekp.ingest.stream.batch");
+	private final List<FastaPersistor> persistors = new ArrayList<FastaPersistor>();
+
+	private final BlockingQueue<ParseTask> files;
+	private final BlockingQueue<Chunk> chunks;
+	private final BlockingQueue<Batch> batches;
+	private final ConcurrentLinkedQueue<ParseTask> parsed = new ConcurrentLinkedQueue<ParseTask>();
+
+	private final Stage discover, parse, batch, load;
+	private final AtomicInteger parsers_running = new AtomicInteger();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	private final List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+	private long start_ns;
+
+	public IngestPipeline(final EntityManager em, final DatasetDesignation dsd, final Logger logger, final int n_parsers, final int n_loaders) {
+		assert(em != null && dsd != null && logger != null && n_parsers > 0 && n_loaders > 0);
+		this.em = em;
+		this.dsd = dsd;
+		this.logger = logger;
+		this.n_parsers = n_parsers;
+		this.n_loaders = n_loaders;
+		files   = new ArrayBlockingQueue<ParseTask>(2 * n_parsers);
+		chunks  = new ArrayBlockingQueue<Chunk>(Math.max(1, CHUNK_QUEUE));
+		batches = new ArrayBlockingQueue<Batch>(n_loaders);
+		discover = new Stage("discover", 1, "files");
+		parse    = new Stage("parse", n_parsers, "files");
+		batch    = new Stage("batch", 1, "batches");
+		load     = new Stage("load", n_loaders, "batches");
+	}
+
+	/**
+	 * Adds the files of the persistor (all of one sequence type) to those to be ingested
+	 */
+	public void add(final FastaPersistor fp) {
+		assert(fp != null);
+		persistors.add(fp);
+	}
+
+	public List<Stage> getStages() {
+		List<Stage> ret = new ArrayList<Stage>();
+		Collections.addAll(ret, discover, parse, batch, load);
+		return ret;
+	}
+
+	/**
+	 * Ingests the files added, returning once every sequence reference has been loaded
+	 * @return the number of sequence references loaded
+	 */
+	public int run() throws Exception {
+		if (persistors.size() < 1) {
+			return 0;
+		}
+		start_ns = System.nanoTime();
+		em.getTransaction().begin();
+		DatasetDesignation persisted = persistors.get(0).persistDatasetDesignation(em, dsd);
+		em.getTransaction().commit();
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "onekp-ingest-report");
+				t.setDaemon(true);
+				return t;
+			}
+
+		});
+		try {
+			parsers_running.set(n_parsers);
+			for (int i=0; i<n_parsers; i++) {
+				start("parse-"+(i+1), new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						parseFiles();
+						return null;
+					}
+
+				});
+			}
+			start("batch", new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					makeBatches();
+					return null;
+				}
+
+			});
+			final Map<String,Object> props = em.getEntityManagerFactory().getProperties();
+			for (int i=0; i<n_loaders; i++) {
+				start("load-"+(i+1), new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						loadBatches(props);
+						return null;
+					}
+
+				});
+			}
+			reporter.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+					logger.info(describe());
+				}
+
+			}, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+
+			discoverFiles(persisted);
+			for (FutureTask<Void> task : tasks) {
+				while (true) {
+					finishParsedFiles();
+					try {
+						task.get(100, TimeUnit.MILLISECONDS);
+						break;
+					} catch (TimeoutException te) {
+						checkFailure();
+					}
+				}
+			}
+			finishParsedFiles();
+		} catch (Exception e) {
+			failure.compareAndSet(null, e);
+			// the other stages stop at their next wait
+			for (FutureTask<Void> task : tasks) {
+				try {
+					task.get();
+				} catch (Exception ignored) {
+					// the first failure is reported
+				}
+			}
+			Throwable cause = failure.get();
+			throw (cause instanceof Exception) ? (Exception) cause : e;
+		} finally {
+			reporter.shutdownNow();
+			logger.info(describe());
+			// any catalog loaded in this JVM no longer matches the FASTAFILE table
+			FastaFileCatalog.invalidate();
+		}
+
+		if (load.getRows() != parse.getRows()) {
+			throw new IOException("Parsed "+parse.getRows()+" sequence references but loaded "+load.getRows()+" into "+dsd.getSeqRefTable());
+		}
+		return (int) parse.getRows();
+	}
+
+	/**
+	 * Returns the depth of each queue and the progress of each stage so far
+	 */
+	public String describe() {
+		long elapsed = System.nanoTime() - start_ns;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Ingest of %s after %.0f seconds. Queued: %d/%d files, %d/%d chunks, %d/%d batches%n", dsd.getLabel(), elapsed / 1e9,
+				files.size(), files.size() + files.remainingCapacity(), chunks.size(), chunks.size() + chunks.remainingCapacity(),
+				batches.size(), batches.size() + batches.remainingCapacity()));
+		for (Stage s : getStages()) {
+			sb.append("  ").append(s.describe(elapsed)).append(String.format("%n"));
+		}
+		return sb.toString();
+	}
+
+	private void start(final String name, final Callable<Void> body) {
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				try {
+					return body.call();
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+					throw t;
+				}
+			}
+
+		});
+		Thread t = new Thread(task, "onekp-ingest-"+name);
+		t.setDaemon(true);
+		t.start();
+		tasks.add(task);
+	}
+
+	/**
+	 * Records each file in the FASTAFILE table and queues it for parsing. Uses the calling thread, as does all other use of the entity manager.
+	 */
+	private void discoverFiles(final DatasetDesignation persisted) throws IOException {
+		List<ParseTask> todo = new ArrayList<ParseTask>();
+		for (FastaPersistor fp : persistors) {
+			for (FastaFile f : fp.getFiles()) {
+				em.getTransaction().begin();
+				FastaFile ff = fp.getFastaRecord(em, f.getPath(), persisted);
+				em.getTransaction().commit();
+				todo.add(new ParseTask(fp, ff, new File(f.getPath())));
+			}
+		}
+		// largest first, so that no parser is left with a large file once the others are done
+		Collections.sort(todo, new Comparator<ParseTask>() {
+
+			@Override
+			public int compare(final ParseTask a, final ParseTask b) {
+				long diff = b.f.length() - a.f.length();
+				return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+			}
+
+		});
+		for (ParseTask task : todo) {
+			queueFile(task);
+			discover.items.incrementAndGet();
+			discover.bytes.addAndGet(task.f.length());
+		}
+		for (int i=0; i<n_parsers; i++) {
+			queueFile(NO_MORE_FILES);
+		}
+	}
+
+	/**
+	 * As for <code>put()</code>, but finishes parsed files while waiting for a parser
+	 */
+	private void queueFile(final ParseTask task) throws IOException {
+		long t0 = System.nanoTime();
+		try {
+			while (!files.offer(task, 100, TimeUnit.MILLISECONDS)) {
+				finishParsedFiles();
+				checkFailure();
+			}
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted while queueing files");
+		} finally {
+			discover.output_wait_ns.addAndGet(System.nanoTime() - t0);
+		}
+	}
+
+	/**
+	 * Saves the statistics and fingerprint of each file parsed since the last call
+	 */
+	private void finishParsedFiles() {
+		ParseTask task;
+		while ((task = parsed.poll()) != null) {
+			task.fp.finishFile(em, task.result);
+		}
+	}
+
+	private void parseFiles() throws Exception {
+		ChunkWriter cw = new ChunkWriter();
+		PrintWriter pw = new PrintWriter(cw);
+		ParseTask task;
+		while ((task = take(files, parse)) != NO_MORE_FILES) {
+			int n_records = FastaPersistor.countRecords(task.f);
+			task.result = task.fp.parseFile(pw, task.ff, task.f.getAbsolutePath(), SequenceReference.reserveIDs(n_records), n_records);
+			if (pw.checkError()) {
+				checkFailure();
+				throw new IOException("Unable to queue the sequence references of "+task.f.getAbsolutePath());
+			}
+			parse.items.incrementAndGet();
+			parse.rows.addAndGet(task.result.n);
+			parse.bytes.addAndGet(task.f.length());
+			parsed.add(task);
+		}
+		cw.close();
+		if (parsers_running.decrementAndGet() == 0) {
+			put(chunks, NO_MORE_CHUNKS, parse);
+		}
+	}
+
+	private void makeBatches() throws IOException {
+		Batch b = new Batch();
+		Chunk c;
+		while ((c = take(chunks, batch)) != NO_MORE_CHUNKS) {
+			b.add(c);
+			if (b.rows >= BATCH_ROWS) {
+				queueBatch(b);
+				b = new Batch();
+			}
+		}
+		if (b.rows > 0) {
+			queueBatch(b);
+		}
+		for (int i=0; i<n_loaders; i++) {
+			put(batches, NO_MORE_BATCHES, batch);
+		}
+	}
+
+	private void queueBatch(final Batch b) throws IOException {
+		put(batches, b, batch);
+		batch.items.incrementAndGet();
+		batch.rows.addAndGet(b.rows);
+		batch.bytes.addAndGet(b.bytes);
+	}
+
+	private void loadBatches(final Map<String,Object> props) throws Exception {
+		String table = dsd.getSeqRefTable();
+		Connection c = SequenceReferenceLoader.getConnection(props);
+		try {
+			c.setAutoCommit(false);
+			Batch b;
+			while ((b = take(batches, load)) != NO_MORE_BATCHES) {
+				int n = SequenceReferenceLoader.load(c, table, b.getInputStream(), use_batch);
+				c.commit();
+				// a replaced row counts twice, so more rows may be affected than were loaded
+				if (n < b.rows) {
+					throw new IOException("Loaded "+n+" of a batch of "+b.rows+" sequence references into "+table);
+				}
+				load.items.incrementAndGet();
+				load.rows.addAndGet(b.rows);
+				load.bytes.addAndGet(b.bytes);
+			}
+		} catch (Exception e) {
+			c.rollback();
+			throw e;
+		} finally {
+			c.close();
+		}
+	}
+
+	private <T> void put(final BlockingQueue<T> q, final T item, final Stage stage) throws IOException {
+		long t0 = System.nanoTime();
+		try {
+			while (!q.offer(item, 100, TimeUnit.MILLISECONDS)) {
+				long t = System.nanoTime();
+				stage.output_wait_ns.addAndGet(t - t0);
+				t0 = t;
+				checkFailure();
+			}
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted during "+stage.getName());
+		} finally {
+			stage.output_wait_ns.addAndGet(System.nanoTime() - t0);
+		}
+	}
+
+	private <T> T take(final BlockingQueue<T> q, final Stage stage) throws IOException {
+		long t0 = System.nanoTime();
+		try {
+			T ret;
+			while ((ret = q.poll(100, TimeUnit.MILLISECONDS)) == null) {
+				long t = System.nanoTime();
+				stage.input_wait_ns.addAndGet(t - t0);
+				t0 = t;
+				checkFailure();
+			}
+			return ret;
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException("Interrupted during "+stage.getName());
+		} finally {
+			stage.input_wait_ns.addAndGet(System.nanoTime() - t0);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable t = failure.get();
+		if (t != null) {
+			throw new IOException("Ingest of "+dsd.getLabel()+" abandoned: "+t, t);
+		}
+	}
+
+	/**
+	 * Gathers the rows saved by a parser into chunks of about <code>CHUNK_SIZE</code> characters, each ending at the end of a row,
+	 * and queues each for the batcher. Used (via a <code>PrintWriter</code>) by a single parser.
+	 */
+	private class ChunkWriter extends Writer {
+		private final StringBuilder sb = new StringBuilder(CHUNK_SIZE + 1024);
+		private int rows;
+
+		@Override
+		public void write(final char[] cbuf, final int off, final int len) throws IOException {
+			for (int i=off; i<off+len; i++) {
+				if (cbuf[i] == '\n') {
+					rows++;
+				}
+			}
+			sb.append(cbuf, off, len);
+			emitIfFull();
+		}
+
+		@Override
+		public void write(final String str, final int off, final int len) throws IOException {
+			for (int i=off; i<off+len; i++) {
+				if (str.charAt(i) == '\n') {
+					rows++;
+				}
+			}
+			sb.append(str, off, off + len);
+			emitIfFull();
+		}
+
+		@Override
+		public void flush() {
+			// a chunk is only queued once it is full (or the writer is closed), so that batches are of whole rows
+		}
+
+		@Override
+		public void close() throws IOException {
+			emit();
+		}
+
+		private void emitIfFull() throws IOException {
+			if (sb.length() >= CHUNK_SIZE && sb.charAt(sb.length() - 1) == '\n') {
+				emit();
+			}
+		}
+
+		private void emit() throws IOException {
+			if (sb.length() > 0) {
+				put(chunks, new Chunk(sb.toString().getBytes(UTF8), rows), parse);
+				sb.setLength(0);
+				rows = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFileStatistics;
+
+/**
+ * Accumulates the length of each sequence in a fasta file, as it is parsed, to compute the count, total, minimum, maximum and N50.
+ * The N50 cannot be computed until all lengths are known, so the number of sequences of each length is counted: memory use depends on
+ * the number of distinct lengths (at most a few hundred kilobytes in practice) rather than the number of records.
+ *
+ * @author acassin
+ *
+ */
+public class LengthStatistics {
+	private final static int SHORT_LENGTHS = 64 * 1024;
+
+	private long[] short_counts = new long[1024];		// number of sequences of each length below SHORT_LENGTHS, indexed by length
+	private final TreeMap<Integer,Long> long_counts = new TreeMap<Integer,Long>();
+	private int n;
+	private long total;
+	private int min = Integer.MAX_VALUE, max;
+
+	public void add(final int length) {
+		assert(length >= 0);
+		if (length < SHORT_LENGTHS) {
+			if (length >= short_counts.length) {
+				short_counts = Arrays.copyOf(short_counts, Math.min(SHORT_LENGTHS, Math.max(length + 1, short_counts.length * 2)));
+			}
+			short_counts[length]++;
+		} else {
+			Long count = long_counts.get(length);
+			long_counts.put(length, (count == null) ? 1L : count.longValue() + 1);
+		}
+		n++;
+		total += length;
+		if (length < min) {
+			min = length;
+		}
+		if (length > max) {
+			max = length;
+		}
+	}
+
+	public int getCount() {
+		return n;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the length of the shortest sequence, or zero if there are none
+	 */
+	public int getMin() {
+		return (n > 0) ? min : 0;
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the N50: the length L such that sequences of length L or more contain at least half of all residues. Zero if there are no residues.
+	 */
+	public int getN50() {
+		if (total < 1) {
+			return 0;
+		}
+		long sum = 0;
+		for (Map.Entry<Integer,Long> e : long_counts.descendingMap().entrySet()) {
+			sum += e.getKey().longValue() * e.getValue().longValue();
+			if (sum * 2 >= total) {
+				return e.getKey().intValue();
+			}
+		}
+		for (int len=short_counts.length-1; len>0; len--) {
+			sum += len * short_counts[len];
+			if (short_counts[len] > 0 && sum * 2 >= total) {
+				return len;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Copies the statistics into the specified (persistent) record
+	 */
+	public FastaFileStatistics save(final FastaFileStatistics ffs) {
+		assert(ffs != null);
+		ffs.setRecordCount(getCount());
+		ffs.setTotalResidues(getTotal());
+		ffs.setMinLength(getMin());
+		ffs.setMaxLength(getMax());
+		ffs.setN50(getN50());
+		return ffs;
+	}
+}
@@ -0,0 +1,151 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A map which holds at most a budget of bytes, as measured by {@link #sizeOf(Object)}, and evicts the least recently used entries
+ * to stay within it. An entry larger than the budget is still held, until the next entry is added. A budget of zero disables the cache.
+ * The response cache, BGZF block cache and pool of mapped fasta regions are each built on one of these.
+ *
+ * @author acassin
+ *
+ */
+public abstract class LruCache<K,V> {
+	/**
+	 * Selects the entries to be removed by {@link LruCache#invalidate(KeyFilter)}
+	 */
+	public interface KeyFilter<K> {
+		public boolean matches(final K key);
+	}
+
+	private final long max_bytes;
+	private final LinkedHashMap<K,V> entries;		// in access order, so that eldest entry is least recently used
+	private long cached_bytes;
+
+	private final AtomicLong hits      = new AtomicLong();
+	private final AtomicLong misses    = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public LruCache(final long max_bytes) {
+		assert(max_bytes >= 0);
+		this.max_bytes    = max_bytes;
+		this.entries      = new LinkedHashMap<K,V>(1024, 0.75f, true);
+		this.cached_bytes = 0;
+	}
+
+	/**
+	 * Returns the number of bytes the value counts against the budget
+	 */
+	protected abstract long sizeOf(final V value);
+
+	/**
+	 * Called (whilst the cache is locked) for each entry evicted to make room for another. Does nothing unless overridden.
+	 */
+	protected void evicted(final K key, final V value) {
+	}
+
+	public long getMaxBytes() {
+		return max_bytes;
+	}
+
+	/**
+	 * Returns the cached value, or null if there is none, making it the most recently used entry
+	 */
+	public V get(final K key) {
+		V ret;
+		synchronized (this) {
+			ret = entries.get(key);
+		}
+		if (ret != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds (or replaces) the entry, then evicts the least recently used entries other than it until the cache is within budget
+	 */
+	public synchronized void put(final K key, final V value) {
+		assert(key != null && value != null);
+		if (max_bytes <= 0) {
+			return;
+		}
+		V old = entries.put(key, value);
+		if (old != null) {
+			cached_bytes -= sizeOf(old);
+		}
+		cached_bytes += sizeOf(value);
+		Iterator<Map.Entry<K,V>> it = entries.entrySet().iterator();
+		while (cached_bytes > max_bytes && it.hasNext()) {
+			Map.Entry<K,V> e = it.next();
+			if (e.getKey().equals(key)) {
+				continue;
+			}
+			cached_bytes -= sizeOf(e.getValue());
+			it.remove();
+			evictions.incrementAndGet();
+			evicted(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Removes the entry, if any
+	 * @return the value removed or null if there was none
+	 */
+	public synchronized V remove(final K key) {
+		V ret = entries.remove(key);
+		if (ret != null) {
+			cached_bytes -= sizeOf(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes every entry whose key matches the filter
+	 * @return the number of entries removed
+	 */
+	public synchronized int invalidate(final KeyFilter<K> filter) {
+		assert(filter != null);
+		int ret = 0;
+		Iterator<Map.Entry<K,V>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<K,V> e = it.next();
+			if (filter.matches(e.getKey())) {
+				cached_bytes -= sizeOf(e.getValue());
+				it.remove();
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		cached_bytes = 0;
+	}
+
+	public synchronized long getCachedBytes() {
+		return cached_bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
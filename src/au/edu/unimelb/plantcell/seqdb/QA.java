@@ -69,6 +69,37 @@ public class QA {
 		return seq1.equalsIgnoreCase(seq2);
 	}
 
+	/**
+	 * Returns true if the sequence of <code>entry</code> is one of the sequences in <code>response</code>, which may have several
+	 * fasta records (eg. for a partial ID). Case is ignored.
+	 */
+	public boolean containsFastaSequence(String response, String entry) {
+		String seq = makeSequence(entry);
+		if (seq == null || seq.length() < 1) {
+			return false;
+		}
+		StringReader sr = new StringReader(response);
+		BufferedReader rdr = new BufferedReader(sr);
+		StringBuilder sb = new StringBuilder(seq.length());
+		String line;
+		try {
+			while ((line = rdr.readLine()) != null) {
+				if (line.startsWith(">")) {
+					if (sb.toString().equalsIgnoreCase(seq)) {
+						return true;
+					}
+					sb.setLength(0);
+					continue;
+				}
+				sb.append(line.trim());
+			}
+			return sb.toString().equalsIgnoreCase(seq);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			return false;
+		}
+	}
+
 	private String makeSequence(String entry) {
 		StringReader sr = new StringReader(entry);
 		BufferedReader rdr = new BufferedReader(sr);
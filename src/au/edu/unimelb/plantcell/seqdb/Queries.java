@@ -4,9 +4,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.persistence.EntityManager;
@@ -17,10 +24,12 @@ import org.apache.openjpa.persistence.PersistenceException;
 
 import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
 import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFileStatistics;
 import au.edu.unimelb.plantcell.jpa.dao.SampleAnnotation;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceReferenceInterface;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
 import au.edu.unimelb.plantcell.jpa.dao.k25_SeqRef;
+import au.edu.unimelb.plantcell.services.impl.ByteSequenceCallback;
 import au.edu.unimelb.plantcell.services.impl.OneKPSequenceService;
 import au.edu.unimelb.plantcell.services.impl.SequenceCallback;
 
@@ -33,6 +42,8 @@ import au.edu.unimelb.plantcell.services.impl.SequenceCallback;
  *
  */
 public class Queries {
+	public final static Charset US_ASCII = Charset.forName("US-ASCII");
+	
 	private OneKPSequenceService service;
 	
 	/**
@@ -75,6 +86,13 @@ public class Queries {
 		int row_cnt = q.executeUpdate();
 	}
 	
+	public static void emptyFastaFileStatisticsTable(final EntityManager em) {
+		assert(em != null);
+		Query q = em.createQuery("delete from FastaFileStatistics");
+		@SuppressWarnings("unused")
+		int row_cnt = q.executeUpdate();
+	}
+	
 	public static void emptySampleTable(final EntityManager em) {
 		assert(em != null);
 		Query q = em.createQuery("delete from SampleAnnotation");
@@ -108,37 +126,165 @@ public class Queries {
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Returns the catalog of fasta files, which is used in place of querying the FASTAFILE table
+	 */
+	private FastaFileCatalog getCatalog() {
+		return FastaFileCatalog.getInstance(service.getEntityManager());
+	}
+	
 	public void getSingleSequence(final File fasta_file, final SequenceCallback cb, final String sid) throws FileNotFoundException,IOException,NoResultException {
 		assert(fasta_file != null && sid != null && cb != null);
 		
+		long t = RequestTrace.start();
+		try {
+			reportFastaEntries(findSequenceReferences(fasta_file, sid), cb);
+		} finally {
+			RequestTrace.end("getSingleSequence", t);
+		}
+	}
+	
+	/**
+	 * Resolves the specified sequence to its location in the fasta file, without reading it. The returned
+	 * references may be passed to <code>reportFastaEntries()</code> once the caller is ready for the sequence data.
+	 * 
+	 * @param fasta_file
+	 * @param sid
+	 * @return an empty list if the fasta file is not part of the dataset
+	 * @throws NoResultException if the fasta file does not contain the sequence
+	 */
+	public List<SequenceReferenceInterface> findSequenceReferences(final File fasta_file, final String sid) throws NoResultException {
+		assert(fasta_file != null && sid != null);
+		
+		long t = RequestTrace.start();
+		try {
+			return findSequenceReference(fasta_file, sid);
+		} finally {
+			RequestTrace.end("findSequenceReferences", t);
+		}
+	}
+	
+	private List<SequenceReferenceInterface> findSequenceReference(final File fasta_file, final String sid) throws NoResultException {
 		EntityManager em = service.getEntityManager();
 		assert(em != null);
 		
-		Query q = em.createQuery("select ff from FastaFile ff where ff.path = :fastaFilePath and ff.dsd.label = :dsd");
-		q.setParameter("fastaFilePath", fasta_file.getAbsolutePath());
 		String dsd = getDesignation().getLabel();
-		q.setParameter("dsd", dsd);
-		List<FastaFile> fastas = q.getResultList();
+		FastaFile ff = getCatalog().findByPath(fasta_file.getAbsolutePath(), dsd);
 		Logger l = service.getLogger();
-		l.info("Found "+fastas.size()+" fasta files for "+dsd+" - "+sid);
-		if (fastas.size() < 1) {
-			return;
+		if (ff == null) {
+			l.info("Found no fasta files for "+dsd+" - "+sid);
+			return new ArrayList<SequenceReferenceInterface>(0);
+		}
+		SequenceReferenceInterface sr = findIndexedSequenceReference(ff, sid);
+		if (sr == null) {
+			// no usable sidecar index, so the database must be consulted
+			String entity = getSeqRefEntityName();
+			int ffid = ff.getID();
+			l.info("Fetching record from "+entity+" for "+sid+" from "+ff.getPath()+" ffid="+ffid);
+			Query q = em.createQuery("select sr from "+entity+" sr where sr.fastaFile.id = :fasta AND sr.sequenceID = :seqID");
+			q.setParameter("fasta", ffid);
+			q.setParameter("seqID", sid);
+			long t = RequestTrace.start();
+			try {
+				sr = (SequenceReferenceInterface) q.getSingleResult();
+			} finally {
+				RequestTrace.end("seqrefQuery", t);
+			}
+			// copied so that the reference uses the catalog's fasta file, rather than one managed by the entity manager
+			sr = newSequenceReference(ff, sr.getSequenceID(), sr.getStart(), sr.getLength());
 		}
-		FastaFile ff = fastas.get(0);
-		String entity = getSeqRefEntityName();
-		int ffid = ff.getID();
-		l.info("Fetching record from "+entity+" for "+sid+" from "+ff.getPath()+" ffid="+ffid);
-		q = em.createQuery("select sr from "+entity+" sr where sr.fastaFile.id = :fasta AND sr.sequenceID = :seqID");
-		q.setParameter("fasta", ffid);
-		q.setParameter("seqID", sid);
-		SequenceReferenceInterface sr;
-	
-		sr = (SequenceReferenceInterface) q.getSingleResult();
 		l.info("Fetched single record for "+sid);
-		reportFastaEntries(l, ff, new SequenceReferenceInterface[] { sr }, cb);
+		List<SequenceReferenceInterface> ret = new ArrayList<SequenceReferenceInterface>(1);
+		ret.add(sr);
+		return ret;
 	}
 
+	/**
+	 * Set-based form of <code>findSequenceReferences()</code>: resolves many sequences from the same fasta file using the sidecar
+	 * index if available, otherwise with one query per block of (up to 500) ID's rather than one query per ID. Sequences
+	 * which cannot be found are not reported.
+	 * 
+	 * @param fasta_file
+	 * @param sids database sequence ID's (as returned by <code>getSequenceIDFromSequenceID()</code>)
+	 * @return map of database sequence ID to reference, for each ID found
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String,SequenceReferenceInterface> findSequenceReferences(final File fasta_file, final Collection<String> sids) {
+		assert(fasta_file != null && sids != null);
+		
+		HashMap<String,SequenceReferenceInterface> ret = new HashMap<String,SequenceReferenceInterface>(sids.size() * 2);
+		String dsd = getDesignation().getLabel();
+		FastaFile ff = getCatalog().findByPath(fasta_file.getAbsolutePath(), dsd);
+		Logger l = service.getLogger();
+		if (ff == null) {
+			l.info("Found no fasta files for "+dsd+" - "+fasta_file.getAbsolutePath());
+			return ret;
+		}
+		FastaOffsetIndex idx = getIndex(ff);
+		if (idx != null) {
+			for (String sid : sids) {
+				int i = idx.find(sid);
+				if (i >= 0) {
+					ret.put(sid, newSequenceReference(ff, sid, idx.getStart(i), idx.getLength(i)));
+				}
+			}
+		} else {
+			String entity = getSeqRefEntityName();
+			List<String> todo = new ArrayList<String>(sids);
+			for (int start=0; start < todo.size(); start += 500) {
+				List<String> block = todo.subList(start, Math.min(start + 500, todo.size()));
+				Query q = service.getEntityManager().createQuery("select sr from "+entity+" sr where sr.fastaFile.id = :fasta AND sr.sequenceID IN :seqIDs");
+				q.setParameter("fasta", ff.getID());
+				q.setParameter("seqIDs", block);
+				for (SequenceReferenceInterface sr : (List<SequenceReferenceInterface>) q.getResultList()) {
+					// copied so that the reference uses the catalog's fasta file, rather than one managed by the entity manager
+					ret.put(sr.getSequenceID(), newSequenceReference(ff, sr.getSequenceID(), sr.getStart(), sr.getLength()));
+				}
+			}
+		}
+		l.info("Found "+ret.size()+" of "+sids.size()+" sequences in "+ff.getPath());
+		return ret;
+	}
+	
+	/**
+	 * Looks up the specified sequence in the sidecar index for the fasta file (see {@link FastaOffsetIndex}) 
+	 * 
+	 * @param ff
+	 * @param sid
+	 * @return null if there is no usable index for the file, in which case the caller must use the database
+	 * @throws NoResultException if the index does not contain the sequence
+	 */
+	private SequenceReferenceInterface findIndexedSequenceReference(final FastaFile ff, final String sid) throws NoResultException {
+		FastaOffsetIndex idx = getIndex(ff);
+		if (idx == null) {
+			return null;
+		}
+		int i = idx.find(sid);
+		if (i < 0) {
+			throw new NoResultException("No sequence "+sid+" in "+ff.getPath());
+		}
+		return newSequenceReference(ff, sid, idx.getStart(i), idx.getLength(i));
+	}
+	
+	/**
+	 * Returns the sidecar index for the fasta file, or null if there is none. As every lookup starts here, this is where a file which has been
+	 * re-ingested since it was last read is noticed, and whatever was cached from its old version is discarded (see {@link FastaFileVersions}).
+	 */
+	private FastaOffsetIndex getIndex(final FastaFile ff) {
+		FastaFileVersions.check(ff);
+		return FastaOffsetIndex.getInstance(new File(ff.getPath()));
+	}
+	
+	private SequenceReferenceInterface newSequenceReference(final FastaFile ff, final String sid, final long start, final int length) {
+		// doesnt matter which subclass of SequenceReferenceInterface as reportFastaRecords() doesnt care
+		k25_SeqRef sr = new k25_SeqRef();
+		sr.setFastaFile(ff);
+		sr.setSequenceID(sid);
+		sr.setStart(start);
+		sr.setLength(length);
+		return sr;
+	}
+	
 	public int countOneKPSamples() {
 		Query q = service.getEntityManager().createQuery("select count(sa.id) from SampleAnnotation sa");
 		return ((Long)q.getSingleResult()).intValue();
@@ -156,14 +302,11 @@ public class Queries {
 		return (SampleAnnotation) q.getSingleResult();
 	}
 	
-	@SuppressWarnings("unchecked")
 	public int countSequencesInFile(final FastaFile ff) throws NoResultException {
 		EntityManager em = service.getEntityManager();
 		Logger logger = service.getLogger();
-		Query q = em.createQuery("select ff from FastaFile ff where ff.path = :fastaFilePath");
-		q.setParameter("fastaFilePath", ff.getPath());
 		try {
-			List<FastaFile> fastas =  q.getResultList();
+			List<FastaFile> fastas = getCatalog().findByPath(ff.getPath());
 			if (fastas.size() > 1) {
 				logger.warning("Did not get the expected number of FASTA files for "+ff.getPath());
 				logger.warning("Expected 1 file, but got "+fastas.size());
@@ -173,7 +316,7 @@ public class Queries {
 			}
 			String table = getSeqRefEntityName();
 			logger.info("Searching table "+table+" for references to sequences in "+ff.getPath());
-			q = em.createQuery("select count(sr.sequenceID) from "+table+" sr where sr.fastaFile = :fasta");
+			Query q = em.createQuery("select count(sr.sequenceID) from "+table+" sr where sr.fastaFile = :fasta");
 			q.setParameter("fasta", fastas.get(0));
 			return ((Long) q.getSingleResult()).intValue();
 		} catch (NoResultException nre) {
@@ -182,22 +325,35 @@ public class Queries {
 	}
 	
 	public int countSequencesInSample(final String onekp_sample_id, final SequenceType st) throws NoResultException {
-		EntityManager em = service.getEntityManager();
 		String dsd_label = getDesignation().getLabel();
 		Logger l = service.getLogger();
 		l.info("dsd label is "+dsd_label);
 		l.info("onekp sample id is "+onekp_sample_id);
-		Query q = em.createQuery("select ff from FastaFile ff where "+
-							"ff.onekp_sample_id = :id AND ff.sequence_type = :st and ff.dsd.label = :dsd");
-		q.setParameter("id", onekp_sample_id);
-		q.setParameter("st", st);
-		q.setParameter("dsd", dsd_label);
-		
-		// will throw if no result, so no need to check for ff == null
-		FastaFile ff = (FastaFile) q.getSingleResult();
+		FastaFile ff = getCatalog().find(dsd_label, onekp_sample_id, st);
+		if (ff == null) {
+			throw new NoResultException("No "+st+" fasta file for "+onekp_sample_id+" in "+dsd_label);
+		}
 		l.info("Got fasta file "+ff.getPath());
+		FastaFileStatistics ffs = getCatalog().getStatistics(ff);
+		if (ffs != null) {
+			return ffs.getRecordCount();
+		}
 		return countSequencesInFile(ff);
 	}
+
+	/**
+	 * Returns the statistics recorded when the sample's fasta file (of the given type) was ingested
+	 * @return null if the file was ingested before statistics were recorded
+	 * @throws NoResultException if the dataset has no such fasta file
+	 */
+	public FastaFileStatistics getSampleStatistics(final String onekp_sample_id, final SequenceType st) throws NoResultException {
+		String dsd_label = getDesignation().getLabel();
+		FastaFile ff = getCatalog().find(dsd_label, onekp_sample_id, st);
+		if (ff == null) {
+			throw new NoResultException("No "+st+" fasta file for "+onekp_sample_id+" in "+dsd_label);
+		}
+		return getCatalog().getStatistics(ff);
+	}
 	
 	public long getNumberofDatasetDesignations(String label_to_match) throws NoResultException {
 		Query q = service.getEntityManager().createQuery("select count(dsd.id) from DatasetDesignation dsd where dsd.label=:l");
@@ -213,18 +369,49 @@ public class Queries {
 		return (long) q.getSingleResult();
 	}
 
+	/**
+	 * Returns true if the service's dataset has any sequences for the sample ID which starts at <code>offset</code> within <code>id</code>
+	 */
+	public boolean isKnownSample(final CharSequence id, final int offset) {
+		return getCatalog().isKnownSample(getDesignation().getLabel(), id, offset);
+	}
+
 	public File findFastaFile(final SequenceType st, final String sample_id) throws NoResultException {
 		assert(sample_id != null && sample_id.length() == 4 && st != null);
+		long t = RequestTrace.start();
 		Logger l = service.getLogger();
 		l.info("Given sample id: "+sample_id);
-		Query q = service.getEntityManager().createQuery("select f.path from FastaFile f "+
-					"where f.onekp_sample_id = :id and f.sequence_type = :st and f.dsd.label = :dsd");
 		String dsd = getDesignation().getLabel();
-		q.setParameter("id", sample_id);
-		q.setParameter("st", st);
-		q.setParameter("dsd", dsd);
 		l.info("Searching for fasta file: "+st+" "+dsd+" "+sample_id);
-		return new File((String) q.getSingleResult());
+		FastaFile ff = getCatalog().find(dsd, sample_id, st);
+		RequestTrace.end("findFastaFile", t);
+		if (ff == null) {
+			throw new NoResultException("No "+st+" fasta file for "+sample_id+" in "+dsd);
+		}
+		return new File(ff.getPath());
+	}
+	
+	/**
+	 * Returns the gzip-compressed copy of the fasta file (made at ingest) for the sample, if it exists and is up to date
+	 * @return null if there is no usable compressed copy
+	 * @throws NoResultException if there is no fasta file for the sample
+	 */
+	public File findCompressedFastaFile(final SequenceType st, final String sample_id) throws NoResultException {
+		assert(sample_id != null && sample_id.length() == 4 && st != null);
+		String dsd = getDesignation().getLabel();
+		FastaFile ff = getCatalog().find(dsd, sample_id, st);
+		if (ff == null) {
+			throw new NoResultException("No "+st+" fasta file for "+sample_id+" in "+dsd);
+		}
+		if (ff.getGzipPath() == null) {
+			return null;
+		}
+		File gz = new File(ff.getGzipPath());
+		if (!gz.canRead() || gz.lastModified() < new File(ff.getPath()).lastModified()) {
+			service.getLogger().warning("Ignoring missing or stale compressed copy: "+gz.getAbsolutePath());
+			return null;
+		}
+		return gz;
 	}
 	
 	public SequenceReferenceInterface getSequenceReference(final String id) throws NoResultException {
@@ -256,6 +443,7 @@ public class Queries {
 	public static void emptyTables(final EntityManager em) {
 		em.getTransaction().begin();
 		emptySampleTable(em);
+		emptyFastaFileStatisticsTable(em);
 		emptyFastaFileTable(em);
 		emptyDatasetDesignationTable(em);
 		em.getTransaction().commit();
@@ -292,13 +480,7 @@ public class Queries {
 	 */
 	public String getDatasetsAsString(final String onekp_sample_id, final SequenceType st) throws NoResultException {
 		StringBuilder sb = new StringBuilder();
-		EntityManager em = service.getEntityManager();
-		Query q = em.createQuery("select distinct(dsd.label) from FastaFile ff, DatasetDesignation dsd where "+
-					"ff.dsd.id = dsd.id and ff.onekp_sample_id = :sample and ff.sequence_type = :st order by dsd.label");
-		q.setParameter("sample", onekp_sample_id);
-		q.setParameter("st", st);
-		@SuppressWarnings("unchecked")
-		List<String> datasets = q.getResultList();
+		List<String> datasets = getCatalog().getDatasetLabels(onekp_sample_id, st);
 		for (String s : datasets) {
 			sb.append(s);
 			sb.append(' ');
@@ -317,24 +499,44 @@ public class Queries {
 	 * @throws Exception 
 	 */
 	public void getSequencesByPartialID(final File fasta_file, final String partial_id, final SequenceCallback sc, SequenceType st) throws Exception {
+		reportFastaEntries(findSequenceReferencesByPartialID(fasta_file, partial_id, st), sc);
+	}
+	
+	/**
+	 * Resolves each sequence matching the partial ID to its location in the fasta file, without reading them.
+	 * 
+	 * @param fasta_file
+	 * @param partial_id
+	 * @param st
+	 * @return matching references, possibly empty. At most 1000 are returned if the fasta file has no sidecar index
+	 * @throws Exception
+	 */
+	public List<SequenceReferenceInterface> findSequenceReferencesByPartialID(final File fasta_file, final String partial_id, SequenceType st) throws Exception {
 		EntityManager em = service.getEntityManager();
-		Query q = em.createQuery("select ff from FastaFile ff where ff.path = :fastaFilePath and ff.dsd.label = :dsd");
-		q.setParameter("fastaFilePath", fasta_file.getAbsolutePath());
 		String dsd = getDesignation().getLabel();
-		q.setParameter("dsd", dsd);
-		List<FastaFile> fastas = q.getResultList();
+		FastaFile ff = getCatalog().findByPath(fasta_file.getAbsolutePath(), dsd);
 		Logger l = service.getLogger();
-		if (fastas.size() < 1) {
+		if (ff == null) {
 			l.warning("No fasta files for "+dsd+" "+partial_id);
-			return;
+			return new ArrayList<SequenceReferenceInterface>(0);
+		}
+		FastaOffsetIndex idx = getIndex(ff);
+		if (idx != null) {
+			// a prefix is a contiguous range of the sorted index, so there is no need to cap the number of matches
+			int[] range = idx.findPrefixRange(partial_id);
+			ArrayList<SequenceReferenceInterface> records = new ArrayList<SequenceReferenceInterface>(range[1] - range[0]);
+			for (int i=range[0]; i<range[1]; i++) {
+				records.add(newSequenceReference(ff, idx.getSequenceID(i), idx.getStart(i), idx.getLength(i)));
+			}
+			l.info("Found "+records.size()+" indexed sequences matching "+partial_id);
+			return records;
 		}
-		FastaFile ff = fastas.get(0);
 		String entity = getSeqRefEntityName();
 		l.info("Fetching record from "+entity+" looking for "+partial_id+" from fastafile.id = "+ff.getID());
 		
-		q = em.createNativeQuery("SELECT sr.SEQ_ID,sr.START,sr.LENGTH FROM "+entity.toUpperCase()+" sr WHERE sr.FASTAFILE_ID = ?1 AND (sr.SEQ_ID LIKE CONCAT(?2, '%'))");
+		Query q = em.createNativeQuery("SELECT sr.SEQ_ID,sr.START,sr.LENGTH FROM "+entity.toUpperCase()+" sr WHERE sr.FASTAFILE_ID = ?1 AND sr.SEQ_ID LIKE ?2");
 		q.setParameter(1, ff.getID());
-		q.setParameter(2, partial_id);
+		q.setParameter(2, partial_id + "%");
 		q.setMaxResults(1000);
 		try {
 			List<Object[]> results = q.getResultList();
@@ -344,39 +546,226 @@ public class Queries {
 			ArrayList<SequenceReferenceInterface> records = new ArrayList<SequenceReferenceInterface>(results.size());
 			
 			for (Object[] o : results) {
-				// doesnt matter which subclass of SequenceReferenceInterface as reportFastaRecords() doesnt care
-				k25_SeqRef sr = new k25_SeqRef();
-				sr.setFastaFile(ff);
-				sr.setSequenceID(o[0].toString());
-				sr.setStart(Long.valueOf(o[1].toString()));
-				sr.setLength(Integer.valueOf(o[2].toString()));
-				records.add(sr);
+				records.add(newSequenceReference(ff, o[0].toString(), Long.valueOf(o[1].toString()), Integer.valueOf(o[2].toString())));
 			}
-			
-			reportFastaEntries(l, ff, records.toArray(new SequenceReferenceInterface[0]), sc);
+			return records;
 		} catch (Exception nre) {
 			l.warning(nre.getMessage());
 			throw nre;
 		}
 	}
 
+	/**
+	 * Reports the fasta record for each reference, in the order given, to the callback. If the callback is a
+	 * {@link ByteSequenceCallback} the record bytes are passed without copying or decoding them.
+	 * 
+	 * @param refs references as returned by <code>findSequenceReferences()</code> or <code>findSequenceReferencesByPartialID()</code>
+	 * @param cb
+	 * @throws IOException
+	 */
+	public void reportFastaEntries(final List<SequenceReferenceInterface> refs, final SequenceCallback cb) throws IOException {
+		assert(refs != null && cb != null);
+		Logger l = service.getLogger();
+		long t = RequestTrace.start();
+		int start = 0;
+		try {
+			// report consecutive references to the same fasta file together, so that each file is opened at most once
+			while (start < refs.size()) {
+				FastaFile ff = refs.get(start).getFastaFile();
+				int end = start + 1;
+				while (end < refs.size() && refs.get(end).getFastaFile() == ff) {
+					end++;
+				}
+				reportFastaEntries(l, ff, refs.subList(start, end).toArray(new SequenceReferenceInterface[0]), cb);
+				start = end;
+			}
+		} finally {
+			RequestTrace.end("reportFastaEntries", t);
+		}
+	}
+	
+	/**
+	 * Returns residues <code>from</code>..<code>to</code> (one-based, inclusive) of the specified sequence. When the sidecar index
+	 * records the line layout of the sequence, only the bytes spanning the region are read (as <code>samtools faidx</code> does),
+	 * otherwise the whole record is read.
+	 * 
+	 * @param fasta_file
+	 * @param sid database sequence ID
+	 * @param from first residue, at least one
+	 * @param to last residue, clipped to the end of the sequence
+	 * @return the residues without line terminators
+	 * @throws NoResultException if the sequence cannot be found
+	 * @throws IllegalArgumentException if <code>from</code> is beyond the end of the sequence
+	 */
+	public byte[] getSubsequence(final File fasta_file, final String sid, final long from, final long to) throws IOException,NoResultException {
+		assert(from >= 1 && to >= from);
+		List<SequenceReferenceInterface> refs = findSequenceReferences(fasta_file, sid);
+		if (refs.size() < 1) {
+			throw new NoResultException("No fasta file for "+sid);
+		}
+		SequenceReferenceInterface sr = refs.get(0);
+		FastaFile ff = sr.getFastaFile();
+		FastaOffsetIndex idx = getIndex(ff);
+		int i = (idx != null) ? idx.find(sid) : -1;
+		if (i >= 0 && idx.getLineBases(i) > 0) {
+			int header = idx.getHeaderLength(i);
+			int bases  = idx.getLineBases(i);
+			int width  = idx.getLineWidth(i);
+			long body  = sr.getLength() - header;		// the record length excludes the final line terminator
+			long n_residues = (body / width) * bases + Math.min(body % width, bases);
+			if (from > n_residues) {
+				throw new IllegalArgumentException(sid+" has only "+n_residues+" residues");
+			}
+			long last  = Math.min(to, n_residues);
+			long skip  = header + getResidueOffset(from - 1, bases, width);
+			long end   = header + getResidueOffset(last - 1, bases, width) + 1;
+			return stripLineTerminators(readBytes(ff, sr.getStart(), skip, (int) (end - skip)), 0);
+		}
+		
+		// line layout unknown, so the whole record must be read
+		byte[] record = readBytes(ff, sr.getStart(), 0, sr.getLength());
+		int body_start = 0;
+		while (body_start < record.length && record[body_start] != '\n') {
+			body_start++;
+		}
+		byte[] residues = stripLineTerminators(record, body_start);
+		if (from > residues.length) {
+			throw new IllegalArgumentException(sid+" has only "+residues.length+" residues");
+		}
+		return Arrays.copyOfRange(residues, (int) (from - 1), (int) Math.min(to, residues.length));
+	}
+	
+	/**
+	 * Returns the offset (from the first sequence line) of a zero-based residue position
+	 */
+	private static long getResidueOffset(final long pos, final int line_bases, final int line_width) {
+		return (pos / line_bases) * line_width + (pos % line_bases);
+	}
+	
+	private static byte[] stripLineTerminators(final byte[] bytes, final int start) {
+		byte[] ret = new byte[bytes.length - start];
+		int n = 0;
+		for (int i=start; i<bytes.length; i++) {
+			byte b = bytes[i];
+			if (b != '\n' && b != '\r') {
+				ret[n++] = b;
+			}
+		}
+		return Arrays.copyOf(ret, n);
+	}
+	
+	/**
+	 * Returns <code>length</code> bytes, <code>skip</code> (uncompressed) bytes into the record starting at <code>record_start</code>
+	 */
+	private byte[] readBytes(final FastaFile ff, final long record_start, final long skip, final int length) throws IOException {
+		if (BgzfBlockCache.isCompressed(ff)) {
+			return BgzfBlockCache.getInstance().read(ff, record_start, skip, length);
+		}
+		long start = record_start + skip;
+		ByteBuffer region = FastaRegionPool.getInstance().getRecord(ff, start, length);
+		if (region == null) {
+			RandomAccessFile raf = new RandomAccessFile(ff.getPath(), "r");
+			try {
+				SequenceReferenceInterface sr = newSequenceReference(ff, "", start, length);
+				region = readRecord(raf, sr, false);
+			} finally {
+				raf.close();
+			}
+		}
+		byte[] ret = new byte[region.remaining()];
+		region.get(ret);
+		return ret;
+	}
+	
+	/**
+	 * Byte-oriented alternative to <code>reportFastaEntries()</code>: copies each record (followed by a newline) from the fasta file
+	 * to the output channel with <code>FileChannel.transferTo()</code>, so that the record is never copied onto the heap or
+	 * decoded. Records are written in the order given. Records from BGZF-compressed files are necessarily decompressed onto the heap.
+	 * 
+	 * @param refs references as returned by <code>findSequenceReferences()</code> or <code>findSequenceReferencesByPartialID()</code>
+	 * @param out
+	 * @return the total number of bytes written
+	 * @throws IOException
+	 */
+	public long transferFastaEntries(final List<SequenceReferenceInterface> refs, final WritableByteChannel out) throws IOException {
+		assert(refs != null && out != null);
+		ByteBuffer newline = ByteBuffer.wrap(new byte[] { '\n' });
+		FastaFile cur = null;
+		RandomAccessFile raf = null;
+		long total = 0;
+		long t = RequestTrace.start();
+		try {
+			for (SequenceReferenceInterface sr : refs) {
+				if (sr.getFastaFile() != cur) {
+					if (raf != null) {
+						raf.close();
+						raf = null;
+					}
+					cur = sr.getFastaFile();
+					if (!BgzfBlockCache.isCompressed(cur)) {
+						raf = new RandomAccessFile(cur.getPath(), "r");
+					}
+				}
+				if (raf == null) {
+					// compressed records must be decompressed onto the heap
+					ByteBuffer record = ByteBuffer.wrap(BgzfBlockCache.getInstance().read(cur, sr.getStart(), 0, sr.getLength()));
+					while (record.hasRemaining()) {
+						out.write(record);
+					}
+				} else {
+					transferRecord(raf.getChannel(), sr, out);
+				}
+				newline.rewind();
+				while (newline.hasRemaining()) {
+					out.write(newline);
+				}
+				total += sr.getLength() + 1;
+			}
+			return total;
+		} finally {
+			if (raf != null) {
+				raf.close();
+			}
+			RequestTrace.end("transferFastaEntries", t);
+		}
+	}
+	
+	private void transferRecord(final FileChannel fc, final SequenceReferenceInterface sr, final WritableByteChannel out) throws IOException {
+		long pos = sr.getStart();
+		long end = pos + sr.getLength();
+		if (end > fc.size()) {
+			throw new IOException("Cannot read "+sr.getLength()+" bytes at "+pos+" (past end of file)!");
+		}
+		while (pos < end) {
+			pos += fc.transferTo(pos, end - pos, out);
+		}
+	}
+	
 	private void reportFastaEntries(final Logger l, final FastaFile ff, 
 			final SequenceReferenceInterface[] sr_array, final SequenceCallback cb) throws FileNotFoundException,IOException {
 		assert(cb != null && sr_array != null && sr_array.length > 0 && ff != null && l != null);
 		
-		RandomAccessFile raf = null;
+		FastaRegionPool pool = FastaRegionPool.getInstance();
+		boolean compressed = BgzfBlockCache.isCompressed(ff);
+		RandomAccessFile raf = null;		// only opened for records which the pool cannot serve
 		try {
-			l.info("Opening "+ff.getPath()+" to report "+sr_array.length+" sequence records.");
-			raf = new RandomAccessFile(ff.getPath(), "r");
+			l.info("Reporting "+sr_array.length+" sequence records from "+ff.getPath());
 			for (SequenceReferenceInterface sr : sr_array) {
-				raf.seek(sr.getStart());
-				byte[] bytes = new byte[sr.getLength()];
-				int n = raf.read(bytes, 0, sr.getLength());
-				if (n != sr.getLength()) {
-					throw new IOException("Cannot read "+sr.getLength()+" bytes (only got "+n+")!");
+				ByteBuffer region = compressed ? ByteBuffer.wrap(BgzfBlockCache.getInstance().read(ff, sr.getStart(), 0, sr.getLength()))
+											   : pool.getRecord(ff, sr.getStart(), sr.getLength());
+				if (region == null) {
+					if (raf == null) {
+						raf = new RandomAccessFile(ff.getPath(), "r");
+					}
+					region = readRecord(raf, sr, cb instanceof ByteSequenceCallback);
+				}
+				if (cb instanceof ByteSequenceCallback) {
+					((ByteSequenceCallback) cb).matchingSequence(region);
+				} else {
+					byte[] bytes = new byte[region.remaining()];
+					region.get(bytes);
+					cb.matchingSequence(new String(bytes, US_ASCII));
 				}
-				String s = new String(bytes, Charset.forName("US-ASCII"));
-				cb.matchingSequence(s);
 			}
 		} finally {
 			if (raf != null) {
@@ -388,4 +777,25 @@ public class Queries {
 			}
 		}
 	}
+
+	/**
+	 * Reads a record which the region pool could not serve.
+	 * 
+	 * @param map if true, the record is mapped rather than read onto the heap so that (large) records do not need a heap copy
+	 */
+	private ByteBuffer readRecord(final RandomAccessFile raf, final SequenceReferenceInterface sr, final boolean map) throws IOException {
+		if (sr.getStart() + sr.getLength() > raf.length()) {
+			throw new IOException("Cannot read "+sr.getLength()+" bytes at "+sr.getStart()+" (past end of file)!");
+		}
+		if (map) {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, sr.getStart(), sr.getLength());
+		}
+		raf.seek(sr.getStart());
+		byte[] bytes = new byte[sr.getLength()];
+		int n = raf.read(bytes, 0, sr.getLength());
+		if (n != sr.getLength()) {
+			throw new IOException("Cannot read "+sr.getLength()+" bytes (only got "+n+")!");
+		}
+		return ByteBuffer.wrap(bytes);
+	}
 }
@@ -0,0 +1,78 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A ring buffer of the most recently finished {@link RequestTrace}s, from which the slowest may be reported by <code>/admin/traces</code>.
+ * The number of traces kept may be set via the <code>onekp.trace.buffer</code> system property (default 1024).
+ *
+ * @author acassin
+ *
+ */
+public class RecentTraces {
+	private static RecentTraces singleton;
+
+	private final RequestTrace[] traces;
+	private int next;			// index of the slot to be overwritten next
+	private long n_added;
+
+	public RecentTraces(final int capacity) {
+		assert(capacity > 0);
+		traces = new RequestTrace[capacity];
+	}
+
+	public static synchronized RecentTraces getInstance() {
+		if (singleton == null) {
+			singleton = new RecentTraces(Integer.getInteger("onekp.trace.buffer", 1024));
+		}
+		return singleton;
+	}
+
+	public synchronized void add(final RequestTrace t) {
+		assert(t != null);
+		traces[next] = t;
+		next = (next + 1) % traces.length;
+		n_added++;
+	}
+
+	/**
+	 * Returns up to <code>n</code> of the traces in the buffer, slowest first
+	 */
+	public List<RequestTrace> getSlowest(final int n) {
+		List<RequestTrace> ret = new ArrayList<RequestTrace>(traces.length);
+		synchronized (this) {
+			for (RequestTrace t : traces) {
+				if (t != null) {
+					ret.add(t);
+				}
+			}
+		}
+		Collections.sort(ret, new Comparator<RequestTrace>() {
+
+			@Override
+			public int compare(final RequestTrace a, final RequestTrace b) {
+				long ta = a.getTotalNanos();
+				long tb = b.getTotalNanos();
+				return (ta > tb) ? -1 : (ta < tb) ? 1 : 0;
+			}
+		});
+		return ret.subList(0, Math.min(n, ret.size()));
+	}
+
+	/**
+	 * Returns the number of traces added since the buffer was created
+	 */
+	public synchronized long getTotalAdded() {
+		return n_added;
+	}
+
+	public synchronized void clear() {
+		for (int i=0; i<traces.length; i++) {
+			traces[i] = null;
+		}
+		next = 0;
+	}
+}
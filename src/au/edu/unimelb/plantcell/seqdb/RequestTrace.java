@@ -0,0 +1,191 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records how long each stage (validation, FASTAFILE lookup, SEQREF query, partial ID fallback, file read...) of a single request takes,
+ * so that the cause of a slow request can be found. A trace is bound to the thread doing the work for the request, so the code being
+ * measured need only call:
+ * <pre>
+ * long t = RequestTrace.start();
+ * ...
+ * RequestTrace.end("stage", t);
+ * </pre>
+ * which does nothing (and does not allocate) when no trace is bound eg. during ingest. A request may be handled by more than one thread in turn
+ * (eg. a {@code RequestExecutor} thread and then the container thread writing the response), in which case the trace is {@link #detach()}ed from the
+ * first and {@link #attach()}ed to the next.
+ *
+ * Finished traces are kept in {@link RecentTraces}. Those slower than <code>onekp.trace.log.ms</code> (default 1000) are also logged, as a single
+ * line of space-separated <code>key=value</code> pairs.
+ *
+ * @author acassin
+ *
+ */
+public class RequestTrace {
+	private final static Logger logger = Logger.getLogger("RequestTrace");
+
+	private final static long log_threshold_ns = Long.getLong("onekp.trace.log.ms", 1000) * 1000L * 1000L;
+
+	private final static ThreadLocal<RequestTrace> current = new ThreadLocal<RequestTrace>();
+	private final static AtomicLong next_id = new AtomicLong(System.currentTimeMillis());
+
+	private final String trace_id;
+	private final String label;
+	private final long started_ns;
+	private final long started_ms;
+	private String[] stages = new String[8];
+	private long[] offsets = new long[8];		// start of each stage, relative to started_ns
+	private long[] durations = new long[8];
+	private int n_stages;
+	private long total_ns = -1;
+
+	private RequestTrace(final String trace_id, final String label) {
+		assert(trace_id != null && label != null);
+		this.trace_id = trace_id;
+		this.label = label;
+		this.started_ns = System.nanoTime();
+		this.started_ms = System.currentTimeMillis();
+	}
+
+	/**
+	 * Starts a trace of a request and binds it to the current thread
+	 * @param trace_id eg. supplied by the client via <code>X-Request-ID</code>. If null (or unsuitable), an ID is generated
+	 * @param label describes the request eg. <code>k49 get ABCD_Locus_1</code>
+	 */
+	public static RequestTrace begin(final String trace_id, final String label) {
+		RequestTrace ret = new RequestTrace(isSuitableID(trace_id) ? trace_id : Long.toHexString(next_id.incrementAndGet()), label);
+		current.set(ret);
+		return ret;
+	}
+
+	private static boolean isSuitableID(final String id) {
+		if (id == null || id.length() < 1 || id.length() > 64) {
+			return false;
+		}
+		for (int i=0; i<id.length(); i++) {
+			char c = id.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '.') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the trace bound to the current thread or null if none
+	 */
+	public static RequestTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * Returns the time at which a stage starts, to be passed to {@link #end(String, long)}. Zero if no trace is bound to this thread.
+	 */
+	public static long start() {
+		return (current.get() != null) ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Records a stage of the current trace (if any) which started at the specified time and has just finished
+	 * @param stage name of the stage eg. <code>findFastaFile</code>
+	 * @param started as returned by {@link #start()}
+	 */
+	public static void end(final String stage, final long started) {
+		RequestTrace t = current.get();
+		if (t != null && started != 0L) {
+			t.add(stage, started, System.nanoTime());
+		}
+	}
+
+	private synchronized void add(final String stage, final long started, final long finished) {
+		if (n_stages == stages.length) {
+			int n = n_stages * 2;
+			String[] s = new String[n];
+			long[] o = new long[n];
+			long[] d = new long[n];
+			System.arraycopy(stages, 0, s, 0, n_stages);
+			System.arraycopy(offsets, 0, o, 0, n_stages);
+			System.arraycopy(durations, 0, d, 0, n_stages);
+			stages = s;
+			offsets = o;
+			durations = d;
+		}
+		stages[n_stages]    = stage;
+		offsets[n_stages]   = started - started_ns;
+		durations[n_stages] = finished - started;
+		n_stages++;
+	}
+
+	/**
+	 * Binds this trace to the current thread, so that subsequent stages on this thread are recorded
+	 */
+	public void attach() {
+		current.set(this);
+	}
+
+	/**
+	 * Unbinds the trace (if any) from the current thread
+	 * @return the trace which was bound, or null
+	 */
+	public static RequestTrace detach() {
+		RequestTrace ret = current.get();
+		current.remove();
+		return ret;
+	}
+
+	/**
+	 * Completes the trace: unbinds it from the current thread and records it. Only the first call has any effect.
+	 */
+	public void finish() {
+		if (current.get() == this) {
+			current.remove();
+		}
+		synchronized (this) {
+			if (total_ns >= 0) {
+				return;
+			}
+			total_ns = System.nanoTime() - started_ns;
+		}
+		RecentTraces.getInstance().add(this);
+		if (total_ns >= log_threshold_ns && logger.isLoggable(Level.INFO)) {
+			logger.info(toString());
+		} else if (logger.isLoggable(Level.FINE)) {
+			logger.fine(toString());
+		}
+	}
+
+	public String getTraceID() {
+		return trace_id;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * Returns the duration of the request in nanoseconds (so far, if not yet finished)
+	 */
+	public synchronized long getTotalNanos() {
+		return (total_ns >= 0) ? total_ns : System.nanoTime() - started_ns;
+	}
+
+	/**
+	 * Returns one line: <code>trace=ID start=DATE total_us=N label="..." stage1_us=N@OFFSET ...</code> where each stage is reported
+	 * with its duration and the offset (in microseconds) at which it started
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("trace=").append(trace_id);
+		sb.append(" start=").append(new Date(started_ms));
+		sb.append(" total_us=").append(getTotalNanos() / 1000);
+		sb.append(" label=\"").append(label).append('"');
+		for (int i=0; i<n_stages; i++) {
+			sb.append(' ').append(stages[i]).append("_us=").append(durations[i] / 1000).append('@').append(offsets[i] / 1000);
+		}
+		return sb.toString();
+	}
+}
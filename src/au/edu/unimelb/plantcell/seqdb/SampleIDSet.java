@@ -0,0 +1,76 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+/**
+ * A set of four letter OneKP sample ID's (eg. ABCD), as a bitset with one bit for each of the 26^4 possible ID's (56KB). Membership
+ * is tested without allocation, so that requests for unknown samples can be rejected before any database or file access.
+ * Instances are built once (see {@link FastaFileCatalog}) and must not be modified once published to other threads.
+ *
+ * @author acassin
+ *
+ */
+public class SampleIDSet {
+	public final static int N_SAMPLE_IDS = 26 * 26 * 26 * 26;
+
+	private final long[] bits = new long[(N_SAMPLE_IDS + 63) / 64];
+	private int n;
+
+	/**
+	 * Returns the index of the sample ID starting at <code>offset</code> or -1 if there are not four uppercase letters at that position
+	 */
+	public static int indexOf(final CharSequence s, final int offset) {
+		if (s == null || offset < 0 || offset + 4 > s.length()) {
+			return -1;
+		}
+		int ret = 0;
+		for (int i=offset; i<offset+4; i++) {
+			int c = s.charAt(i) - 'A';
+			if (c < 0 || c >= 26) {
+				return -1;
+			}
+			ret = ret * 26 + c;
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the sample ID to the set
+	 * @return false if the ID is not a valid sample ID (and thus was not added)
+	 */
+	public boolean add(final String onekp_sample_id) {
+		if (onekp_sample_id == null || onekp_sample_id.length() != 4) {
+			return false;
+		}
+		int idx = indexOf(onekp_sample_id, 0);
+		if (idx < 0) {
+			return false;
+		}
+		long mask = 1L << (idx & 63);
+		if ((bits[idx >>> 6] & mask) == 0) {
+			bits[idx >>> 6] |= mask;
+			n++;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the sample ID is in the set
+	 * @param idx as returned by {@link #indexOf(CharSequence, int)}
+	 */
+	public boolean contains(final int idx) {
+		return idx >= 0 && idx < N_SAMPLE_IDS && (bits[idx >>> 6] & (1L << (idx & 63))) != 0;
+	}
+
+	/**
+	 * Returns true if the four characters at <code>offset</code> are a sample ID in the set
+	 */
+	public boolean contains(final CharSequence s, final int offset) {
+		return contains(indexOf(s, offset));
+	}
+
+	/**
+	 * Returns the number of sample ID's in the set
+	 */
+	public int size() {
+		return n;
+	}
+}
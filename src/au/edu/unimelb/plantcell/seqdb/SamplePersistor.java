@@ -23,11 +23,22 @@ public class SamplePersistor {
 	}
 	
 	public int persist1kpSamples(final EntityManager em, final File csv_1kp_sample_list_andrewl) throws IOException {
+		return persist1kpSamples(em, csv_1kp_sample_list_andrewl, false);
+	}
+	
+	/**
+	 * Persists the sample metadata from the specified file. If <code>replace</code> is true, existing metadata is deleted
+	 * in the same transaction, so that the table is never seen empty.
+	 */
+	public int persist1kpSamples(final EntityManager em, final File csv_1kp_sample_list_andrewl, final boolean replace) throws IOException {
 		BufferedReader rdr = new BufferedReader(new FileReader(csv_1kp_sample_list_andrewl));
 		EntityTransaction t = em.getTransaction();
 		t.begin();
 		int n = 0;
 		try {
+			if (replace) {
+				Queries.emptySampleTable(em);
+			}
 			String line;
 			while ((line = rdr.readLine()) != null) {
 				String[] fields = line.split(",\\s*");
@@ -0,0 +1,365 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+/**
+ * A parsed view of a user-supplied sequence ID, for each of the ID grammars served:
+ * <ul>
+ * <li>k25: <code>ABCD_1234</code></li>
+ * <li>k25s: <code>scaffold-ABCD-1234</code>, optionally followed by <code>-</code> and up to 60 non-whitespace characters</li>
+ * <li>Oases (k39..k69): <code>ABCD_Locus_n_Transcript_m/k_Confidence_x_Length_y</code>, optionally followed by <code>_z</code> (the ORF of a protein).
+ *     The partial forms <code>ABCD_Locus_n_Transcript_m</code> and <code>ABCD_Locus_n</code> are also accepted.</li>
+ * </ul>
+ *
+ * Every request parses (at least) one ID, so rather than use regular expressions the parse is a single hand-written scan
+ * which allocates nothing: the view records offsets into the ID and the numeric fields. An instance may be re-used
+ * (eg. per thread) by calling {@link #parse(Grammar, CharSequence)} again, but is not thread-safe. Only the accessors
+ * which return strings allocate.
+ *
+ * @author acassin
+ *
+ */
+public class SequenceID {
+	/**
+	 * Maximum length of the optional suffix of a k25s scaffold ID
+	 */
+	public final static int MAX_SCAFFOLD_SUFFIX = 60;
+
+	private final static String SCAFFOLD_PREFIX = "scaffold-";
+
+	public enum Grammar { K25, SCAFFOLD, OASES }
+
+	private final static ThreadLocal<SequenceID> scratch = new ThreadLocal<SequenceID>() {
+
+		@Override
+		protected SequenceID initialValue() {
+			return new SequenceID();
+		}
+	};
+
+	private CharSequence id;
+	private Grammar grammar;
+	private boolean valid;
+	private int sample_start;
+	private int db_id_start, db_id_end;		// excludes the ORF suffix (if any)
+	private int orf_start;					// -1 if no ORF suffix
+	private long locus, transcript, n_transcripts, length, orf;
+
+	/**
+	 * Returns a new parsed view of the ID (which is invalid if <code>isValid()</code> is false)
+	 */
+	public static SequenceID of(final Grammar g, final CharSequence id) {
+		SequenceID ret = new SequenceID();
+		ret.parse(g, id);
+		return ret;
+	}
+
+	/**
+	 * Parses the ID into a per-thread instance, which avoids allocation but means the result must be used
+	 * before the next call to this method on the same thread.
+	 */
+	public static SequenceID parseShared(final Grammar g, final CharSequence id) {
+		SequenceID ret = scratch.get();
+		ret.parse(g, id);
+		return ret;
+	}
+
+	/**
+	 * Returns true if the ID conforms to the grammar
+	 */
+	public static boolean isValid(final Grammar g, final CharSequence id) {
+		return parseShared(g, id).isValid();
+	}
+
+	/**
+	 * Parses the ID, replacing any state from a previous parse
+	 * @param g grammar of the dataset being queried
+	 * @param id may be null (which is never valid)
+	 * @return true if the ID is valid, false otherwise
+	 */
+	public boolean parse(final Grammar g, final CharSequence id) {
+		assert(g != null);
+		this.id = id;
+		this.grammar = g;
+		sample_start = db_id_start = db_id_end = 0;
+		orf_start = -1;
+		locus = transcript = n_transcripts = length = orf = -1;
+		valid = false;
+		if (id == null) {
+			return false;
+		}
+		switch (g) {
+		case K25:
+			valid = parseK25(id);
+			break;
+		case SCAFFOLD:
+			valid = parseScaffold(id);
+			break;
+		case OASES:
+			valid = parseOases(id);
+			break;
+		}
+		return valid;
+	}
+
+	/* ABCD_1234 */
+	private boolean parseK25(final CharSequence s) {
+		int n = s.length();
+		if (!isSampleID(s, 0) || !expect(s, 4, '_')) {
+			return false;
+		}
+		int end = skipDigits(s, 5);
+		if (end == 5 || end != n) {
+			return false;
+		}
+		sample_start = 0;
+		db_id_start  = 5;
+		db_id_end    = n;
+		return true;
+	}
+
+	/* scaffold-ABCD-1234[-suffix] */
+	private boolean parseScaffold(final CharSequence s) {
+		int n = s.length();
+		int p = SCAFFOLD_PREFIX.length();
+		if (!startsWith(s, 0, SCAFFOLD_PREFIX) || !isSampleID(s, p) || !expect(s, p+4, '-')) {
+			return false;
+		}
+		int digits = p+5;
+		int end = skipDigits(s, digits);
+		if (end == digits) {
+			return false;
+		}
+		if (end < n) {
+			// optional suffix: '-' then 1..60 non-whitespace characters
+			int suffix_len = n - end - 1;
+			if (s.charAt(end) != '-' || suffix_len < 1 || suffix_len > MAX_SCAFFOLD_SUFFIX) {
+				return false;
+			}
+			for (int i=end+1; i<n; i++) {
+				if (isWhitespace(s.charAt(i))) {
+					return false;
+				}
+			}
+		}
+		sample_start = p;
+		db_id_start  = 0;		// the k25s database stores the entire ID
+		db_id_end    = n;
+		return true;
+	}
+
+	/* ABCD_Locus_n[_Transcript_m[/k_Confidence_x_Length_y[_z]]] */
+	private boolean parseOases(final CharSequence s) {
+		int n = s.length();
+		if (!isSampleID(s, 0) || !startsWith(s, 4, "_Locus_")) {
+			return false;
+		}
+		int p = 11;
+		int end = skipDigits(s, p);
+		if (end == p || (locus = parseLong(s, p, end)) < 0) {
+			return false;
+		}
+		sample_start = 0;
+		db_id_start  = 5;
+		if (end == n) {
+			db_id_end = n;
+			return true;
+		}
+		if (!startsWith(s, end, "_Transcript_")) {
+			return false;
+		}
+		p = end + 12;
+		end = skipDigits(s, p);
+		if (end == p || (transcript = parseLong(s, p, end)) < 0) {
+			return false;
+		}
+		if (end == n) {
+			db_id_end = n;
+			return true;
+		}
+		if (s.charAt(end) != '/') {
+			return false;
+		}
+		p = end + 1;
+		end = skipDigits(s, p);
+		if (end == p || (n_transcripts = parseLong(s, p, end)) < 0 || !startsWith(s, end, "_Confidence_")) {
+			return false;
+		}
+		p = end + 12;
+		end = p;
+		while (end < n && (isDigit(s.charAt(end)) || s.charAt(end) == '.')) {
+			end++;
+		}
+		if (end == p || !startsWith(s, end, "_Length_")) {
+			return false;
+		}
+		p = end + 8;
+		end = skipDigits(s, p);
+		if (end == p || (length = parseLong(s, p, end)) < 0) {
+			return false;
+		}
+		db_id_end = end;
+		if (end == n) {
+			return true;
+		}
+		if (s.charAt(end) != '_') {
+			return false;
+		}
+		p = end + 1;
+		end = skipDigits(s, p);
+		if (end == p || end != n || (orf = parseLong(s, p, end)) < 0) {
+			return false;
+		}
+		orf_start = db_id_end;
+		return true;
+	}
+
+	private static boolean isSampleID(final CharSequence s, final int offset) {
+		return SampleIDSet.indexOf(s, offset) >= 0;
+	}
+
+	private static boolean expect(final CharSequence s, final int offset, final char c) {
+		return offset < s.length() && s.charAt(offset) == c;
+	}
+
+	private static boolean startsWith(final CharSequence s, final int offset, final String prefix) {
+		int n = prefix.length();
+		if (offset + n > s.length()) {
+			return false;
+		}
+		for (int i=0; i<n; i++) {
+			if (s.charAt(offset+i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDigit(final char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Same definition as the regex <code>\s</code> ie. ASCII whitespace only
+	 */
+	private static boolean isWhitespace(final char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private static int skipDigits(final CharSequence s, int offset) {
+		int n = s.length();
+		while (offset < n && isDigit(s.charAt(offset))) {
+			offset++;
+		}
+		return offset;
+	}
+
+	/**
+	 * @return the value of the digits in [start, end) or Long.MAX_VALUE if it overflows (the ID is still valid, only the number is not representable)
+	 */
+	private static long parseLong(final CharSequence s, final int start, final int end) {
+		long ret = 0;
+		for (int i=start; i<end; i++) {
+			int d = s.charAt(i) - '0';
+			if (ret > (Long.MAX_VALUE - d) / 10) {
+				return Long.MAX_VALUE;
+			}
+			ret = ret * 10 + d;
+		}
+		return ret;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public Grammar getGrammar() {
+		return grammar;
+	}
+
+	/**
+	 * Returns the index of the sample ID within the ID supplied to {@code parse()}
+	 */
+	public int getSampleIDOffset() {
+		assert(valid);
+		return sample_start;
+	}
+
+	/**
+	 * Returns the index of the sample ID in a {@link SampleIDSet}, which requires no allocation
+	 */
+	public int getSampleIndex() {
+		assert(valid);
+		return SampleIDSet.indexOf(id, sample_start);
+	}
+
+	/**
+	 * Returns the four letter OneKP sample ID eg. ABCD
+	 */
+	public String getSampleID() {
+		assert(valid);
+		return id.subSequence(sample_start, sample_start+4).toString();
+	}
+
+	/**
+	 * Returns the ID as stored in the database for the dataset
+	 * @param with_orf true if the ORF suffix of an Oases ID should be retained (protein ID's), false if it should be removed (transcript ID's)
+	 */
+	public String getDatabaseID(final boolean with_orf) {
+		assert(valid);
+		int end = (with_orf && hasORF()) ? id.length() : db_id_end;
+		return id.subSequence(db_id_start, end).toString();
+	}
+
+	/**
+	 * Returns true if the ID is a full-length Oases ID with the <code>_z</code> ORF suffix
+	 */
+	public boolean hasORF() {
+		return valid && orf_start >= 0;
+	}
+
+	/**
+	 * Returns true if the ID is an Oases ID with the confidence and length fields ie. not a partial ID
+	 */
+	public boolean isFullLength() {
+		return valid && (grammar != Grammar.OASES || length >= 0);
+	}
+
+	/**
+	 * @return the Oases locus number or -1 if not an Oases ID
+	 */
+	public long getLocus() {
+		return locus;
+	}
+
+	/**
+	 * @return the Oases transcript number or -1 if not present
+	 */
+	public long getTranscript() {
+		return transcript;
+	}
+
+	/**
+	 * @return the number of Oases transcripts for the locus or -1 if not present
+	 */
+	public long getTranscriptCount() {
+		return n_transcripts;
+	}
+
+	/**
+	 * @return the Oases transcript length or -1 if not present
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the ORF number of an Oases protein ID or -1 if not present
+	 */
+	public long getORF() {
+		return orf;
+	}
+
+	@Override
+	public String toString() {
+		return valid ? id.toString() : "invalid: "+id;
+	}
+}
@@ -0,0 +1,237 @@
+package au.edu.unimelb.plantcell.seqdb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReference;
+
+/**
+ * Loads sequence references into a dataset's SEQREF table as they are saved, rather than via a temporary TSV file: the rows written to
+ * {@link #getWriter()} (by {@link SequenceReference#save(PrintWriter)}) pass through a {@link BoundedPipe} of <code>onekp.ingest.stream.buffer</code>
+ * bytes (default 16MB) to a loading thread, so that parsing and loading overlap. The loading thread uses its own JDBC connection, with
+ * the persistence unit's URL and credentials, and either:
+ * <ul>
+ * <li>streams the pipe into <code>load data local infile</code>, via the MySQL driver's local infile input stream or</li>
+ * <li>(for other drivers, or with <code>-Donekp.ingest.stream.batch=true</code>) inserts the rows in batches, which the MySQL driver
+ *     rewrites as multi-row inserts</li>
+ * </ul>
+ * Either way the rows are committed only once the writer has been closed by {@link #finish()}.
+ *
+ * @author acassin
+ *
+ */
+public class SequenceReferenceLoader {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final static int CHUNK_SIZE  = 64 * 1024;
+	private final static int BUFFER_SIZE = Integer.getInteger("onekp.ingest.stream.buffer", 16 * 1024 * 1024).intValue();
+	private final static int BATCH_SIZE  = 5000;
+
+	private final BoundedPipe pipe = new BoundedPipe(CHUNK_SIZE, Math.max(1, BUFFER_SIZE / CHUNK_SIZE));
+	private final PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(pipe.getOutputStream(), UTF8), 64 * 1024));
+	private final FutureTask<Integer> task;
+	private final String table;
+	private final Logger logger;
+
+	private SequenceReferenceLoader(final EntityManager em, final DatasetDesignation dsd, final Logger logger, final boolean use_batch) throws Exception {
+		this.table = dsd.getSeqRefTable();
+		this.logger = logger;
+		final Map<String,Object> props = em.getEntityManagerFactory().getProperties();
+		task = new FutureTask<Integer>(new Callable<Integer>() {
+
+			@Override
+			public Integer call() throws Exception {
+				try {
+					return Integer.valueOf(load(props, use_batch));
+				} catch (Throwable t) {
+					// dont leave the writer blocked on a full pipe
+					pipe.abort(t);
+					throw t;
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Starts loading into the SEQREF table of the specified dataset. The caller must save the references to {@link #getWriter()} and then call {@link #finish()}
+	 */
+	public static SequenceReferenceLoader start(final EntityManager em, final DatasetDesignation dsd, final Logger logger) throws Exception {
+		assert(em != null && dsd != null && logger != null);
+		SequenceReferenceLoader ret = new SequenceReferenceLoader(em, dsd, logger, Boolean.getBoolean("onekp.ingest.stream.batch"));
+		Thread t = new Thread(ret.task, "onekp-load-"+ret.table);
+		t.setDaemon(true);
+		t.start();
+		return ret;
+	}
+
+	/**
+	 * Returns the writer to which rows are saved. Not thread-safe: a row must be written by a single call to <code>SequenceReference.save()</code>
+	 */
+	public PrintWriter getWriter() {
+		return pw;
+	}
+
+	/**
+	 * Closes the writer and waits for the rows to be loaded and committed
+	 * @return the number of rows loaded
+	 * @throws Exception if the rows could not be loaded, in which case none are committed
+	 */
+	public int finish() throws Exception {
+		pw.close();
+		try {
+			int n = task.get().intValue();
+			logger.info("Loaded "+n+" sequence references into "+table);
+			return n;
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			throw (cause instanceof Exception) ? (Exception) cause : ee;
+		}
+	}
+
+	/**
+	 * Abandons the load (eg. because parsing has failed): nothing is committed. Waits for the loading thread to finish, and logs
+	 * why the load failed if that is not <code>cause</code> (eg. the database refused the rows, so the writer failed)
+	 */
+	public void abort(final Throwable cause) {
+		pipe.abort(cause);
+		pw.close();
+		try {
+			task.get();
+		} catch (ExecutionException ee) {
+			// expected if the load failed because the pipe has been aborted
+			for (Throwable t = ee.getCause(); t != null; t = t.getCause()) {
+				if (t == cause) {
+					return;
+				}
+			}
+			logger.severe("Loading into "+table+" failed: "+ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int load(final Map<String,Object> props, final boolean use_batch) throws SQLException, IOException {
+		Connection c = getConnection(props);
+		try {
+			c.setAutoCommit(false);
+			if (use_batch || !isMySQL(c)) {
+				logger.info("Inserting sequence references into "+table+" in batches of "+BATCH_SIZE);
+			}
+			int n = load(c, table, pipe.getInputStream(), use_batch);
+			c.commit();
+			return n;
+		} catch (Exception e) {
+			c.rollback();
+			throw e;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Loads the sequence references (as saved by <code>SequenceReference.save()</code>) from the stream into the table, using
+	 * <code>load data local infile</code> if the connection is to MySQL (and <code>use_batch</code> is false) or batched inserts otherwise.
+	 * Does not commit.
+	 * @return the number of rows affected
+	 */
+	static int load(final Connection c, final String table, final InputStream in, final boolean use_batch) throws SQLException, IOException {
+		if (!use_batch && isMySQL(c)) {
+			Statement st = c.createStatement();
+			try {
+				if (st instanceof com.mysql.jdbc.Statement) {
+					((com.mysql.jdbc.Statement) st).setLocalInfileInputStream(in);
+					return st.executeUpdate(FastaPersistor.getLoadDataSQL("stream", table));
+				}
+			} finally {
+				st.close();
+			}
+		}
+		return insertInBatches(c, table, in);
+	}
+
+	/**
+	 * The MySQL driver need not be present unless it is in use, so its classes are used only for a MySQL connection
+	 */
+	private static boolean isMySQL(final Connection c) throws SQLException {
+		return c.getMetaData().getURL().startsWith("jdbc:mysql:");
+	}
+
+	private static int insertInBatches(final Connection c, final String table, final InputStream in) throws SQLException, IOException {
+		PreparedStatement ps = c.prepareStatement("insert into "+table+" (id, length, SEQ_ID, start, FASTAFILE_ID) values (?, ?, ?, ?, ?)");
+		BufferedReader rdr = new BufferedReader(new InputStreamReader(in, UTF8), 64 * 1024);
+		try {
+			String line;
+			int n = 0;
+			while ((line = rdr.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 5) {
+					throw new IOException("Expected five columns in sequence reference: "+line);
+				}
+				ps.setInt(1, Integer.parseInt(fields[0]));
+				ps.setInt(2, Integer.parseInt(fields[1]));
+				ps.setString(3, fields[2]);
+				ps.setLong(4, Long.parseLong(fields[3]));
+				ps.setInt(5, Integer.parseInt(fields[4]));
+				ps.addBatch();
+				if (++n % BATCH_SIZE == 0) {
+					ps.executeBatch();
+				}
+			}
+			ps.executeBatch();
+			return n;
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * Returns a new connection to the database of the persistence unit with the specified properties, with the options needed to load sequence references
+	 */
+	static Connection getConnection(final Map<String,Object> props) throws SQLException {
+		String url = (String) props.get("javax.persistence.jdbc.url");
+		if (url == null) {
+			throw new SQLException("No javax.persistence.jdbc.url for the persistence unit: cannot stream sequence references");
+		}
+		Object driver = props.get("javax.persistence.jdbc.driver");
+		if (driver != null) {
+			try {
+				Class.forName(driver.toString());
+			} catch (ClassNotFoundException cnfe) {
+				throw new SQLException(cnfe);
+			}
+		}
+		Properties p = new Properties();
+		for (String key : new String[] { "user", "password" }) {
+			Object val = props.get("javax.persistence.jdbc."+key);
+			if (val != null) {
+				p.setProperty(key, val.toString());
+			}
+		}
+		if (url.startsWith("jdbc:mysql:")) {
+			p.setProperty("allowLoadLocalInfile", "true");
+			p.setProperty("rewriteBatchedStatements", "true");
+		}
+		return DriverManager.getConnection(url, p);
+	}
+}
@@ -0,0 +1,177 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.annotation.security.RolesAllowed;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.sql.DataSource;
+import javax.ws.rs.GET;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import au.edu.unimelb.plantcell.seqdb.BgzfBlockCache;
+import au.edu.unimelb.plantcell.seqdb.EntityManagerMetrics;
+import au.edu.unimelb.plantcell.seqdb.FastaFileCatalog;
+import au.edu.unimelb.plantcell.seqdb.FastaFileSchema;
+import au.edu.unimelb.plantcell.seqdb.FastaOffsetIndex;
+import au.edu.unimelb.plantcell.seqdb.FastaRegionPool;
+import au.edu.unimelb.plantcell.seqdb.RecentTraces;
+import au.edu.unimelb.plantcell.seqdb.RequestTrace;
+
+/**
+ * Administrative operations for the site. Created at deployment so that the fasta file catalog
+ * is loaded before the first request arrives, rather than by whichever request happens to be first.
+ *
+ * @author acassin
+ *
+ */
+@Singleton
+@Startup
+@Path("/admin")
+@Produces(MediaType.TEXT_PLAIN)
+public class Admin {
+	private final static Logger logger = Logger.getLogger("Admin");
+
+	@PersistenceUnit(unitName="seqdb_onekp")			// must match persistence.xml entry
+	private EntityManagerFactory emf;
+	
+	@Resource(name="myNonJtaDataSource")				// must match WEB-INF/resources.xml entry
+	private DataSource ds;
+
+	@PostConstruct
+	public void loadCatalog() {
+		EntityManager em = emf.createEntityManager();
+		try {
+			FastaFileCatalog.getInstance(em);
+		} catch (Exception e) {
+			// the services will try again on first use
+			logger.warning("Unable to load fasta file catalog: "+e.getMessage());
+		} finally {
+			em.close();
+		}
+		// checked even if the catalog loads, as it does without FASTAFILE_STATS (which the next ingest needs)
+		logSchemaUpgrade();
+	}
+
+	/**
+	 * Logs the statements needed to bring the FASTAFILE tables up to date with this version, if any are
+	 */
+	private void logSchemaUpgrade() {
+		try {
+			Connection c = ds.getConnection();
+			try {
+				FastaFileSchema.check(c, false, logger);
+			} finally {
+				c.close();
+			}
+		} catch (SQLException sqle) {
+			logger.severe(sqle.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the threads of the asynchronous request pools, so that they do not outlive the application
+	 */
+	@PreDestroy
+	public void shutdownExecutors() {
+		RequestExecutor.getLookupExecutor().shutdown();
+		RequestExecutor.getDownloadExecutor().shutdown();
+	}
+
+	/**
+	 * Must be called once a re-ingest (<code>populateDatabase</code>) is complete, so that the services see the new catalog of fasta
+	 * files. Files which have changed are noticed without a reload (see <code>FastaFileVersions</code>), but all caches are cleared here regardless.
+	 * 
+	 * @param dataset if specified, only cached responses for this dataset (eg. k39) are discarded. Otherwise all are.
+	 */
+	@POST
+	@Path("reload")
+	@RolesAllowed("1kp_admin")
+	public Response reload(@QueryParam("dataset") final String dataset) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			FastaFileCatalog ffc = FastaFileCatalog.reload(em);
+			FastaOffsetIndex.clearCache();
+			FastaRegionPool.getInstance().clear();
+			// blocks are keyed by FASTAFILE_ID, which a re-ingested file keeps
+			BgzfBlockCache.getInstance().clear();
+			if (dataset != null && dataset.length() > 0) {
+				int n = SequenceResponseCache.getInstance().invalidate(dataset);
+				logger.info("Discarded "+n+" cached responses for "+dataset);
+			} else {
+				SequenceResponseCache.getInstance().clear();
+			}
+			logger.info("Reloaded catalog of "+ffc.size()+" fasta files.");
+			return Response.ok("Reloaded "+ffc.size()+" fasta files.\n").build();
+		} catch (Exception e) {
+			logger.warning(e.getMessage());
+			logSchemaUpgrade();
+			return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
+		} finally {
+			em.close();
+		}
+	}
+	
+	/**
+	 * Reports the size and hit rate of the sequence response cache
+	 */
+	@GET
+	@Path("cache")
+	@RolesAllowed("1kp_admin")
+	public Response getCacheStatistics() {
+		return Response.ok(SequenceResponseCache.getInstance().toString()).build();
+	}
+	
+	/**
+	 * Reports entity manager usage by the services and the state of the database connection pool
+	 */
+	@GET
+	@Path("pool")
+	@RolesAllowed("1kp_admin")
+	public Response getPoolStatistics() {
+		return Response.ok(EntityManagerMetrics.getInstance().toString() + EntityManagerMetrics.describeDataSource(ds)).build();
+	}
+	
+	/**
+	 * Reports the activity, queue depth and rejections of the asynchronous request pools
+	 */
+	@GET
+	@Path("executors")
+	@RolesAllowed("1kp_admin")
+	public Response getExecutorStatistics() {
+		return Response.ok(RequestExecutor.getLookupExecutor().toString() + RequestExecutor.getDownloadExecutor().toString()).build();
+	}
+	
+	/**
+	 * Reports the slowest of the recently completed requests, with the time spent in each stage (one line per request)
+	 * 
+	 * @param n maximum number of requests to report
+	 */
+	@GET
+	@Path("traces")
+	@RolesAllowed("1kp_admin")
+	public Response getSlowestTraces(@QueryParam("n") @DefaultValue("20") final int n) {
+		RecentTraces rt = RecentTraces.getInstance();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Traced requests: "+rt.getTotalAdded()+"\n");
+		for (RequestTrace t : rt.getSlowest(Math.max(0, n))) {
+			sb.append(t.toString());
+			sb.append('\n');
+		}
+		return Response.ok(sb.toString()).build();
+	}
+}
@@ -0,0 +1,88 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReferenceInterface;
+import au.edu.unimelb.plantcell.seqdb.Queries;
+
+/**
+ * Writes the fasta records for a batch of sequence references in the order given (ie. the order the user supplied the ID's),
+ * but reads them from disk in file offset order. The batch is processed in chunks of at most <code>CHUNK_SIZE</code> records:
+ * each chunk is read in offset order, then written in the original order, so memory use is bounded by the chunk and not the batch.
+ * 
+ * @author acassin
+ *
+ */
+public class BatchFastaStreamingOutput implements StreamingOutput {
+	public final static int CHUNK_SIZE = 256;
+	
+	private final Queries q;
+	private final List<SequenceReferenceInterface> refs;
+	
+	public BatchFastaStreamingOutput(final Queries q, final List<SequenceReferenceInterface> refs) {
+		assert(q != null && refs != null);
+		this.q = q;
+		this.refs = refs;
+	}
+	
+	@Override
+	public void write(final OutputStream os) throws IOException, WebApplicationException {
+		for (int start = 0; start < refs.size(); start += CHUNK_SIZE) {
+			final List<SequenceReferenceInterface> chunk = refs.subList(start, Math.min(start + CHUNK_SIZE, refs.size()));
+			final Integer[] order = new Integer[chunk.size()];
+			for (int i=0; i<order.length; i++) {
+				order[i] = Integer.valueOf(i);
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer a, Integer b) {
+					SequenceReferenceInterface sa = chunk.get(a.intValue());
+					SequenceReferenceInterface sb = chunk.get(b.intValue());
+					int cmp = Integer.compare(sa.getFastaFile().getID(), sb.getFastaFile().getID());
+					if (cmp != 0) {
+						return cmp;
+					}
+					return Long.compare(sa.getStart(), sb.getStart());
+				}
+				
+			});
+			List<SequenceReferenceInterface> sorted = new ArrayList<SequenceReferenceInterface>(order.length);
+			for (Integer i : order) {
+				sorted.add(chunk.get(i.intValue()));
+			}
+			
+			final byte[][] records = new byte[order.length][];
+			q.reportFastaEntries(sorted, new ByteSequenceCallback() {
+				private int next = 0;
+				
+				@Override
+				public void matchingSequence(final ByteBuffer record) throws IOException {
+					byte[] bytes = new byte[record.remaining()];
+					record.get(bytes);
+					records[order[next++].intValue()] = bytes;
+				}
+
+				@Override
+				public void matchingSequence(final String s) {
+					// NO-OP: Queries always uses the byte api for a ByteSequenceCallback
+				}
+				
+			});
+			for (byte[] record : records) {
+				os.write(record);
+				os.write('\n');
+			}
+		}
+		os.flush();
+	}
+}
@@ -0,0 +1,16 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Callbacks which implement this interface are given the raw (US-ASCII) bytes of each fasta record, rather than
+ * a string, so that the record can be written out without copying or decoding it. The buffer is only valid for the duration
+ * of the call.
+ * 
+ * @author acassin
+ *
+ */
+public interface ByteSequenceCallback extends SequenceCallback {
+	public void matchingSequence(final ByteBuffer record) throws IOException;
+}
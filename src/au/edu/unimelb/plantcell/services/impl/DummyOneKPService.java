@@ -4,9 +4,9 @@ import java.io.IOException;
 import java.util.logging.Logger;
 
 import javax.ejb.Stateless;
-import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceUnit;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.Response;
 
 import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
@@ -25,8 +25,6 @@ public class DummyOneKPService extends OneKPSequenceService {
 	@PersistenceUnit(unitName="seqdb_onekp")			// must match persistence.xml entry
 	private EntityManagerFactory emf;
 	
-	private static EntityManager seqdb_onekp = null;
-	
 	@Override
 	public DatasetDesignation getDesignation() {
 		return new DatasetDesignation("k25", "");
@@ -38,13 +36,8 @@ public class DummyOneKPService extends OneKPSequenceService {
 	}
 
 	@Override
-	public EntityManager getEntityManager() {
-		synchronized (emf) {
-			if (seqdb_onekp == null) {
-				seqdb_onekp = emf.createEntityManager();
-			}
-			return seqdb_onekp;
-		}
+	public EntityManagerFactory getEntityManagerFactory() {
+		return emf;
 	}
 
 	public boolean isFullLengthID(String id) {
@@ -57,33 +50,48 @@ public class DummyOneKPService extends OneKPSequenceService {
 	}
 
 	@Override
-	public Response getProtein(String id) {
-		return Response.ok().build();
+	public void getProtein(String id, AsyncResponse response) {
+		response.resume(Response.ok().build());
+	}
+
+	@Override
+	public void getTranscript(String id, AsyncResponse response) {
+		getProtein(id, response);
+	}
+
+	@Override
+	public void getTranscriptRegion(String id, long start, long end, boolean revcomp, AsyncResponse response) {
+		getProtein(id, response);
+	}
+
+	@Override
+	public void getAll(String id, AsyncResponse response) {
+		getProtein(id, response);
 	}
 
 	@Override
-	public Response getTranscript(String id) {
-		return getProtein(id);
+	public void getProteins(String id_list, AsyncResponse response) {
+		getProtein(id_list, response);
 	}
 
 	@Override
-	public Response getAll(String id) {
-		return getProtein(id);
+	public void getTranscripts(String id_list, AsyncResponse response) {
+		getProtein(id_list, response);
 	}
 
 	@Override
-	public Response getProteome(String id) {
-		return getProtein(id);
+	public void getProteome(String id, AsyncResponse response) {
+		getProtein(id, response);
 	}
 
 	@Override
-	public Response getTranscriptome(String id) {
-		return getProtein(id);
+	public void getTranscriptome(String id, AsyncResponse response) {
+		getProtein(id, response);
 	}
 
 	@Override
-	public Response getSummary(String id) {
-		return getProtein(id);
+	public void getSummary(String id, AsyncResponse response) {
+		getProtein(id, response);
 	}
 
 }
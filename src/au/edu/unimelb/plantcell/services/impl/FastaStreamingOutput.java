@@ -0,0 +1,79 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReferenceInterface;
+import au.edu.unimelb.plantcell.seqdb.Queries;
+
+/**
+ * Writes the fasta records for already resolved sequence references straight to the response, one at a time, so that the
+ * memory required by a request does not depend on how many (or how long) the matching sequences are. As the references
+ * are resolved before the response is built, no database access is needed once the response has started.
+ * 
+ * Responses with a large record (eg. a long transcript) are copied with <code>FileChannel.transferTo()</code>, otherwise
+ * records are written from the shared pool of mapped regions.
+ * 
+ * @author acassin
+ *
+ */
+public class FastaStreamingOutput implements StreamingOutput {
+	/**
+	 * records of at least this many bytes are copied by <code>Queries.transferFastaEntries()</code>
+	 */
+	public final static int TRANSFER_THRESHOLD = 64 * 1024;
+	
+	private final Queries q;
+	private final List<SequenceReferenceInterface> refs;
+	private final boolean transfer;
+	
+	public FastaStreamingOutput(final Queries q, final List<SequenceReferenceInterface> refs) {
+		assert(q != null && refs != null);
+		this.q = q;
+		this.refs = refs;
+		boolean has_large_record = false;
+		for (SequenceReferenceInterface sr : refs) {
+			if (sr.getLength() >= TRANSFER_THRESHOLD) {
+				has_large_record = true;
+				break;
+			}
+		}
+		this.transfer = has_large_record;
+	}
+	
+	@Override
+	public void write(final OutputStream os) throws IOException, WebApplicationException {
+		final WritableByteChannel out = Channels.newChannel(os);
+		if (transfer) {
+			q.transferFastaEntries(refs, out);
+			os.flush();
+			return;
+		}
+		final ByteBuffer newline = ByteBuffer.wrap(new byte[] { '\n' });
+		q.reportFastaEntries(refs, new ByteSequenceCallback() {
+
+			@Override
+			public void matchingSequence(final ByteBuffer record) throws IOException {
+				while (record.hasRemaining()) {
+					out.write(record);
+				}
+				newline.rewind();
+				out.write(newline);
+			}
+
+			@Override
+			public void matchingSequence(final String s) {
+				// NO-OP: Queries always uses the byte api for a ByteSequenceCallback
+			}
+			
+		});
+		os.flush();
+	}
+}
@@ -0,0 +1,73 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Compresses a sequence response as it is sent. Only worthwhile for responses of at least a few kilobytes, so smaller
+ * responses (and clients which do not send <code>Accept-Encoding: gzip</code>) are sent uncompressed. The threshold may be set (in bytes) via
+ * the <code>onekp.gzip.min.bytes</code> system property.
+ *
+ * @author acassin
+ *
+ */
+public class GzipStreamingOutput implements StreamingOutput {
+	public final static int DEFAULT_MIN_BYTES = 8 * 1024;
+
+	private final static int min_bytes = Integer.getInteger("onekp.gzip.min.bytes", DEFAULT_MIN_BYTES);
+
+	private final StreamingOutput out;
+
+	public GzipStreamingOutput(final StreamingOutput out) {
+		assert(out != null);
+		this.out = out;
+	}
+
+	/**
+	 * Returns a 200 response for the entity, compressed if the client accepts gzip and the response is at least the threshold
+	 *
+	 * @param entity response body
+	 * @param headers request headers (may be null)
+	 */
+	public static ResponseBuilder ok(final byte[] entity, final RequestHeaders headers) {
+		assert(entity != null);
+		if (entity.length < min_bytes || !RangedFileResponse.acceptsGzip(headers)) {
+			return Response.ok(entity);
+		}
+		return ok(new StreamingOutput() {
+
+			@Override
+			public void write(final OutputStream os) throws IOException, WebApplicationException {
+				os.write(entity);
+			}
+
+		}, entity.length, headers);
+	}
+
+	/**
+	 * As for {@link #ok(byte[], RequestHeaders)}, but for a response which is streamed
+	 *
+	 * @param n_bytes (approximate) size of the uncompressed response
+	 */
+	public static ResponseBuilder ok(final StreamingOutput entity, final long n_bytes, final RequestHeaders headers) {
+		assert(entity != null);
+		if (n_bytes < min_bytes || !RangedFileResponse.acceptsGzip(headers)) {
+			return Response.ok(entity);
+		}
+		return Response.ok(new GzipStreamingOutput(entity)).header("Content-Encoding", "gzip").header("Vary", "Accept-Encoding");
+	}
+
+	@Override
+	public void write(final OutputStream os) throws IOException, WebApplicationException {
+		GZIPOutputStream gz = new GZIPOutputStream(os, 64 * 1024);
+		out.write(gz);
+		gz.finish();		// not close(): the container owns the response stream
+		os.flush();
+	}
+}
@@ -1,20 +1,44 @@
 package au.edu.unimelb.plantcell.services.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
 import javax.persistence.NoResultException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.FastaFileStatistics;
 import au.edu.unimelb.plantcell.jpa.dao.SampleAnnotation;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReferenceInterface;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
+import au.edu.unimelb.plantcell.seqdb.BgzfBlockCache;
+import au.edu.unimelb.plantcell.seqdb.EntityManagerMetrics;
+import au.edu.unimelb.plantcell.seqdb.FastaFileVersions;
 import au.edu.unimelb.plantcell.seqdb.Queries;
+import au.edu.unimelb.plantcell.seqdb.RequestTrace;
+import au.edu.unimelb.plantcell.seqdb.SequenceID;
 
 /**
  * All JAX-RS sequence services must implement this interface so that the end-user
@@ -25,9 +49,34 @@ import au.edu.unimelb.plantcell.seqdb.Queries;
  */
 public abstract class OneKPSequenceService {
 	/**
-	 * Used by other oases-bases assembly services
+	 * Maximum number of ID's which may be requested in a single batch
 	 */
-	public Pattern OASES_ID_REGEX = Pattern.compile("^([A-Z]{4}_Locus_\\d+_Transcript_\\d+/\\d+_Confidence_[\\d\\\\.]+_Length_\\d+)(_\\d+)?$");
+	public final static int MAX_BATCH_IDS = 10000;
+	
+	/**
+	 * Maximum number of residues which may be requested from a single region of a sequence
+	 */
+	public final static int MAX_REGION_LENGTH = 10 * 1024 * 1024;
+	
+	/**
+	 * Residues per line in regions returned by {@code doSubsequenceGet()}
+	 */
+	public final static int FASTA_LINE_LENGTH = 60;
+	
+	/**
+	 * Injected by the JAX-RS runtime (null when the service is used outside a container eg. for testing). Only usable on
+	 * the container thread handling the request: work done by a {@link RequestExecutor} uses {@code getRequestHeaders()} instead.
+	 */
+	@Context
+	private HttpHeaders http_headers;
+	
+	/**
+	 * Per-request state is bound to the thread doing the work (a container thread or a {@link RequestExecutor} thread), since
+	 * an asynchronous request completes after the bean instance has been returned to the pool
+	 */
+	private final static ThreadLocal<EntityManager> request_em = new ThreadLocal<EntityManager>();
+	private final static ThreadLocal<Long> request_em_acquired_at = new ThreadLocal<Long>();
+	private final static ThreadLocal<RequestHeaders> request_headers = new ThreadLocal<RequestHeaders>();
 	
 	/**
 	 * Must return the database ID which the service requires access to
@@ -64,6 +113,8 @@ public abstract class OneKPSequenceService {
 			sb.append("Taxonomic clade: "+sa.getClade()+"\n");
 			sb.append("Number of predicted proteins: "+n_prots+"\n");
 			sb.append("Number of assembled contigs: "+n_transcripts+"\n");
+			appendLengthStatistics(sb, q, onekp_sample_id, SequenceType.AA, "Protein");
+			appendLengthStatistics(sb, q, onekp_sample_id, SequenceType.RNA, "Contig");
 			return Response.ok(sb.toString()).build();
 		} catch (Exception e) {
 			logger.warning(e.getMessage());
@@ -71,6 +122,17 @@ public abstract class OneKPSequenceService {
 		}
 	}
 	
+	/**
+	 * Appends the length statistics recorded at ingest for the sample's sequences of the given type, if any, to a summary
+	 */
+	protected void appendLengthStatistics(final StringBuilder sb, final Queries q, final String onekp_sample_id, final SequenceType st, final String what) {
+		FastaFileStatistics ffs = q.getSampleStatistics(onekp_sample_id, st);
+		if (ffs != null) {
+			sb.append(what+" lengths: min "+ffs.getMinLength()+", max "+ffs.getMaxLength()+", N50 "+ffs.getN50()+
+					" ("+ffs.getTotalResidues()+" residues)\n");
+		}
+	}
+	
 	/**
 	 * Subclasses of the service must override this with their own implementation if not valid for the ID's
 	 * being requested by the user. This implementation requires the sample id to begin the identifier supplied by
@@ -94,21 +156,49 @@ public abstract class OneKPSequenceService {
 	 */
 	public String getSequenceIDFromSequenceID(final String id, SequenceType st) {
 		assert(id != null && st != null);
-		String ret = id.substring(5);
 		/*
 		 * an Oases protein ID has _x appended to the ID (in case a transcript has more than one ORF). 
 		 * If this ID is used to search for a transcript it will fail. So we recognise this case and handle it appropriately. Otherwise the ID is left alone. 
 		 */
-		if (st == SequenceType.RNA && ret.startsWith("Locus_")) {
-			Pattern p = Pattern.compile("Confidence_[\\d\\\\.]+_Length_\\d+(_\\d+)$");
-			Matcher m = p.matcher(ret);
-			if (m.find()) {
-				return ret.substring(0, ret.length() - m.group(1).length());
-			} else {
-				return ret;
+		if (st == SequenceType.RNA && id.startsWith("Locus_", 5)) {
+			SequenceID sid = SequenceID.parseShared(SequenceID.Grammar.OASES, id);
+			if (sid.hasORF()) {
+				return sid.getDatabaseID(false);
 			}
-		} else {
-			return ret;
+		}
+		return id.substring(5);
+	}
+	
+	/**
+	 * Returns true if the dataset has sequences for the sample of the (valid) ID. Used to reject requests for unknown samples
+	 * before any database or file access.
+	 */
+	protected boolean isKnownSample(final String id) {
+		assert(id != null);
+		return new Queries(this).isKnownSample(getSampleIDFromSequenceID(id), 0);
+	}
+	
+	/**
+	 * Validates the ID and checks that the dataset has its sample, recording the time taken (whatever the outcome) as the
+	 * <code>validate</code> stage of the trace
+	 * @return null if the request may proceed, otherwise the response which rejects it
+	 */
+	protected Response validateRequest(final String id) {
+		long t = RequestTrace.start();
+		try {
+			try {
+				validateID(id);
+			} catch (IOException ioe) {
+				getLogger().warning("Invalid ID: "+id);
+				return Response.status(Status.BAD_REQUEST).build();
+			}
+			if (!isKnownSample(id)) {
+				getLogger().warning("Unknown sample: "+id);
+				return Response.status(Status.NOT_FOUND).entity("No such sample in "+getDesignation().getLabel()+": "+id).build();
+			}
+			return null;
+		} finally {
+			RequestTrace.end("validate", t);
 		}
 	}
 	
@@ -121,26 +211,25 @@ public abstract class OneKPSequenceService {
 	protected Response doGet(final String id, SequenceType[] sequence_types) {
 		
 		Logger logger = getLogger();
-		try {
-			validateID(id);
-		} catch (IOException ioe) {
-			logger.warning("Invalid ID: "+id);
-			return Response.status(Status.BAD_REQUEST).build();
+		Response rejected = validateRequest(id);
+		if (rejected != null) {
+			return rejected;
+		}
+		SequenceResponseCache cache = SequenceResponseCache.getInstance();
+		String cache_key = SequenceResponseCache.makeKey(getDesignation().getLabel(), sequence_types, id);
+		long t = RequestTrace.start();
+		byte[] cached = cache.get(cache_key);
+		RequestTrace.end("cache", t);
+		if (cached != null) {
+			logger.fine("Cached result for "+id);
+			return GzipStreamingOutput.ok(cached, getRequestHeaders()).build();
 		}
 		Queries q = new Queries(this);
 		if (q != null) {
 			logger.info("Constructed valid queries object.");
 		} 
-		final StringBuilder sb = new StringBuilder(10 * 1024);
-		SequenceCallback cb = new SequenceCallback() {
-
-			@Override
-			public void matchingSequence(String s) {
-				sb.append(s);
-				sb.append('\n');
-			}
-			
-		};
+		// resolve every matching sequence first, so that the status is known before any of the response is sent
+		List<SequenceReferenceInterface> refs = new ArrayList<SequenceReferenceInterface>();
 		String sample_id = getSampleIDFromSequenceID(id);
 		logger.info("Extracted OneKP sample ID: "+sample_id+" from "+id);
 		for (SequenceType st : sequence_types) {
@@ -148,41 +237,245 @@ public abstract class OneKPSequenceService {
 			String   db_seq_id= getSequenceIDFromSequenceID(id, st);
 			if (f != null) {
 				try {
-					q.getSingleSequence(f, cb, db_seq_id);
+					refs.addAll(q.findSequenceReferences(f, db_seq_id));
 				} catch (NoResultException e) {
 					// if full ID does not match, then fallback to partial ID matching and try again...
-					doPartialIDGet(logger, q, f, db_seq_id, st, cb);
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-					return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+					doPartialIDGet(logger, q, f, db_seq_id, st, refs);
 				}
 			} else {
 				logger.warning("Could not locate FASTA file for ("+st+"): "+id);
 			}
 		}
-		if (sb.length() > 0) {
+		if (refs.size() > 0) {
 			logger.fine("Found result for "+id);
-			return Response.ok(sb.toString()).build();
+			FastaStreamingOutput out = new FastaStreamingOutput(q, refs);
+			long n_bytes = 0;
+			for (SequenceReferenceInterface sr : refs) {
+				n_bytes += sr.getLength() + 1;
+			}
+			if (cache.isCacheable(n_bytes)) {
+				try {
+					Set<FastaFile> files = new HashSet<FastaFile>();
+					for (SequenceReferenceInterface sr : refs) {
+						files.add(sr.getFastaFile());
+					}
+					FastaFileVersions.Snapshot versions = FastaFileVersions.snapshot(files);
+					ByteArrayOutputStream bos = new ByteArrayOutputStream((int) n_bytes);
+					out.write(bos);
+					byte[] response = bos.toByteArray();
+					cache.put(cache_key, response, versions);
+					return GzipStreamingOutput.ok(response, getRequestHeaders()).build();
+				} catch (IOException ioe) {
+					ioe.printStackTrace();
+					return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+				}
+			}
+			return GzipStreamingOutput.ok(out, n_bytes, getRequestHeaders()).build();
 		} else {
 			logger.warning("No sequence found for "+id);
 			return Response.status(500).entity("No sequence for "+id).build();
 		}
 	}
 	
+	/**
+	 * Returns the sequence of the given type for each ID in the list, in the order given. ID's are separated
+	 * by whitespace (typically one per line). Each ID must match exactly: partial ID's are not supported. ID's which cannot be found
+	 * are omitted and counted in the <code>X-OneKP-Missing</code> response header.
+	 * 
+	 * @param id_list
+	 * @param st
+	 * @return
+	 */
+	protected Response doBatchGet(final String id_list, final SequenceType st) {
+		Logger logger = getLogger();
+		String trimmed = (id_list != null) ? id_list.trim() : "";
+		if (trimmed.length() < 1) {
+			return Response.status(Status.BAD_REQUEST).entity("No ID's supplied!").build();
+		}
+		String[] ids = trimmed.split("\\s+");
+		if (ids.length > MAX_BATCH_IDS) {
+			return Response.status(Status.BAD_REQUEST).entity("At most "+MAX_BATCH_IDS+" ID's may be requested at once.").build();
+		}
+		for (String id : ids) {
+			try {
+				validateID(id);
+			} catch (IOException ioe) {
+				logger.warning("Invalid ID: "+id);
+				return Response.status(Status.BAD_REQUEST).entity("Invalid ID: "+id).build();
+			}
+		}
+		Queries q = new Queries(this);
+		
+		// group the ID's by fasta file, so that each file needs only one (set-based) lookup
+		String[] db_seq_ids = new String[ids.length];
+		File[] files = new File[ids.length];
+		HashMap<String,File> sample_files = new HashMap<String,File>();
+		LinkedHashMap<File,Set<String>> wanted = new LinkedHashMap<File,Set<String>>();
+		for (int i=0; i<ids.length; i++) {
+			String sample_id = getSampleIDFromSequenceID(ids[i]);
+			if (!sample_files.containsKey(sample_id)) {
+				File f = null;
+				try {
+					if (q.isKnownSample(sample_id, 0)) {
+						f = q.findFastaFile(st, sample_id);
+					}
+				} catch (NoResultException nre) {
+					logger.warning("Could not locate FASTA file for ("+st+"): "+sample_id);
+				}
+				sample_files.put(sample_id, f);
+			}
+			files[i] = sample_files.get(sample_id);
+			if (files[i] == null) {
+				continue;
+			}
+			db_seq_ids[i] = getSequenceIDFromSequenceID(ids[i], st);
+			Set<String> s = wanted.get(files[i]);
+			if (s == null) {
+				s = new HashSet<String>();
+				wanted.put(files[i], s);
+			}
+			s.add(db_seq_ids[i]);
+		}
+		HashMap<File,Map<String,SequenceReferenceInterface>> found = new HashMap<File,Map<String,SequenceReferenceInterface>>();
+		for (File f : wanted.keySet()) {
+			found.put(f, q.findSequenceReferences(f, wanted.get(f)));
+		}
+		
+		List<SequenceReferenceInterface> refs = new ArrayList<SequenceReferenceInterface>(ids.length);
+		int missing = 0;
+		for (int i=0; i<ids.length; i++) {
+			SequenceReferenceInterface sr = (files[i] != null) ? found.get(files[i]).get(db_seq_ids[i]) : null;
+			if (sr != null) {
+				refs.add(sr);
+			} else {
+				missing++;
+			}
+		}
+		logger.info("Found "+refs.size()+" of "+ids.length+" requested sequences.");
+		if (refs.size() < 1) {
+			return Response.status(500).entity("No sequences for any of the "+ids.length+" ID's").build();
+		}
+		long n_bytes = 0;
+		for (SequenceReferenceInterface sr : refs) {
+			n_bytes += sr.getLength() + 1;
+		}
+		return GzipStreamingOutput.ok(new BatchFastaStreamingOutput(q, refs), n_bytes, getRequestHeaders())
+					.header("X-OneKP-Missing", String.valueOf(missing)).build();
+	}
+	
 	private void doPartialIDGet(final Logger logger, final Queries q, final File f, 
-			final String partial_id, final SequenceType st, final SequenceCallback cb) {
-		assert(f != null && q != null && partial_id != null && logger != null);
+			final String partial_id, final SequenceType st, final List<SequenceReferenceInterface> refs) {
+		assert(f != null && q != null && partial_id != null && logger != null && refs != null);
 		
+		long t = RequestTrace.start();
 		try {
-			q.getSequencesByPartialID(f, partial_id, cb, st);
+			refs.addAll(q.findSequenceReferencesByPartialID(f, partial_id, st));
 		} catch (NoResultException nre) {
 			logger.warning("Could not match "+partial_id+" in "+f.getAbsolutePath());
 		} catch (Exception e) {
 			logger.warning(e.getMessage());
+		} finally {
+			RequestTrace.end("partialID", t);
 		}
 		logger.fine("Found sequence for partial ID: "+partial_id);
 	}
 	
+	/**
+	 * Returns residues <code>start</code>..<code>end</code> (one-based, inclusive) of the sequence with the specified ID as
+	 * a fasta record with header <code>&gt;id:start-end</code>. Only the bytes spanning the region are read when the line layout
+	 * of the sequence is known, so that a short region of a long scaffold is cheap. The ID must match exactly.
+	 * 
+	 * @param id
+	 * @param st
+	 * @param start first residue, at least one
+	 * @param end last residue, clipped to the end of the sequence
+	 * @param revcomp if true, the reverse complement of the region is returned (only meaningful for nucleotide sequences)
+	 * @return
+	 */
+	protected Response doSubsequenceGet(final String id, final SequenceType st, final long start, final long end, final boolean revcomp) {
+		Logger logger = getLogger();
+		Response rejected = validateRequest(id);
+		if (rejected != null) {
+			return rejected;
+		}
+		if (start < 1 || end < start) {
+			return Response.status(Status.BAD_REQUEST).entity("Invalid region: "+start+"-"+end).build();
+		}
+		if (end - start + 1 > MAX_REGION_LENGTH) {
+			return Response.status(Status.BAD_REQUEST).entity("At most "+MAX_REGION_LENGTH+" residues may be requested at once.").build();
+		}
+		Queries q = new Queries(this);
+		byte[] residues;
+		try {
+			File f = q.findFastaFile(st, getSampleIDFromSequenceID(id));
+			residues = q.getSubsequence(f, getSequenceIDFromSequenceID(id, st), start, end);
+		} catch (NoResultException nre) {
+			logger.warning("No sequence found for "+id);
+			return Response.status(500).entity("No sequence for "+id).build();
+		} catch (IllegalArgumentException iae) {
+			return Response.status(Status.BAD_REQUEST).entity(iae.getMessage()).build();
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+		if (revcomp) {
+			reverseComplement(residues);
+		}
+		
+		String header = ">"+id+":"+start+"-"+(start + residues.length - 1)+(revcomp ? " reverse complement" : "")+"\n";
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(header.length() + residues.length + residues.length / FASTA_LINE_LENGTH + 1);
+		bos.write(header.getBytes(Queries.US_ASCII), 0, header.length());
+		for (int i=0; i<residues.length; i += FASTA_LINE_LENGTH) {
+			bos.write(residues, i, Math.min(FASTA_LINE_LENGTH, residues.length - i));
+			bos.write('\n');
+		}
+		return GzipStreamingOutput.ok(bos.toByteArray(), getRequestHeaders()).build();
+	}
+	
+	/**
+	 * Replaces the nucleotides with their reverse complement, preserving case. IUPAC ambiguity codes are complemented,
+	 * anything else (eg. N or gaps) is left as is.
+	 */
+	private static void reverseComplement(final byte[] seq) {
+		for (int i=0, j=seq.length-1; i <= j; i++, j--) {
+			byte a = complement(seq[i]);
+			seq[i] = complement(seq[j]);
+			seq[j] = a;
+		}
+	}
+	
+	private static byte complement(final byte b) {
+		switch (b) {
+		case 'A': return 'T';
+		case 'T': return 'A';
+		case 'U': return 'A';
+		case 'G': return 'C';
+		case 'C': return 'G';
+		case 'R': return 'Y';
+		case 'Y': return 'R';
+		case 'K': return 'M';
+		case 'M': return 'K';
+		case 'B': return 'V';
+		case 'V': return 'B';
+		case 'D': return 'H';
+		case 'H': return 'D';
+		case 'a': return 't';
+		case 't': return 'a';
+		case 'u': return 'a';
+		case 'g': return 'c';
+		case 'c': return 'g';
+		case 'r': return 'y';
+		case 'y': return 'r';
+		case 'k': return 'm';
+		case 'm': return 'k';
+		case 'b': return 'v';
+		case 'v': return 'b';
+		case 'd': return 'h';
+		case 'h': return 'd';
+		default:  return b;		// N, S, W and gaps are their own complement
+		}
+	}
+	
 	protected Response getSample(final String onekp_sample_id, final SequenceType st) {
 		Logger logger = getLogger();
 		try {
@@ -197,7 +490,18 @@ public abstract class OneKPSequenceService {
 			
 			File     f = q.findFastaFile(st, onekp_sample_id);
 			if (f != null) {
-					return Response.ok(f).build();
+					// supports resumed (Range) and conditional (ETag/Last-Modified) downloads
+					if (BgzfBlockCache.isCompressed(f.getPath())) {
+						return RangedFileResponse.buildCompressed(f, getRequestHeaders());
+					}
+					// the compressed copy made at ingest is sent as is, so that compression costs nothing per request
+					if (RangedFileResponse.acceptsGzip(getRequestHeaders())) {
+						File gz = q.findCompressedFastaFile(st, onekp_sample_id);
+						if (gz != null) {
+							return RangedFileResponse.build(gz, true, getRequestHeaders());
+						}
+					}
+					return RangedFileResponse.build(f, getRequestHeaders());
 			} else {
 					throw new IOException("Could not locate FASTA file for: "+onekp_sample_id+" "+st);
 			}
@@ -210,10 +514,163 @@ public abstract class OneKPSequenceService {
 
 	
 	/**
-	 * Returns a handle to the database manager for the service
+	 * Returns the (container managed, thread-safe) factory from which each request's entity manager is created
+	 */
+	public abstract EntityManagerFactory getEntityManagerFactory();
+	
+	/**
+	 * Returns the entity manager for the current request, creating it on first use. The entity manager is bound to the
+	 * current thread, so it is never shared between threads, and it is closed once the request completes (see {@link #releaseEntityManager()})
+	 * so that its persistence context cannot grow without bound. The services only read from the database, so nothing is ever flushed.
 	 * @return
 	 */
-	public abstract EntityManager getEntityManager();
+	public EntityManager getEntityManager() {
+		EntityManager em = request_em.get();
+		if (em == null) {
+			em = getEntityManagerFactory().createEntityManager();
+			em.setFlushMode(FlushModeType.COMMIT);
+			request_em.set(em);
+			request_em_acquired_at.set(Long.valueOf(EntityManagerMetrics.getInstance().acquired()));
+		}
+		return em;
+	}
+	
+	/**
+	 * Closes the entity manager (if any) used by the current thread, returning its connection to the pool
+	 */
+	protected void releaseEntityManager() {
+		EntityManager em = request_em.get();
+		if (em == null) {
+			return;
+		}
+		try {
+			em.close();
+		} catch (Exception e) {
+			getLogger().warning("Unable to close entity manager: "+e.getMessage());
+		}
+		request_em.remove();
+		EntityManagerMetrics.getInstance().released(request_em_acquired_at.get().longValue());
+		request_em_acquired_at.remove();
+	}
+	
+	/**
+	 * Releases the entity manager used by a (synchronous) business method once it returns
+	 */
+	@AroundInvoke
+	public Object releaseEntityManager(final InvocationContext ctx) throws Exception {
+		try {
+			return ctx.proceed();
+		} finally {
+			releaseEntityManager();
+		}
+	}
+	
+	/**
+	 * Returns the headers of the current request
+	 */
+	protected RequestHeaders getRequestHeaders() {
+		RequestHeaders ret = request_headers.get();
+		if (ret == null) {
+			ret = RequestHeaders.copyOf(http_headers);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Computes the response to a suspended request on the specified pool, so that the container thread is not blocked
+	 * on database or file I/O. The work runs with a copy of the request headers and its own entity manager.
+	 * 
+	 * Each request is traced (see {@link RequestTrace}) until its response has been written. The trace ID is taken from the
+	 * <code>X-Request-ID</code> request header if supplied, and is returned in the <code>X-OneKP-Trace</code> response header.
+	 * 
+	 * @param label describes the request in the trace eg. <code>k49 get [AA, RNA] ABCD_Locus_1</code>
+	 */
+	protected void submit(final AsyncResponse response, final RequestExecutor executor, final String label, final Callable<Response> work) {
+		final RequestHeaders headers = RequestHeaders.copyOf(http_headers);		// must be copied on the container thread
+		executor.submit(response, new Callable<Response>() {
+
+			@Override
+			public Response call() throws Exception {
+				request_headers.set(headers);
+				RequestTrace trace = RequestTrace.begin(headers.get("X-Request-ID"), label);
+				boolean finished = true;
+				try {
+					Response r = work.call();
+					if (r == null) {
+						return null;
+					}
+					if (r.getEntity() instanceof StreamingOutput) {
+						// the response is written after this thread has finished with the request
+						finished = false;
+						return Response.fromResponse(r).entity(new TracedStreamingOutput((StreamingOutput) r.getEntity(), trace))
+									.header("X-OneKP-Trace", trace.getTraceID()).build();
+					}
+					return Response.fromResponse(r).header("X-OneKP-Trace", trace.getTraceID()).build();
+				} finally {
+					if (finished) {
+						trace.finish();
+					} else {
+						RequestTrace.detach();
+					}
+					request_headers.remove();
+					releaseEntityManager();
+				}
+			}
+		});
+	}
+	
+	protected void doGet(final String id, final SequenceType[] sequence_types, final AsyncResponse response) {
+		submit(response, RequestExecutor.getLookupExecutor(), getDesignation().getLabel()+" get "+Arrays.toString(sequence_types)+" "+id, 
+				new Callable<Response>() {
+
+			@Override
+			public Response call() {
+				return doGet(id, sequence_types);
+			}
+		});
+	}
+	
+	protected void doBatchGet(final String id_list, final SequenceType st, final AsyncResponse response) {
+		submit(response, RequestExecutor.getLookupExecutor(), getDesignation().getLabel()+" batch "+st, new Callable<Response>() {
+
+			@Override
+			public Response call() {
+				return doBatchGet(id_list, st);
+			}
+		});
+	}
+	
+	protected void doSubsequenceGet(final String id, final SequenceType st, final long start, final long end, 
+			final boolean revcomp, final AsyncResponse response) {
+		submit(response, RequestExecutor.getLookupExecutor(), getDesignation().getLabel()+" region "+st+" "+id+":"+start+"-"+end, 
+				new Callable<Response>() {
+
+			@Override
+			public Response call() {
+				return doSubsequenceGet(id, st, start, end, revcomp);
+			}
+		});
+	}
+	
+	protected void getSample(final String onekp_sample_id, final SequenceType st, final AsyncResponse response) {
+		submit(response, RequestExecutor.getDownloadExecutor(), getDesignation().getLabel()+" sample "+st+" "+onekp_sample_id, new Callable<Response>() {
+
+			@Override
+			public Response call() {
+				return getSample(onekp_sample_id, st);
+			}
+		});
+	}
+	
+	protected void getSampleSummary(final String onekp_sample_id, final AsyncResponse response) {
+		submit(response, RequestExecutor.getLookupExecutor(), getDesignation().getLabel()+" summary "+onekp_sample_id, new Callable<Response>() {
+
+			@Override
+			public Response call() {
+				return getSampleSummary(onekp_sample_id);
+			}
+		});
+	}
 	
 	/**
 	 * Validates the database manager as returned by {@code getEntityManager()}
@@ -244,64 +701,78 @@ public abstract class OneKPSequenceService {
 	/**
 	 * Returns the protein sequence for the specified ID
 	 * @param id
-	 * @return JAX-RS response object
+	 * @param response resumed with the JAX-RS response once it is ready
 	 */
-	public abstract Response getProtein(final String id);
+	public abstract void getProtein(final String id, final AsyncResponse response);
 	
 	/**
 	 * Returns the transcript sequence for the specified ID
 	 * @param id
-	 * @return JAX-RS response
+	 * @param response resumed with the JAX-RS response once it is ready
+	 */
+	public abstract void getTranscript(final String id, final AsyncResponse response);
+	
+	/**
+	 * Returns a region of the transcript sequence for the specified ID
+	 * @param id
+	 * @param start first base (one-based)
+	 * @param end last base (inclusive)
+	 * @param revcomp true if the reverse complement of the region is required
+	 * @param response resumed with the JAX-RS response once it is ready
 	 */
-	public abstract Response getTranscript(final String id);
+	public abstract void getTranscriptRegion(final String id, final long start, final long end, final boolean revcomp, final AsyncResponse response);
 	
 	/**
 	 * Returns both the protein (output first) and the transcript (output last) sequence for
 	 * the specified ID, if available.
 	 * @param id
-	 * @return JAX-RS response
+	 * @param response resumed with the JAX-RS response once it is ready
+	 */
+	public abstract void getAll(final String id, final AsyncResponse response);
+	
+	/**
+	 * Returns the protein sequence for each of the whitespace-separated ID's, in the order given
+	 * @param id_list
+	 * @param response resumed with the JAX-RS response once it is ready
 	 */
-	public abstract Response getAll(final String id);
+	public abstract void getProteins(final String id_list, final AsyncResponse response);
+	
+	/**
+	 * Returns the transcript sequence for each of the whitespace-separated ID's, in the order given
+	 * @param id_list
+	 * @param response resumed with the JAX-RS response once it is ready
+	 */
+	public abstract void getTranscripts(final String id_list, final AsyncResponse response);
 	
 	/**
 	 * Returns all proteins for the specified sample (large response)
 	 * @param onekp_sample_id four letter uppercase sample ID eg. ABCD
-	 * @return JAX-RS all known proteins for the specified dataset (service) and sample
+	 * @param response resumed with the JAX-RS response once it is ready
 	 */
-	public abstract Response getProteome(final String onekp_sample_id);
+	public abstract void getProteome(final String onekp_sample_id, final AsyncResponse response);
 	
 	/**
 	 * Similar to {@code getProteome()} but this returns the entire transcriptome. Not all
 	 * returned transcripts may code for proteins (some transcripts will not have a protein counterpart)
 	 * @param onekp_sample_id four letter uppercase sample ID eg. ABCD
-	 * @return JAX-RS all known proteins for the specified dataset (service) and sample
+	 * @param response resumed with the JAX-RS response once it is ready
 	 */
-	public abstract Response getTranscriptome(final String onekp_sample_id);
+	public abstract void getTranscriptome(final String onekp_sample_id, final AsyncResponse response);
 	
 	/**
 	 * Get summary details of a sample, similar in spirit to the OneKP sample page but this
 	 * works on a per dataset (service) basis, where not all samples may be present in a given dataset.
 	 * 
 	 */
-	public abstract Response getSummary(final String onekp_sample_id);
+	public abstract void getSummary(final String onekp_sample_id, final AsyncResponse response);
 	
 	/**
 	 * Validates an identifier of a sequence for K39..K69 oases assemblies
 	 */
 	public void validateOasesAssemblyID(final String id) throws IOException {
-		boolean ok = false;
-		Matcher m = OASES_ID_REGEX.matcher(id);
-		if (m.matches()) {
-			ok = true;
-		} else if (id.matches("^[A-Z]{4}_Locus_\\d+_Transcript_\\d+$")) {
-			ok = true;
-		} else if (id.matches("^[A-Z]{4}_Locus_\\d+$")) {
-			ok = true;
-		}
-		
-		if (!ok) {
+		if (!SequenceID.isValid(SequenceID.Grammar.OASES, id)) {
 			throw new IOException("Invalid ID: expected eg. ABCD_Locus_1_Transcript_4 but got: "+id);
 		}
-		getLogger().info(id+" is valid.");
+		getLogger().fine(id+" is valid.");
 	}
 }
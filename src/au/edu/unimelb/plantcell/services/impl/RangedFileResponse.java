@@ -0,0 +1,380 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Builds the response for a whole-file download (eg. a proteome) with support for conditional and partial requests,
+ * so that interrupted downloads can be resumed and unchanged files are not sent again. The strong entity tag is derived from
+ * the size and modification time of the file. Only a single byte range is supported: a request for multiple ranges is
+ * answered with the whole file, as RFC 7233 permits. A gzip-compressed copy of the file may be sent instead to clients which accept it,
+ * in which case ranges and the entity tag apply to the compressed bytes.
+ *
+ * @author acassin
+ *
+ */
+public class RangedFileResponse {
+	/**
+	 * Copies a region of a file to the response with <code>FileChannel.transferTo()</code>
+	 */
+	public static class FileRegionOutput implements StreamingOutput {
+		private final File f;
+		private final long start;
+		private final long length;
+
+		public FileRegionOutput(final File f, final long start, final long length) {
+			assert(f != null && start >= 0 && length >= 0);
+			this.f = f;
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public void write(final OutputStream os) throws IOException, WebApplicationException {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				FileChannel fc = raf.getChannel();
+				WritableByteChannel out = Channels.newChannel(os);
+				long pos = start;
+				long end = start + length;
+				while (pos < end) {
+					long n = fc.transferTo(pos, end - pos, out);
+					if (n <= 0) {
+						throw new IOException("Unable to read "+f.getAbsolutePath()+" at "+pos);
+					}
+					pos += n;
+				}
+				os.flush();
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Decompresses a gzip (or BGZF) file to the response, for clients which do not accept gzip content encoding
+	 */
+	public static class GunzipFileOutput implements StreamingOutput {
+		private final File f;
+
+		public GunzipFileOutput(final File f) {
+			assert(f != null);
+			this.f = f;
+		}
+
+		@Override
+		public void write(final OutputStream os) throws IOException, WebApplicationException {
+			// GZIPInputStream reads every member of a multi-member file such as BGZF
+			InputStream in = new GZIPInputStream(new FileInputStream(f), 64 * 1024);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				int n;
+				while ((n = in.read(buf)) >= 0) {
+					os.write(buf, 0, n);
+				}
+				os.flush();
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the response for a gzip-compressed file: sent as is (with <code>Content-Encoding: gzip</code>, so ranges and entity tags
+	 * apply to the compressed bytes) if the client accepts gzip, otherwise decompressed as it is sent
+	 */
+	public static Response buildCompressed(final File f, final RequestHeaders headers) throws IOException {
+		assert(f != null);
+		if (acceptsGzip(headers)) {
+			return build(f, true, headers);
+		}
+		if (!f.canRead()) {
+			throw new IOException("Cannot read "+f.getAbsolutePath());
+		}
+		return Response.ok(new GunzipFileOutput(f)).header("Vary", "Accept-Encoding").build();
+	}
+
+	/**
+	 * Returns true if the <code>Accept-Encoding</code> request header permits gzip ie. lists <code>gzip</code> with a non-zero quality, or
+	 * does not list <code>gzip</code> but lists <code>*</code> with a non-zero quality
+	 */
+	public static boolean acceptsGzip(final RequestHeaders headers) {
+		String accept = (headers != null) ? headers.get("Accept-Encoding") : null;
+		if (accept == null) {
+			return false;
+		}
+		float gzip_q = -1.0f;		// not listed
+		float any_q  = -1.0f;
+		for (String coding : accept.split(",")) {
+			String[] params = coding.trim().split(";");
+			String name = params[0].trim().toLowerCase(Locale.US);
+			if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) {
+				continue;
+			}
+			float q = 1.0f;
+			for (int i=1; i<params.length; i++) {
+				String p = params[i].trim().toLowerCase(Locale.US);
+				if (p.startsWith("q=")) {
+					try {
+						q = Float.parseFloat(p.substring(2).trim());
+					} catch (NumberFormatException nfe) {
+						q = 0.0f;
+					}
+				}
+			}
+			if (name.equals("*")) {
+				any_q = Math.max(any_q, q);
+			} else {
+				gzip_q = Math.max(gzip_q, q);
+			}
+		}
+		// an explicit gzip;q=0 refuses gzip, whatever the quality of *
+		return (gzip_q >= 0.0f) ? gzip_q > 0.0f : any_q > 0.0f;
+	}
+
+	/**
+	 * Returns the strong entity tag for the current state of the file
+	 */
+	public static EntityTag getEntityTag(final File f) {
+		return getEntityTag(f, false);
+	}
+
+	/**
+	 * Returns the strong entity tag for the current state of the file. The tag of a gzip-encoded response has a <code>-gz</code> suffix, so that
+	 * it never matches the tag of the identity response.
+	 */
+	public static EntityTag getEntityTag(final File f, final boolean gzip_encoded) {
+		return new EntityTag(Long.toHexString(f.length())+"-"+Long.toHexString(f.lastModified())+(gzip_encoded ? "-gz" : ""));
+	}
+
+	/**
+	 * Returns a 200, 206, 304, 412 or 416 response for the file as appropriate to the request headers.
+	 *
+	 * @param f file to send
+	 * @param headers may be null, in which case the whole file is sent unconditionally
+	 * @return
+	 */
+	public static Response build(final File f, final RequestHeaders headers) throws IOException {
+		return build(f, false, headers);
+	}
+
+	/**
+	 * As for {@link #build(File, RequestHeaders)}, but a gzip-compressed file may be sent with <code>Content-Encoding: gzip</code>.
+	 * All responses carry <code>Vary: Accept-Encoding</code> as the representation sent depends on that header.
+	 *
+	 * @param f file to send
+	 * @param gzip_encoded true if the file is a gzip-compressed copy of the resource, rather than the resource itself
+	 */
+	public static Response build(final File f, final boolean gzip_encoded, final RequestHeaders headers) throws IOException {
+		assert(f != null);
+		if (!f.canRead()) {
+			throw new IOException("Cannot read "+f.getAbsolutePath());
+		}
+		long size = f.length();
+		EntityTag etag = getEntityTag(f, gzip_encoded);
+		Date last_modified = new Date(f.lastModified() / 1000 * 1000);		// HTTP dates have a resolution of one second
+
+		if (headers != null) {
+			Response.Status status = evaluatePreconditions(headers, etag, last_modified);
+			if (status != null) {
+				return withRepresentationHeaders(Response.status(status), gzip_encoded).tag(etag).lastModified(last_modified).build();
+			}
+		}
+
+		long[] range = null;
+		if (headers != null) {
+			String range_header = headers.get("Range");
+			String if_range     = headers.get("If-Range");
+			if (range_header != null && isRangeCurrent(if_range, etag, last_modified)) {
+				range = parseRange(range_header, size);
+				if (range != null && range.length == 0) {
+					return withRepresentationHeaders(Response.status(416), gzip_encoded).header("Content-Range", "bytes */"+size).tag(etag).build();
+				}
+			}
+		}
+
+		if (range == null) {
+			return withRepresentationHeaders(Response.ok(new FileRegionOutput(f, 0, size)), gzip_encoded)
+					.header("Accept-Ranges", "bytes")
+					.header("Content-Length", String.valueOf(size))
+					.tag(etag)
+					.lastModified(last_modified)
+					.build();
+		}
+		long length = range[1] - range[0] + 1;
+		return withRepresentationHeaders(Response.status(206), gzip_encoded)
+				.entity(new FileRegionOutput(f, range[0], length))
+				.header("Accept-Ranges", "bytes")
+				.header("Content-Range", "bytes "+range[0]+"-"+range[1]+"/"+size)
+				.header("Content-Length", String.valueOf(length))
+				.tag(etag)
+				.lastModified(last_modified)
+				.build();
+	}
+
+	/**
+	 * Evaluates <code>If-Match</code>, <code>If-Unmodified-Since</code>, <code>If-None-Match</code> and <code>If-Modified-Since</code>
+	 * for a GET, in the order required by RFC 7232
+	 * @return null if the request should proceed, otherwise the status of the response
+	 */
+	public static Response.Status evaluatePreconditions(final RequestHeaders headers, final EntityTag etag, final Date last_modified) {
+		String if_match = headers.get("If-Match");
+		if (if_match != null) {
+			if (!matchesAny(if_match, etag, true)) {
+				return Response.Status.PRECONDITION_FAILED;
+			}
+		} else {
+			Date d = parseDate(headers.get("If-Unmodified-Since"));
+			if (d != null && last_modified.after(d)) {
+				return Response.Status.PRECONDITION_FAILED;
+			}
+		}
+		String if_none_match = headers.get("If-None-Match");
+		if (if_none_match != null) {
+			if (matchesAny(if_none_match, etag, false)) {
+				return Response.Status.NOT_MODIFIED;
+			}
+		} else {
+			Date d = parseDate(headers.get("If-Modified-Since"));
+			if (d != null && !last_modified.after(d)) {
+				return Response.Status.NOT_MODIFIED;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the list of entity tags (or <code>*</code>) includes the specified tag. Weak tags never match a strong comparison.
+	 */
+	private static boolean matchesAny(final String tag_list, final EntityTag etag, final boolean strong) {
+		String quoted = "\""+etag.getValue()+"\"";
+		for (String t : tag_list.split(",")) {
+			t = t.trim();
+			if (t.equals("*")) {
+				return true;
+			}
+			if (t.startsWith("W/")) {
+				if (strong) {
+					continue;
+				}
+				t = t.substring(2);
+			}
+			if (t.equals(quoted)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses an HTTP date
+	 * @return null if the date is missing or invalid (in which case the header must be ignored)
+	 */
+	private static Date parseDate(final String v) {
+		if (v == null) {
+			return null;
+		}
+		try {
+			SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return fmt.parse(v.trim());
+		} catch (ParseException pe) {
+			return null;
+		}
+	}
+
+	private static ResponseBuilder withRepresentationHeaders(final ResponseBuilder rb, final boolean gzip_encoded) {
+		if (gzip_encoded) {
+			rb.header("Content-Encoding", "gzip");
+		}
+		return rb.header("Vary", "Accept-Encoding");
+	}
+
+	/**
+	 * A range request is only honoured if there is no <code>If-Range</code> header, or it matches the current file exactly
+	 */
+	public static boolean isRangeCurrent(final String if_range, final EntityTag etag, final Date last_modified) {
+		if (if_range == null) {
+			return true;
+		}
+		String v = if_range.trim();
+		if (v.startsWith("\"")) {
+			return v.equals("\""+etag.getValue()+"\"");
+		}
+		if (v.startsWith("W/")) {
+			return false;		// weak tags never match for ranges
+		}
+		Date d = parseDate(v);
+		return (d != null && d.getTime() == last_modified.getTime());
+	}
+
+	/**
+	 * Parses a single byte range eg. <code>bytes=100-199</code>, <code>bytes=100-</code> or <code>bytes=-500</code>
+	 *
+	 * @param range_header
+	 * @param size of the file
+	 * @return null if the header is malformed or requests several ranges (the whole file should be sent), an empty array if the range cannot be satisfied,
+	 *         otherwise the first and last byte offsets (inclusive)
+	 */
+	public static long[] parseRange(final String range_header, final long size) {
+		String v = range_header.trim();
+		if (!v.startsWith("bytes=") || v.indexOf(',') >= 0) {
+			return null;
+		}
+		v = v.substring("bytes=".length()).trim();
+		int dash = v.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			String first = v.substring(0, dash).trim();
+			String last  = v.substring(dash+1).trim();
+			long start;
+			long end;
+			if (first.length() == 0) {
+				// suffix range: the final N bytes
+				long n = Long.parseLong(last);
+				if (n <= 0) {
+					return new long[0];
+				}
+				start = Math.max(0, size - n);
+				end   = size - 1;
+			} else {
+				start = Long.parseLong(first);
+				end   = size - 1;
+				if (last.length() > 0) {
+					long requested_end = Long.parseLong(last);
+					if (requested_end < start) {
+						return null;		// syntactically invalid: ignore the header
+					}
+					end = Math.min(requested_end, end);
+				}
+			}
+			if (start >= size || start < 0) {
+				return new long[0];
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+}
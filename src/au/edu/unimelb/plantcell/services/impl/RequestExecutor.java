@@ -0,0 +1,234 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * A bounded pool of threads which perform the database and file I/O for suspended (asynchronous) requests, so that
+ * the container's connector threads are free to accept new requests. There are two pools: one for sequence lookups and one for
+ * whole-sample downloads. When a pool's queue is full the request is refused immediately (503 with <code>Retry-After</code>), and
+ * a request which is not resumed within the timeout is answered with a 503.
+ *
+ * The entity of a response (a <code>StreamingOutput</code>) is written by the container once the request has been resumed, on
+ * the container's own thread, and a download may take minutes to write. So each pool also has one permit per thread: a request holds a
+ * permit from when its work starts until its entity has been written (or the request has otherwise completed). At most that
+ * many responses from a pool are being computed or written at once, so a burst of proteome downloads occupies at most
+ * <code>onekp.async.download.threads</code> connector threads and leaves the rest for lookups. Requests waiting for a permit stay queued
+ * and are subject to the timeout.
+ *
+ * Each pool is configured via system properties eg. <code>onekp.async.lookup.threads</code>, <code>onekp.async.lookup.queue</code> and
+ * <code>onekp.async.lookup.timeout.seconds</code> (similarly for <code>download</code>).
+ *
+ * @author acassin
+ *
+ */
+public class RequestExecutor {
+	private final static Logger logger = Logger.getLogger("RequestExecutor");
+
+	private static RequestExecutor lookups;
+	private static RequestExecutor downloads;
+
+	private final String name;
+	private final ThreadPoolExecutor executor;
+	private final Semaphore permits;				// held by each request until its response has been written
+	private final int n_permits;
+	private final long timeout_seconds;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong rejected  = new AtomicLong();
+	private final AtomicLong timeouts  = new AtomicLong();
+
+	public RequestExecutor(final String name, final int n_threads, final int queue_size, final long timeout_seconds) {
+		assert(name != null && n_threads > 0 && queue_size > 0 && timeout_seconds > 0);
+		this.name = name;
+		this.timeout_seconds = timeout_seconds;
+		this.n_permits = n_threads;
+		this.permits = new Semaphore(n_threads);
+		this.executor = new ThreadPoolExecutor(n_threads, n_threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue_size), new ThreadFactory() {
+					private final AtomicInteger n = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread t = new Thread(r, "onekp-"+RequestExecutor.this.name+"-"+n.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the pool for sequence lookups and sample summaries
+	 */
+	public static synchronized RequestExecutor getLookupExecutor() {
+		if (lookups == null) {
+			lookups = newInstance("lookup", 16, 512, 60);
+		}
+		return lookups;
+	}
+
+	/**
+	 * Returns the pool for whole-sample (proteome, transcriptome) downloads
+	 */
+	public static synchronized RequestExecutor getDownloadExecutor() {
+		if (downloads == null) {
+			downloads = newInstance("download", 4, 64, 300);
+		}
+		return downloads;
+	}
+
+	private static RequestExecutor newInstance(final String name, final int n_threads, final int queue_size, final long timeout_seconds) {
+		String prefix = "onekp.async."+name+".";
+		return new RequestExecutor(name, Integer.getInteger(prefix+"threads", n_threads),
+				Integer.getInteger(prefix+"queue", queue_size), Long.getLong(prefix+"timeout.seconds", timeout_seconds));
+	}
+
+	/**
+	 * Releases a permit once the container has written the entity of a response, or once the request has completed without writing it
+	 * (eg. the client disconnected)
+	 */
+	private class PermitHolder implements StreamingOutput, CompletionCallback {
+		private final StreamingOutput out;
+		private final AtomicBoolean held = new AtomicBoolean(true);
+
+		public PermitHolder(final StreamingOutput out) {
+			assert(out != null);
+			this.out = out;
+		}
+
+		@Override
+		public void write(final OutputStream os) throws IOException, WebApplicationException {
+			try {
+				out.write(os);
+			} finally {
+				release();
+			}
+		}
+
+		@Override
+		public void onComplete(final Throwable t) {
+			release();
+		}
+
+		public void release() {
+			if (held.compareAndSet(true, false)) {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Computes the response on a pool thread and resumes the suspended request with it. Any exception thrown by the work is
+	 * passed to the container (which maps it to an error response). The work waits for one of the pool's permits, which is
+	 * held until the response has been written.
+	 *
+	 * @param ar suspended request
+	 * @param work must not depend on state bound to the container thread (eg. injected <code>@Context</code> proxies)
+	 */
+	public void submit(final AsyncResponse ar, final Callable<Response> work) {
+		assert(ar != null && work != null);
+		ar.setTimeoutHandler(new TimeoutHandler() {
+
+			@Override
+			public void handleTimeout(final AsyncResponse ar) {
+				timeouts.incrementAndGet();
+				logger.warning("Request timed out after "+timeout_seconds+" seconds in "+name+" pool.");
+				ar.resume(Response.status(Status.SERVICE_UNAVAILABLE).entity("Request timed out, please try again later.\n").build());
+			}
+		});
+		ar.setTimeout(timeout_seconds, TimeUnit.SECONDS);
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					if (ar.isDone()) {
+						return;		// timed out (or cancelled) whilst queued
+					}
+					try {
+						permits.acquire();
+					} catch (InterruptedException ie) {
+						ar.resume(ie);
+						return;
+					}
+					PermitHolder holder = null;
+					boolean writing = false;
+					try {
+						if (ar.isDone()) {
+							return;	// timed out whilst waiting for the permit
+						}
+						Response r = work.call();
+						if (r != null && r.getEntity() instanceof StreamingOutput) {
+							holder = new PermitHolder((StreamingOutput) r.getEntity());
+							ar.register(holder);
+							writing = ar.resume(Response.fromResponse(r).entity(holder).build());
+						} else {
+							ar.resume(r);
+						}
+					} catch (Throwable t) {
+						ar.resume(t);
+					} finally {
+						if (holder == null) {
+							permits.release();
+						} else if (!writing) {
+							holder.release();
+						}
+					}
+				}
+			});
+			submitted.incrementAndGet();
+		} catch (RejectedExecutionException ree) {
+			rejected.incrementAndGet();
+			logger.warning("Rejected request: "+name+" pool queue is full.");
+			ar.resume(Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", "5")
+						.entity("Server busy, please try again later.\n").build());
+		}
+	}
+
+	/**
+	 * Returns the number of requests whose responses are being computed or written
+	 */
+	public int getPermitsInUse() {
+		return n_permits - permits.availablePermits();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "Pool "+name+": "+getActiveCount()+" active of "+executor.getMaximumPoolSize()+" threads, "+
+			   getQueueDepth()+" queued (limit "+(getQueueDepth() + executor.getQueue().remainingCapacity())+")\n"+
+			   getPermitsInUse()+" of "+n_permits+" responses being computed or written\n"+
+			   "Submitted: "+submitted.get()+", rejected: "+rejected.get()+", timed out: "+timeouts.get()+" (timeout "+timeout_seconds+"s)\n";
+	}
+}
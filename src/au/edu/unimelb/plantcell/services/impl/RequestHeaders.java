@@ -0,0 +1,75 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.ws.rs.core.HttpHeaders;
+
+/**
+ * An immutable copy of the request headers which determine the response (eg. <code>Accept-Encoding</code>, <code>Range</code>).
+ * The injected {@link HttpHeaders} is bound to the container thread handling the request, so a copy is taken before the request
+ * is handed to a {@link RequestExecutor} thread. Header names are case insensitive and repeated headers are joined with commas.
+ *
+ * @author acassin
+ *
+ */
+public class RequestHeaders {
+	public final static RequestHeaders NONE = new RequestHeaders(Collections.<String,String>emptyMap());
+
+	private final Map<String,String> headers;		// keyed by lower case name
+
+	private RequestHeaders(final Map<String,String> headers) {
+		assert(headers != null);
+		this.headers = headers;
+	}
+
+	/**
+	 * Copies the headers of the current request
+	 * @param h may be null (eg. outside a container) in which case there are no headers
+	 */
+	public static RequestHeaders copyOf(final HttpHeaders h) {
+		if (h == null || h.getRequestHeaders() == null) {
+			return NONE;
+		}
+		HashMap<String,String> copy = new HashMap<String,String>();
+		for (Map.Entry<String,List<String>> e : h.getRequestHeaders().entrySet()) {
+			List<String> values = e.getValue();
+			if (e.getKey() == null || values == null || values.isEmpty()) {
+				continue;
+			}
+			StringBuilder sb = new StringBuilder();
+			for (String v : values) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(v);
+			}
+			copy.put(e.getKey().toLowerCase(Locale.US), sb.toString());
+		}
+		return new RequestHeaders(Collections.unmodifiableMap(copy));
+	}
+
+	/**
+	 * Returns the specified headers (eg. for tests)
+	 * @param name_value alternating header names and values
+	 */
+	public static RequestHeaders of(final String... name_value) {
+		assert(name_value != null && name_value.length % 2 == 0);
+		HashMap<String,String> copy = new HashMap<String,String>();
+		for (int i=0; i<name_value.length; i += 2) {
+			copy.put(name_value[i].toLowerCase(Locale.US), name_value[i+1]);
+		}
+		return new RequestHeaders(Collections.unmodifiableMap(copy));
+	}
+
+	/**
+	 * Returns the value of the header or null if it was not sent
+	 */
+	public String get(final String name) {
+		assert(name != null);
+		return headers.get(name.toLowerCase(Locale.US));
+	}
+}
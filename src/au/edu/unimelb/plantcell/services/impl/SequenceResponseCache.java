@@ -0,0 +1,174 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
+import au.edu.unimelb.plantcell.seqdb.FastaFileVersions;
+import au.edu.unimelb.plantcell.seqdb.LruCache;
+
+/**
+ * Caches the response bodies of sequence lookups so that popular ID's (eg. the ABCD test ID's) are served without
+ * a database query or file read. Entries are keyed by (dataset label, sequence types, id) and evicted in least recently used order
+ * once the cache holds more than its byte budget. Responses larger than the entry limit are never cached. Each response is cached with the
+ * versions of the fasta files it was read from and is discarded, rather than served, once any of them has changed (see {@link FastaFileVersions}).
+ *
+ * The budget and entry limit may be set (in bytes) via the <code>onekp.cache.max.bytes</code> and <code>onekp.cache.max.entry.bytes</code>
+ * system properties. A budget of zero disables the cache.
+ *
+ * @author acassin
+ *
+ */
+public class SequenceResponseCache {
+	public final static long DEFAULT_MAX_BYTES       = 64L * 1024 * 1024;
+	public final static int  DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+	private static SequenceResponseCache singleton;
+
+	/**
+	 * A cached response body and the versions of the files it was read from
+	 */
+	private static class Entry {
+		private final byte[] response;
+		private final FastaFileVersions.Snapshot versions;
+
+		Entry(final byte[] response, final FastaFileVersions.Snapshot versions) {
+			this.response = response;
+			this.versions = versions;
+		}
+	}
+
+	private final int max_entry_bytes;
+	private final LruCache<String,Entry> entries;
+	private final AtomicLong stale = new AtomicLong();
+
+	public SequenceResponseCache(final long max_bytes, final int max_entry_bytes) {
+		assert(max_bytes >= 0 && max_entry_bytes >= 0);
+		this.max_entry_bytes = max_entry_bytes;
+		this.entries = new LruCache<String,Entry>(max_bytes) {
+
+			@Override
+			protected long sizeOf(final Entry e) {
+				return e.response.length;
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the cache shared by all services, created on first use
+	 */
+	public static synchronized SequenceResponseCache getInstance() {
+		if (singleton == null) {
+			long max = Long.getLong("onekp.cache.max.bytes", DEFAULT_MAX_BYTES);
+			int  max_entry = Integer.getInteger("onekp.cache.max.entry.bytes", DEFAULT_MAX_ENTRY_BYTES);
+			singleton = new SequenceResponseCache(max, max_entry);
+		}
+		return singleton;
+	}
+
+	public static String makeKey(final String dsd_label, final SequenceType[] sequence_types, final String id) {
+		assert(dsd_label != null && sequence_types != null && id != null);
+		StringBuilder sb = new StringBuilder(dsd_label.length() + id.length() + 16);
+		sb.append(dsd_label);
+		sb.append('\t');
+		for (SequenceType st : sequence_types) {
+			sb.append(st.name());
+			sb.append(',');
+		}
+		sb.append('\t');
+		sb.append(id);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns true if a response of the given size may be cached
+	 */
+	public boolean isCacheable(final long n_bytes) {
+		long max_bytes = entries.getMaxBytes();
+		return (max_bytes > 0 && n_bytes <= max_entry_bytes && n_bytes <= max_bytes);
+	}
+
+	/**
+	 * Returns the cached response body or null if not cached, or if a file it was read from has since changed. The caller must not modify the returned array.
+	 */
+	public byte[] get(final String key) {
+		Entry e = entries.get(key);
+		if (e == null) {
+			return null;
+		}
+		if (!e.versions.isCurrent()) {
+			entries.remove(key);
+			stale.incrementAndGet();
+			return null;
+		}
+		return e.response;
+	}
+
+	/**
+	 * Caches the response
+	 * @param versions of the files the response was read from, taken before it was read
+	 */
+	public void put(final String key, final byte[] response, final FastaFileVersions.Snapshot versions) {
+		assert(key != null && response != null && versions != null);
+		if (isCacheable(response.length)) {
+			entries.put(key, new Entry(response, versions));
+		}
+	}
+
+	/**
+	 * Removes all entries for the specified dataset eg. because it has been re-ingested
+	 * @return the number of entries removed
+	 */
+	public int invalidate(final String dsd_label) {
+		final String prefix = dsd_label + '\t';
+		return entries.invalidate(new LruCache.KeyFilter<String>() {
+
+			@Override
+			public boolean matches(final String key) {
+				return key.startsWith(prefix);
+			}
+
+		});
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public long getHits() {
+		return entries.getHits();
+	}
+
+	public long getMisses() {
+		return entries.getMisses();
+	}
+
+	public long getEvictions() {
+		return entries.getEvictions();
+	}
+
+	/**
+	 * Returns the number of cached responses discarded because a file they were read from had changed
+	 */
+	public long getStale() {
+		return stale.get();
+	}
+
+	public long getCachedBytes() {
+		return entries.getCachedBytes();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString() {
+		return "Cache entries: "+size()+"\n"+
+			   "Cached bytes: "+getCachedBytes()+" (budget "+entries.getMaxBytes()+", entry limit "+max_entry_bytes+")\n"+
+			   "Hits: "+getHits()+"\n"+
+			   "Misses: "+getMisses()+"\n"+
+			   "Evictions: "+getEvictions()+"\n"+
+			   "Stale: "+getStale()+"\n";
+	}
+}
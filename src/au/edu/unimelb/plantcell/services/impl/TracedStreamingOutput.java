@@ -0,0 +1,39 @@
+package au.edu.unimelb.plantcell.services.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import au.edu.unimelb.plantcell.seqdb.RequestTrace;
+
+/**
+ * Continues the trace of a request whilst its response is written by the container, which happens after the
+ * {@link RequestExecutor} thread has finished with the request. The trace is finished once the response is written.
+ *
+ * @author acassin
+ *
+ */
+public class TracedStreamingOutput implements StreamingOutput {
+	private final StreamingOutput out;
+	private final RequestTrace trace;
+
+	public TracedStreamingOutput(final StreamingOutput out, final RequestTrace trace) {
+		assert(out != null && trace != null);
+		this.out = out;
+		this.trace = trace;
+	}
+
+	@Override
+	public void write(final OutputStream os) throws IOException, WebApplicationException {
+		trace.attach();
+		long t = RequestTrace.start();
+		try {
+			out.write(os);
+		} finally {
+			RequestTrace.end("write", t);
+			trace.finish();
+		}
+	}
+}
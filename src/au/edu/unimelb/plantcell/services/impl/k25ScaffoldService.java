@@ -5,13 +5,17 @@ import java.util.logging.Logger;
 
 import javax.annotation.security.RolesAllowed;
 import javax.ejb.Stateless;
-import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceUnit;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -19,6 +23,7 @@ import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
 import au.edu.unimelb.plantcell.jpa.dao.SampleAnnotation;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
 import au.edu.unimelb.plantcell.seqdb.Queries;
+import au.edu.unimelb.plantcell.seqdb.SequenceID;
 
 
 /**
@@ -38,8 +43,6 @@ public class k25ScaffoldService extends OneKPSequenceService {
 	@PersistenceUnit(unitName="seqdb_onekp")			// must match persistence.xml entry
 	private EntityManagerFactory emf;
 
-	private static EntityManager seqdb_onekp;
-	
 	@Override 
 	public DatasetDesignation getDesignation() {
 		return new DatasetDesignation("k25s", "");
@@ -57,9 +60,7 @@ public class k25ScaffoldService extends OneKPSequenceService {
 	 */
 	@Override
 	public void validateID(final String id) throws IOException {
-		if (id.matches("^scaffold-[A-Z]{4}-\\d+-\\S{1,60}$")) {
-			return;
-		} else if (id != null && id.matches("^scaffold-[A-Z]{4}-\\d+$")) {
+		if (SequenceID.isValid(SequenceID.Grammar.SCAFFOLD, id)) {
 			return;
 		}
 		throw new IOException("k25s dataset expects id's of the form: scaffold-ABCD-1234");
@@ -76,66 +77,96 @@ public class k25ScaffoldService extends OneKPSequenceService {
 	}
 	
 	@Override
-	public EntityManager getEntityManager() {
-		synchronized (emf) {
-			if (seqdb_onekp == null) {
-				seqdb_onekp = emf.createEntityManager();
-			}
-			return seqdb_onekp;
-		}
+	public EntityManagerFactory getEntityManagerFactory() {
+		return emf;
 	}
 	
 	@GET
 	@Path("protein/{id}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getProtein(@PathParam("id") final String id) { 
+	public void getProtein(@PathParam("id") final String id, @Suspended final AsyncResponse response) {
 		Logger l = getLogger();
 		l.info("Getting protein id is: "+(id != null));
-		return doGet(id, new SequenceType[] { SequenceType.AA });
+		doGet(id, new SequenceType[] { SequenceType.AA }, response);
 	}
 	
 	@GET
 	@Path("transcript/{id}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getTranscript(@PathParam("id") final String id) {
+	public void getTranscript(@PathParam("id") final String id, @Suspended final AsyncResponse response) {
 		Logger l = getLogger();
 		l.fine("Getting transcript contig id is: "+(id != null));
-		return doGet(id, new SequenceType[] { SequenceType.RNA });
+		doGet(id, new SequenceType[] { SequenceType.RNA }, response);
+	}
+	
+	@GET
+	@Path("transcript/{id}/{start : \\d+}-{end : \\d+}")
+	@RolesAllowed("1kp_user")
+	@Override
+	public void getTranscriptRegion(@PathParam("id") final String id, @PathParam("start") final long start, 
+			@PathParam("end") final long end, @QueryParam("revcomp") final boolean revcomp, @Suspended final AsyncResponse response) {
+		doSubsequenceGet(id, SequenceType.RNA, start, end, revcomp, response);
 	}
 	
 	@GET
 	@Path("all/{id}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getAll(String id) {
+	public void getAll(@PathParam("id") final String id, @Suspended final AsyncResponse response) {
 		Logger l = getLogger();
 		l.fine("Getting all sequences for "+(id != null));
-		return doGet(id, new SequenceType[] { SequenceType.AA, SequenceType.RNA });
+		doGet(id, new SequenceType[] { SequenceType.AA, SequenceType.RNA }, response);
 	}
 
+	@POST
+	@Path("protein")
+	@Consumes(MediaType.TEXT_PLAIN)
+	@RolesAllowed("1kp_user")
+	@Override
+	public void getProteins(final String id_list, @Suspended final AsyncResponse response) {
+		doBatchGet(id_list, SequenceType.AA, response);
+	}
+	
+	@POST
+	@Path("transcript")
+	@Consumes(MediaType.TEXT_PLAIN)
+	@RolesAllowed("1kp_user")
+	@Override
+	public void getTranscripts(final String id_list, @Suspended final AsyncResponse response) {
+		doBatchGet(id_list, SequenceType.RNA, response);
+	}
+	
 	@GET
 	@Path("proteome/{sample}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getProteome(@PathParam("sample") final String onekp_sample_id) {
-		return getSample(onekp_sample_id, SequenceType.AA);
+	public void getProteome(@PathParam("sample") final String onekp_sample_id, @Suspended final AsyncResponse response) {
+		getSample(onekp_sample_id, SequenceType.AA, response);
 	}
 
 	@GET
 	@Path("transcriptome/{sample}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getTranscriptome(@PathParam("sample") final String onekp_sample_id) {
-		return getSample(onekp_sample_id, SequenceType.RNA);
+	public void getTranscriptome(@PathParam("sample") final String onekp_sample_id, @Suspended final AsyncResponse response) {
+		getSample(onekp_sample_id, SequenceType.RNA, response);
 	}
 
 	@GET
 	@Path("summary/{sample}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getSummary(@PathParam("sample") final String onekp_sample_id) {
+	public void getSummary(@PathParam("sample") final String onekp_sample_id, @Suspended final AsyncResponse response) {
+		getSampleSummary(onekp_sample_id, response);
+	}
+
+	/**
+	 * Unlike the other datasets, the summary also reports which datasets the sample is available in
+	 */
+	@Override
+	protected Response getSampleSummary(final String onekp_sample_id) {
 		try {
 			Queries q = new Queries(this);
 			if (q != null) {
@@ -154,6 +185,8 @@ public class k25ScaffoldService extends OneKPSequenceService {
 			sb.append("Taxonomic clade: "+sa.getClade()+"\n");
 			sb.append("Number of predicted proteins: "+n_prots+"\n");
 			sb.append("Number of assembled scaffolds: "+n_transcripts+"\n");
+			appendLengthStatistics(sb, q, onekp_sample_id, SequenceType.AA, "Protein");
+			appendLengthStatistics(sb, q, onekp_sample_id, SequenceType.RNA, "Scaffold");
 			sb.append("Available in datasets (AA): "+q.getDatasetsAsString(onekp_sample_id, SequenceType.AA)+"\n");
 			sb.append("Available in datasets (DNA): "+q.getDatasetsAsString(onekp_sample_id, SequenceType.RNA)+"\n");
 			return Response.ok(sb.toString()).build();
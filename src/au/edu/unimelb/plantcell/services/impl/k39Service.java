@@ -5,15 +5,18 @@ import java.util.logging.Logger;
 
 import javax.annotation.security.RolesAllowed;
 import javax.ejb.Stateless;
-import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceUnit;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
 
 import au.edu.unimelb.plantcell.jpa.dao.DatasetDesignation;
 import au.edu.unimelb.plantcell.jpa.dao.SequenceType;
@@ -27,8 +30,6 @@ public class k39Service extends OneKPSequenceService {
 	@PersistenceUnit(unitName="seqdb_onekp")			// must match persistence.xml entry
 	private EntityManagerFactory emf;
 	
-	private EntityManager seqdb_onekp;
-	
 	@Override 
 	public DatasetDesignation getDesignation() {
 		return new DatasetDesignation("k39", "");
@@ -40,13 +41,8 @@ public class k39Service extends OneKPSequenceService {
 	}
 	
 	@Override
-	public EntityManager getEntityManager() {
-		synchronized (emf) {
-			if (seqdb_onekp == null) {
-					seqdb_onekp = emf.createEntityManager();
-			}
-			return seqdb_onekp;
-		}
+	public EntityManagerFactory getEntityManagerFactory() {
+		return emf;
 	}
 	
 	/**
@@ -61,50 +57,77 @@ public class k39Service extends OneKPSequenceService {
 	@Path("protein/{id : .+}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getProtein(@PathParam("id") final String id) { 
+	public void getProtein(@PathParam("id") final String id, @Suspended final AsyncResponse response) {
 		logger.info("Getting protein id is: "+(id != null));
-		return doGet(id, new SequenceType[] { SequenceType.AA });
+		doGet(id, new SequenceType[] { SequenceType.AA }, response);
 	}
 	
 	@GET
 	@Path("transcript/{id : .+}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getTranscript(@PathParam("id") final String id) {
+	public void getTranscript(@PathParam("id") final String id, @Suspended final AsyncResponse response) {
 		logger.info("Getting transcript contig id is: "+(id != null));
-		return doGet(id, new SequenceType[] { SequenceType.RNA });
+		doGet(id, new SequenceType[] { SequenceType.RNA }, response);
+	}
+	
+	@GET
+	@Path("transcript/{id : .+}/{start : \\d+}-{end : \\d+}")
+	@RolesAllowed("1kp_user")
+	@Override
+	public void getTranscriptRegion(@PathParam("id") final String id, @PathParam("start") final long start, 
+			@PathParam("end") final long end, @QueryParam("revcomp") final boolean revcomp, @Suspended final AsyncResponse response) {
+		doSubsequenceGet(id, SequenceType.RNA, start, end, revcomp, response);
 	}
 	
 	@GET
 	@Path("all/{id : .+}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getAll(@PathParam("id") final String id) {
+	public void getAll(@PathParam("id") final String id, @Suspended final AsyncResponse response) {
 		logger.fine("Getting all available sequence: "+(id != null));
-		return doGet(id, new SequenceType[] { SequenceType.AA, SequenceType.RNA });
+		doGet(id, new SequenceType[] { SequenceType.AA, SequenceType.RNA }, response);
+	}
+	
+	@POST
+	@Path("protein")
+	@Consumes(MediaType.TEXT_PLAIN)
+	@RolesAllowed("1kp_user")
+	@Override
+	public void getProteins(final String id_list, @Suspended final AsyncResponse response) {
+		doBatchGet(id_list, SequenceType.AA, response);
+	}
+	
+	@POST
+	@Path("transcript")
+	@Consumes(MediaType.TEXT_PLAIN)
+	@RolesAllowed("1kp_user")
+	@Override
+	public void getTranscripts(final String id_list, @Suspended final AsyncResponse response) {
+		doBatchGet(id_list, SequenceType.RNA, response);
 	}
 	
 	@GET
 	@Path("proteome/{sample}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getProteome(@PathParam("sample") final String onekp_sample_id) {
-		return getSample(onekp_sample_id, SequenceType.AA);
+	public void getProteome(@PathParam("sample") final String onekp_sample_id, @Suspended final AsyncResponse response) {
+		getSample(onekp_sample_id, SequenceType.AA, response);
 	}
 	
 	@GET
 	@Path("transcriptome/{sample}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getTranscriptome(@PathParam("sample") final String onekp_sample_id) {
-		return getSample(onekp_sample_id, SequenceType.RNA);
+	public void getTranscriptome(@PathParam("sample") final String onekp_sample_id, @Suspended final AsyncResponse response) {
+		getSample(onekp_sample_id, SequenceType.RNA, response);
 	}
 
 	@GET
 	@Path("summary/{sample}")
 	@RolesAllowed("1kp_user")
 	@Override
-	public Response getSummary(@PathParam("sample") final String onekp_sample_id) {
-		return getSampleSummary(onekp_sample_id);
+	public void getSummary(@PathParam("sample") final String onekp_sample_id, @Suspended final AsyncResponse response) {
+		getSampleSummary(onekp_sample_id, response);
 	}
 }
@@ -0,0 +1,97 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.seqdb.BgzfBlockCache;
+import au.edu.unimelb.plantcell.seqdb.BgzfInputStream;
+import au.edu.unimelb.plantcell.seqdb.BgzfOutputStream;
+
+public class BgzfTest {
+	private final static Charset US_ASCII = Charset.forName("US-ASCII");
+
+	@Test
+	public void roundTripTest() throws IOException {
+		// enough (random, so poorly compressible) records to span many blocks
+		Random r = new Random(42);
+		List<String> records = new ArrayList<String>();
+		StringBuilder fasta = new StringBuilder();
+		List<Long> starts = new ArrayList<Long>();
+		for (int i=0; i<500; i++) {
+			StringBuilder sb = new StringBuilder(">ABCD_"+i+"\n");
+			int len = 100 + r.nextInt(2000);
+			for (int j=0; j<len; j++) {
+				sb.append("ACGT".charAt(r.nextInt(4)));
+				if (j % 60 == 59) {
+					sb.append('\n');
+				}
+			}
+			starts.add(Long.valueOf(fasta.length()));
+			records.add(sb.toString());
+			fasta.append(sb).append('\n');
+		}
+		byte[] uncompressed = fasta.toString().getBytes(US_ASCII);
+
+		File f = File.createTempFile("BgzfTest", ".fa.gz");
+		try {
+			BgzfOutputStream out = new BgzfOutputStream(new FileOutputStream(f));
+			out.write(uncompressed);
+			out.close();
+
+			// a standard gzip reader must see the whole file
+			assertEquals(uncompressed.length, readAll(new GZIPInputStream(new FileInputStream(f))).length);
+
+			// read sequentially, converting each record start to a virtual offset
+			BgzfInputStream in = new BgzfInputStream(f);
+			byte[] copy = readAll(in);
+			assertEquals(uncompressed.length, copy.length);
+			long[] virtual_offsets = new long[starts.size()];
+			for (int i=0; i<virtual_offsets.length; i++) {
+				virtual_offsets[i] = in.getVirtualOffset(starts.get(i));
+			}
+
+			FastaFile ff = new FastaFile(f);
+			BgzfBlockCache cache = new BgzfBlockCache(256 * 1024);		// small, so that blocks are evicted
+			for (int i=virtual_offsets.length-1; i>=0; i--) {
+				String expected = records.get(i);
+				byte[] got = cache.read(ff, virtual_offsets[i], 0, expected.length());
+				assertEquals(expected, new String(got, US_ASCII));
+			}
+
+			// skip into a record eg. for a subsequence
+			String expected = records.get(250);
+			byte[] got = cache.read(ff, virtual_offsets[250], 10, 100);
+			assertEquals(expected.substring(10, 110), new String(got, US_ASCII));
+		} finally {
+			f.delete();
+		}
+	}
+
+	private byte[] readAll(final InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				bos.write(buf, 0, n);
+			}
+			return bos.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.seqdb.BoundedPipe;
+
+public class BoundedPipeTest {
+
+	/**
+	 * Writes the specified bytes to the pipe, in randomly sized pieces, then closes it
+	 */
+	private static Thread startWriter(final BoundedPipe pipe, final byte[] data, final IOException[] failure) {
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				OutputStream out = pipe.getOutputStream();
+				Random r = new Random(1);
+				try {
+					int pos = 0;
+					while (pos < data.length) {
+						if (r.nextInt(10) == 0) {
+							out.write(data[pos++]);
+						} else {
+							int n = Math.min(data.length - pos, r.nextInt(100));
+							out.write(data, pos, n);
+							pos += n;
+						}
+						if (r.nextInt(50) == 0) {
+							out.flush();
+						}
+					}
+					out.close();
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+
+		});
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void transferTest() throws Exception {
+		byte[] data = new byte[100000];
+		new Random(2).nextBytes(data);
+		// the pipe holds much less than the data, so the writer must wait for the reader
+		BoundedPipe pipe = new BoundedPipe(64, 4);
+		IOException[] failure = new IOException[1];
+		Thread writer = startWriter(pipe, data, failure);
+
+		InputStream in = pipe.getInputStream();
+		ByteArrayOutputStream got = new ByteArrayOutputStream();
+		byte[] buf = new byte[37];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			got.write(buf, 0, n);
+			int b = in.read();
+			if (b >= 0) {
+				got.write(b);
+			}
+		}
+		assertEquals(-1, in.read());
+		writer.join();
+		assertEquals(null, failure[0]);
+		assertArrayEquals(data, got.toByteArray());
+	}
+
+	@Test
+	public void abortTest() throws Exception {
+		BoundedPipe pipe = new BoundedPipe(16, 2);
+		IOException[] failure = new IOException[1];
+		// nothing is read, so the writer blocks once the pipe is full
+		Thread writer = startWriter(pipe, new byte[1000], failure);
+		Thread.sleep(200);
+		assertTrue(writer.isAlive());
+		pipe.abort(new IllegalStateException("reader failed"));
+		writer.join(5000);
+		assertTrue(!writer.isAlive());
+		assertTrue(failure[0] != null);
+		assertTrue(failure[0].getCause() instanceof IllegalStateException);
+
+		try {
+			pipe.getInputStream().read();
+			fail("read from an aborted pipe");
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReference;
+import au.edu.unimelb.plantcell.seqdb.FastaFileVersions;
+import au.edu.unimelb.plantcell.seqdb.FastaOffsetIndex;
+import au.edu.unimelb.plantcell.seqdb.FastaRegionPool;
+
+public class FastaFileVersionsTest {
+
+	private static void writeFasta(final File fasta, final String content, final long start, final long modified) throws IOException {
+		FileOutputStream out = new FileOutputStream(fasta);
+		try {
+			out.write(content.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		fasta.setLastModified(modified);
+		SequenceReference sr = new SequenceReference();
+		sr.setFastaFile(new FastaFile());
+		sr.setSequenceID("ABCD_1");
+		sr.setStart(start);
+		sr.setLength(content.length() - (int) start - 1);
+		List<SequenceReference> refs = new ArrayList<SequenceReference>();
+		refs.add(sr);
+		FastaOffsetIndex.write(fasta, refs);
+		FastaOffsetIndex.getIndexFile(fasta).setLastModified(modified + 1000);
+	}
+
+	@Test
+	public void changedFileTest() throws IOException {
+		File fasta = File.createTempFile("FastaFileVersionsTest", ".fa");
+		long t = (System.currentTimeMillis() / 1000 - 600) * 1000;
+		try {
+			writeFasta(fasta, ">ABCD_1\nACGT\n", 0, t);
+			FastaFile ff = new FastaFile(fasta);
+			FastaFileVersions.Snapshot before = FastaFileVersions.snapshot(Collections.singletonList(ff));
+			FastaOffsetIndex idx = FastaOffsetIndex.getInstance(fasta);
+			assertNotNull(idx);
+			assertEquals(0, idx.getStart(idx.find("ABCD_1")));
+			assertNotNull(FastaRegionPool.getInstance().getRecord(ff, 0, 4));
+			assertTrue(FastaRegionPool.getInstance().getRegionCount() > 0);
+			assertTrue(before.isCurrent());
+
+			// re-ingested in place: the record moves, but the cached index still has the old offset until the file is checked
+			writeFasta(fasta, ">X\nAA\n>ABCD_1\nACGT\n", 6, t + 60000);
+			assertEquals(0, FastaOffsetIndex.getInstance(fasta).getStart(0));
+
+			assertFalse(before.isCurrent());
+			assertEquals(0, FastaRegionPool.getInstance().getRegionCount());
+			idx = FastaOffsetIndex.getInstance(fasta);
+			assertNotNull(idx);
+			assertEquals(6, idx.getStart(idx.find("ABCD_1")));
+			assertTrue(FastaFileVersions.snapshot(Collections.singletonList(ff)).isCurrent());
+		} finally {
+			FastaOffsetIndex.clearCache();
+			FastaRegionPool.getInstance().clear();
+			FastaOffsetIndex.getIndexFile(fasta).delete();
+			fasta.delete();
+		}
+	}
+}
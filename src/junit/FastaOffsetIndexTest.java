@@ -0,0 +1,226 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFile;
+import au.edu.unimelb.plantcell.jpa.dao.SequenceReference;
+import au.edu.unimelb.plantcell.seqdb.FastaOffsetIndex;
+
+public class FastaOffsetIndexTest {
+
+	private SequenceReference newReference(final String id, final long start, final int length) {
+		SequenceReference sr = new SequenceReference();
+		sr.setFastaFile(new FastaFile());
+		sr.setSequenceID(id);
+		sr.setStart(start);
+		sr.setLength(length);
+		return sr;
+	}
+
+	@Test
+	public void indexTest() throws IOException {
+		File fasta = File.createTempFile("FastaOffsetIndexTest", ".fa");
+		fasta.setLastModified(System.currentTimeMillis() - 60 * 1000);
+		try {
+			// deliberately out of order: the index must sort them
+			List<SequenceReference> refs = new ArrayList<SequenceReference>();
+			refs.add(newReference("Locus_2_Transcript_1/1_Confidence_1.000_Length_300", 2000, 320));
+			refs.add(newReference("Locus_1_Transcript_2/2_Confidence_0.500_Length_120", 1000, 140));
+			refs.add(newReference("Locus_1_Transcript_1/2_Confidence_0.500_Length_100", 0, 120));
+			refs.add(newReference("Locus_10_Transcript_1/1_Confidence_1.000_Length_80", 3000, 90));
+			FastaOffsetIndex.write(fasta, refs);
+
+			FastaOffsetIndex idx = FastaOffsetIndex.getInstance(fasta);
+			assertNotNull(idx);
+			assertEquals(4, idx.size());
+
+			int i = idx.find("Locus_1_Transcript_2/2_Confidence_0.500_Length_120");
+			assertEquals(1000, idx.getStart(i));
+			assertEquals(140, idx.getLength(i));
+			assertEquals("Locus_1_Transcript_2/2_Confidence_0.500_Length_120", idx.getSequenceID(i));
+
+			i = idx.find("Locus_10_Transcript_1/1_Confidence_1.000_Length_80");
+			assertEquals(3000, idx.getStart(i));
+
+			assertEquals(-1, idx.find("Locus_1"));
+			assertEquals(-1, idx.find("Locus_3_Transcript_1/1_Confidence_1.000_Length_300"));
+		} finally {
+			FastaOffsetIndex.clearCache();
+			FastaOffsetIndex.getIndexFile(fasta).delete();
+			fasta.delete();
+		}
+	}
+
+	@Test
+	public void prefixTest() throws IOException {
+		File fasta = File.createTempFile("FastaOffsetIndexTest", ".fa");
+		fasta.setLastModified(System.currentTimeMillis() - 60 * 1000);
+		try {
+			List<SequenceReference> refs = new ArrayList<SequenceReference>();
+			refs.add(newReference("Locus_1", 0, 10));
+			refs.add(newReference("Locus_12_Transcript_1/2_Confidence_0.500_Length_100", 100, 10));
+			refs.add(newReference("Locus_12_Transcript_2/2_Confidence_0.500_Length_100", 200, 10));
+			refs.add(newReference("Locus_120_Transcript_1/1_Confidence_1.000_Length_100", 300, 10));
+			refs.add(newReference("Locus_13_Transcript_1/1_Confidence_1.000_Length_100", 400, 10));
+			refs.add(newReference("Locus_2_Transcript_1/1_Confidence_1.000_Length_100", 500, 10));
+			FastaOffsetIndex.write(fasta, refs);
+			FastaOffsetIndex idx = FastaOffsetIndex.getInstance(fasta);
+			assertNotNull(idx);
+
+			int[] range = idx.findPrefixRange("Locus_12_");
+			assertEquals(2, range[1] - range[0]);
+			assertEquals("Locus_12_Transcript_1/2_Confidence_0.500_Length_100", idx.getSequenceID(range[0]));
+
+			range = idx.findPrefixRange("Locus_12");
+			assertEquals(3, range[1] - range[0]);
+
+			range = idx.findPrefixRange("Locus_");
+			assertEquals(6, range[1] - range[0]);
+
+			range = idx.findPrefixRange("Locus_3");
+			assertEquals(0, range[1] - range[0]);
+
+			range = idx.findPrefixRange("Locus_13_Transcript_1/1_Confidence_1.000_Length_100");
+			assertEquals(1, range[1] - range[0]);
+			assertEquals(400, idx.getStart(range[0]));
+		} finally {
+			FastaOffsetIndex.clearCache();
+			FastaOffsetIndex.getIndexFile(fasta).delete();
+			fasta.delete();
+		}
+	}
+
+	@Test
+	public void layoutTest() throws IOException {
+		File fasta = File.createTempFile("FastaOffsetIndexTest", ".fa");
+		fasta.setLastModified(System.currentTimeMillis() - 60 * 1000);
+		try {
+			List<SequenceReference> refs = new ArrayList<SequenceReference>();
+			SequenceReference regular = newReference("ABCD_1", 0, 200);
+			regular.setHeaderLength(8);
+			regular.addSequenceLine(60, 1);
+			regular.addSequenceLine(60, 1);
+			regular.addSequenceLine(12, 1);
+			refs.add(regular);
+			SequenceReference irregular = newReference("ABCD_2", 200, 100);
+			irregular.setHeaderLength(8);
+			irregular.addSequenceLine(60, 1);
+			irregular.addSequenceLine(12, 1);
+			irregular.addSequenceLine(60, 1);
+			refs.add(irregular);
+			FastaOffsetIndex.write(fasta, refs);
+			FastaOffsetIndex idx = FastaOffsetIndex.getInstance(fasta);
+			assertNotNull(idx);
+
+			int i = idx.find("ABCD_1");
+			assertEquals(8, idx.getHeaderLength(i));
+			assertEquals(60, idx.getLineBases(i));
+			assertEquals(61, idx.getLineWidth(i));
+
+			// a short line before the last means residue offsets cannot be computed
+			i = idx.find("ABCD_2");
+			assertEquals(0, idx.getLineBases(i));
+			assertEquals(0, idx.getLineWidth(i));
+		} finally {
+			FastaOffsetIndex.clearCache();
+			FastaOffsetIndex.getIndexFile(fasta).delete();
+			fasta.delete();
+		}
+	}
+
+	@Test
+	public void spillTest() throws IOException {
+		File fasta = File.createTempFile("FastaOffsetIndexTest", ".fa");
+		fasta.setLastModified(System.currentTimeMillis() - 60 * 1000);
+		try {
+			// more records than a run holds, in no particular order: the runs must be merged
+			FastaOffsetIndex.Writer w = new FastaOffsetIndex.Writer(fasta, 7);
+			for (int i=0; i<100; i++) {
+				int locus = (i * 37) % 100;
+				w.add(newReference("Locus_"+locus+"_Transcript_1/1", locus * 1000L, locus + 1));
+			}
+			w.finish();
+			File[] left = fasta.getAbsoluteFile().getParentFile().listFiles();
+			for (File f : left) {
+				assertFalse(f.getName().startsWith(fasta.getName()+".") && f.getName().endsWith(".run"));
+			}
+
+			FastaOffsetIndex idx = FastaOffsetIndex.getInstance(fasta);
+			assertNotNull(idx);
+			assertEquals(100, idx.size());
+			for (int i=1; i<idx.size(); i++) {
+				assertTrue(idx.getSequenceID(i-1).compareTo(idx.getSequenceID(i)) < 0);
+			}
+			for (int locus=0; locus<100; locus++) {
+				int i = idx.find("Locus_"+locus+"_Transcript_1/1");
+				assertEquals(locus * 1000L, idx.getStart(i));
+				assertEquals(locus + 1, idx.getLength(i));
+			}
+			assertEquals(11, idx.findPrefixRange("Locus_1")[1] - idx.findPrefixRange("Locus_1")[0]);
+		} finally {
+			FastaOffsetIndex.clearCache();
+			FastaOffsetIndex.getIndexFile(fasta).delete();
+			fasta.delete();
+		}
+	}
+
+	@Test
+	public void segmentTest() throws IOException {
+		File fasta = File.createTempFile("FastaOffsetIndexTest", ".fa");
+		try {
+			List<SequenceReference> refs = new ArrayList<SequenceReference>();
+			for (int i=0; i<50; i++) {
+				SequenceReference sr = newReference("Locus_"+i+"_Transcript_1/1", 3000000000L + i * 1000L, i + 1);
+				sr.setHeaderLength(i + 2);
+				refs.add(sr);
+			}
+			FastaOffsetIndex.write(fasta, refs);
+
+			// segments far smaller than the index, so that fields and ID's span two segments as they would in an index over 2GB
+			for (int segment_size : new int[] { 8, 13, 100 }) {
+				FastaOffsetIndex idx = FastaOffsetIndex.open(FastaOffsetIndex.getIndexFile(fasta), segment_size);
+				assertEquals(50, idx.size());
+				for (int i=0; i<50; i++) {
+					int r = idx.find("Locus_"+i+"_Transcript_1/1");
+					assertEquals("Locus_"+i+"_Transcript_1/1", idx.getSequenceID(r));
+					assertEquals(3000000000L + i * 1000L, idx.getStart(r));
+					assertEquals(i + 1, idx.getLength(r));
+					assertEquals(i + 2, idx.getHeaderLength(r));
+				}
+				assertEquals(11, idx.findPrefixRange("Locus_1")[1] - idx.findPrefixRange("Locus_1")[0]);
+			}
+		} finally {
+			FastaOffsetIndex.getIndexFile(fasta).delete();
+			fasta.delete();
+		}
+	}
+
+	@Test
+	public void staleIndexTest() throws IOException {
+		File fasta = File.createTempFile("FastaOffsetIndexTest", ".fa");
+		try {
+			List<SequenceReference> refs = new ArrayList<SequenceReference>();
+			refs.add(newReference("ABCD_1", 0, 10));
+			FastaOffsetIndex.write(fasta, refs);
+
+			// an index older than its fasta file must not be used
+			fasta.setLastModified(System.currentTimeMillis() + 60 * 1000);
+			assertNull(FastaOffsetIndex.getInstance(fasta));
+		} finally {
+			FastaOffsetIndex.clearCache();
+			FastaOffsetIndex.getIndexFile(fasta).delete();
+			fasta.delete();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.seqdb.FastaScanner;
+
+public class FastaScannerTest {
+
+	/**
+	 * Records each event as text eg. <code>start 0 id 4</code>, <code>line 60 1</code>, <code>end 0 70</code>
+	 */
+	private static class Recorder implements FastaScanner.RecordHandler {
+		final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void startRecord(final long start, final String id, final int header_length) {
+			events.add("start "+start+" "+id+" "+header_length);
+		}
+
+		@Override
+		public void sequenceLine(final int n_residues, final int eol_length) {
+			events.add("line "+n_residues+" "+eol_length);
+		}
+
+		@Override
+		public void endRecord(final long start, final long end) {
+			events.add("end "+start+" "+end);
+		}
+	}
+
+	private List<String> scan(final byte[] fasta) throws IOException {
+		Recorder r = new Recorder();
+		FastaScanner.scan(new ByteArrayInputStream(fasta), r);
+		return r.events;
+	}
+
+	@Test
+	public void layoutTest() throws IOException {
+		List<String> lf = scan(">a desc\nACGT\nAC\n>b\nGG\n".getBytes("US-ASCII"));
+		assertEquals("[start 0 a 8, line 4 1, line 2 1, end 0 15, start 16 b 3, line 2 1, end 16 21]", lf.toString());
+
+		// offsets are exact for CRLF, and lengths exclude the terminator
+		List<String> crlf = scan(">a desc\r\nACGT\r\nAC\r\n>b\r\nGG\r\n".getBytes("US-ASCII"));
+		assertEquals("[start 0 a 9, line 4 2, line 2 2, end 0 17, start 19 b 4, line 2 2, end 19 25]", crlf.toString());
+
+		// no terminator on the last line, lines before the first record and a blank line
+		List<String> odd = scan("# comment\n>a\nACGT\n\n>b\nGG".getBytes("US-ASCII"));
+		assertEquals("[start 10 a 3, line 4 1, line 0 1, end 10 18, start 19 b 3, line 2 0, end 19 24]", odd.toString());
+
+		// offsets are in bytes, not characters
+		byte[] utf8 = ">\u00e9t\u00e9 x\u00e9\nAC\n>b\nG\n".getBytes("UTF-8");
+		List<String> mb = scan(utf8);
+		assertEquals("[start 0 \u00e9t\u00e9 11, line 2 1, end 0 13, start 14 b 3, line 1 1, end 14 18]", mb.toString());
+	}
+
+	@Test
+	public void boundaryTest() throws IOException {
+		byte[] fasta = ">a desc\r\nACGT\r\nAC\r\n>bb\r\nGG\r\n".getBytes("US-ASCII");
+		List<String> expected = scan(fasta);
+		// the same events must result however the bytes are split between buffers
+		for (int chunk=1; chunk<=fasta.length; chunk++) {
+			Recorder r = new Recorder();
+			FastaScanner fs = new FastaScanner(r);
+			for (int pos=0; pos<fasta.length; pos += chunk) {
+				fs.scan(ByteBuffer.wrap(fasta, pos, Math.min(chunk, fasta.length - pos)), 0);
+			}
+			fs.finish(fasta.length);
+			assertEquals("chunk size "+chunk, expected, r.events);
+		}
+	}
+
+	@Test
+	public void fileTest() throws IOException {
+		File f = File.createTempFile("FastaScannerTest", ".fa");
+		try {
+			byte[] fasta = ">a\r\nACGT\r\n>b\nGG\n>c\n".getBytes("US-ASCII");
+			FileOutputStream fos = new FileOutputStream(f);
+			try {
+				fos.write(fasta);
+			} finally {
+				fos.close();
+			}
+			Recorder r = new Recorder();
+			assertEquals(3L, FastaScanner.scan(f, r));
+			assertEquals(scan(fasta), r.events);
+			assertEquals(3, FastaScanner.countRecords(f));
+		} finally {
+			f.delete();
+		}
+	}
+}
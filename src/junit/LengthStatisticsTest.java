@@ -0,0 +1,74 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.jpa.dao.FastaFileStatistics;
+import au.edu.unimelb.plantcell.seqdb.LengthStatistics;
+
+public class LengthStatisticsTest {
+
+	@Test
+	public void n50Test() {
+		LengthStatistics ls = new LengthStatistics();
+		assertEquals(0, ls.getCount());
+		assertEquals(0, ls.getMin());
+		assertEquals(0, ls.getN50());
+
+		// 2+3+4+5+6+10 = 30: sequences of length 6 or more have 16 residues (at least half)
+		for (int len : new int[] { 4, 10, 2, 6, 3, 5 }) {
+			ls.add(len);
+		}
+		assertEquals(6, ls.getCount());
+		assertEquals(30L, ls.getTotal());
+		assertEquals(2, ls.getMin());
+		assertEquals(10, ls.getMax());
+		assertEquals(6, ls.getN50());
+
+		// exactly half is enough
+		LengthStatistics even = new LengthStatistics();
+		for (int len : new int[] { 5, 5, 10 }) {
+			even.add(len);
+		}
+		assertEquals(10, even.getN50());
+
+		FastaFileStatistics ffs = ls.save(new FastaFileStatistics());
+		assertEquals(6, ffs.getRecordCount());
+		assertEquals(30L, ffs.getTotalResidues());
+		assertEquals(6, ffs.getN50());
+	}
+
+	@Test
+	public void growthTest() {
+		LengthStatistics ls = new LengthStatistics();
+		for (int i=1; i<=5000; i++) {
+			ls.add(i);
+		}
+		assertEquals(5000, ls.getCount());
+		assertEquals(5000L * 5001 / 2, ls.getTotal());
+		assertEquals(1, ls.getMin());
+		assertEquals(5000, ls.getMax());
+		assertEquals(3536, ls.getN50());
+	}
+
+	@Test
+	public void longLengthTest() {
+		// scaffolds far longer than most contigs: 120000+100000 of 280100 residues
+		LengthStatistics ls = new LengthStatistics();
+		for (int len : new int[] { 120000, 50, 100000, 50, 60000 }) {
+			ls.add(len);
+		}
+		assertEquals(5, ls.getCount());
+		assertEquals(280100L, ls.getTotal());
+		assertEquals(50, ls.getMin());
+		assertEquals(120000, ls.getMax());
+		assertEquals(100000, ls.getN50());
+
+		// the N50 may fall among the short lengths
+		for (int i=0; i<10000; i++) {
+			ls.add(100);
+		}
+		assertEquals(100, ls.getN50());
+	}
+}
@@ -0,0 +1,77 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.seqdb.LruCache;
+
+public class LruCacheTest {
+
+	private static LruCache<String,byte[]> newCache(final long max_bytes) {
+		return new LruCache<String,byte[]>(max_bytes) {
+
+			@Override
+			protected long sizeOf(final byte[] value) {
+				return value.length;
+			}
+
+		};
+	}
+
+	@Test
+	public void evictionTest() {
+		LruCache<String,byte[]> c = newCache(100);
+		c.put("a", new byte[40]);
+		c.put("b", new byte[40]);
+		assertNotNull(c.get("a"));		// so b is now least recently used
+		c.put("c", new byte[40]);
+		assertNull(c.get("b"));
+		assertNotNull(c.get("a"));
+		assertNotNull(c.get("c"));
+		assertEquals(80, c.getCachedBytes());
+		assertEquals(1, c.getEvictions());
+		assertEquals(3, c.getHits());
+		assertEquals(1, c.getMisses());
+
+		// replacing an entry counts only the new value
+		c.put("a", new byte[10]);
+		assertEquals(50, c.getCachedBytes());
+
+		// an entry larger than the budget evicts every other entry, but is kept itself
+		c.put("big", new byte[150]);
+		assertEquals(1, c.size());
+		assertEquals(150, c.getCachedBytes());
+		assertNotNull(c.get("big"));
+	}
+
+	@Test
+	public void invalidateTest() {
+		LruCache<String,byte[]> c = newCache(1000);
+		c.put("k39\t1", new byte[10]);
+		c.put("k39\t2", new byte[10]);
+		c.put("k25\t1", new byte[10]);
+		int n = c.invalidate(new LruCache.KeyFilter<String>() {
+
+			@Override
+			public boolean matches(final String key) {
+				return key.startsWith("k39\t");
+			}
+
+		});
+		assertEquals(2, n);
+		assertEquals(1, c.size());
+		assertEquals(10, c.getCachedBytes());
+
+		c.clear();
+		assertEquals(0, c.size());
+		assertEquals(0, c.getCachedBytes());
+
+		// a budget of zero caches nothing
+		LruCache<String,byte[]> off = newCache(0);
+		off.put("a", new byte[1]);
+		assertNull(off.get("a"));
+	}
+}
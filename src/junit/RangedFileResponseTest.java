@@ -0,0 +1,149 @@
+package junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.services.impl.RangedFileResponse;
+import au.edu.unimelb.plantcell.services.impl.RequestHeaders;
+
+public class RangedFileResponseTest {
+	private final static EntityTag ETAG = new EntityTag("400-15f0a1b2c00");
+	private final static String TAG      = "\"400-15f0a1b2c00\"";
+	private final static String WEAK_TAG = "W/\"400-15f0a1b2c00\"";
+	private final static String OTHER    = "\"401-15f0a1b2c00\"";
+	private final static Date MODIFIED   = new Date(1500000000000L);
+
+	private static String httpDate(final Date d) {
+		SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return fmt.format(d);
+	}
+
+	private static Response.Status evaluate(final String... headers) {
+		return RangedFileResponse.evaluatePreconditions(RequestHeaders.of(headers), ETAG, MODIFIED);
+	}
+
+	@Test
+	public void rangeTest() {
+		// first and last bytes inclusive, clipped to the end of the file
+		assertArrayEquals(new long[] { 100, 199 }, RangedFileResponse.parseRange("bytes=100-199", 1000));
+		assertArrayEquals(new long[] { 990, 999 }, RangedFileResponse.parseRange("bytes=990-5000", 1000));
+		assertArrayEquals(new long[] { 0, 0 }, RangedFileResponse.parseRange(" bytes=0-0 ", 1000));
+
+		// open-ended
+		assertArrayEquals(new long[] { 100, 999 }, RangedFileResponse.parseRange("bytes=100-", 1000));
+		assertArrayEquals(new long[] { 999, 999 }, RangedFileResponse.parseRange("bytes=999-", 1000));
+
+		// suffix: the final N bytes, or the whole file if it is shorter
+		assertArrayEquals(new long[] { 500, 999 }, RangedFileResponse.parseRange("bytes=-500", 1000));
+		assertArrayEquals(new long[] { 0, 999 }, RangedFileResponse.parseRange("bytes=-5000", 1000));
+		assertEquals(0, RangedFileResponse.parseRange("bytes=-0", 1000).length);
+
+		// past the end of the file: unsatisfiable
+		assertEquals(0, RangedFileResponse.parseRange("bytes=1000-", 1000).length);
+		assertEquals(0, RangedFileResponse.parseRange("bytes=2000-3000", 1000).length);
+
+		// no range of a zero-length file can be satisfied
+		assertEquals(0, RangedFileResponse.parseRange("bytes=0-", 0).length);
+		assertEquals(0, RangedFileResponse.parseRange("bytes=0-10", 0).length);
+		assertEquals(0, RangedFileResponse.parseRange("bytes=-10", 0).length);
+	}
+
+	@Test
+	public void ignoredRangeTest() {
+		// several ranges: the whole file is sent
+		assertNull(RangedFileResponse.parseRange("bytes=0-99,200-299", 1000));
+		assertNull(RangedFileResponse.parseRange("bytes=-10, 0-5", 1000));
+
+		// malformed
+		assertNull(RangedFileResponse.parseRange("bytes=200-100", 1000));
+		assertNull(RangedFileResponse.parseRange("bytes=abc-", 1000));
+		assertNull(RangedFileResponse.parseRange("bytes=100", 1000));
+		assertNull(RangedFileResponse.parseRange("bytes=-", 1000));
+		assertNull(RangedFileResponse.parseRange("lines=1-2", 1000));
+	}
+
+	@Test
+	public void ifRangeTest() {
+		assertTrue(RangedFileResponse.isRangeCurrent(null, ETAG, MODIFIED));
+		assertTrue(RangedFileResponse.isRangeCurrent(TAG, ETAG, MODIFIED));
+		assertFalse(RangedFileResponse.isRangeCurrent(OTHER, ETAG, MODIFIED));
+		// a weak tag never permits a range, even if it matches
+		assertFalse(RangedFileResponse.isRangeCurrent(WEAK_TAG, ETAG, MODIFIED));
+
+		// a date must match exactly
+		assertTrue(RangedFileResponse.isRangeCurrent(httpDate(MODIFIED), ETAG, MODIFIED));
+		assertFalse(RangedFileResponse.isRangeCurrent(httpDate(new Date(MODIFIED.getTime() + 1000)), ETAG, MODIFIED));
+		assertFalse(RangedFileResponse.isRangeCurrent(httpDate(new Date(MODIFIED.getTime() - 1000)), ETAG, MODIFIED));
+		assertFalse(RangedFileResponse.isRangeCurrent("not a date", ETAG, MODIFIED));
+	}
+
+	@Test
+	public void ifMatchTest() {
+		assertNull(evaluate());
+		assertNull(evaluate("If-Match", TAG));
+		assertNull(evaluate("If-Match", "*"));
+		assertNull(evaluate("If-Match", OTHER+", "+TAG));
+		assertEquals(Response.Status.PRECONDITION_FAILED, evaluate("If-Match", OTHER));
+		// If-Match uses the strong comparison, so a weak tag never matches
+		assertEquals(Response.Status.PRECONDITION_FAILED, evaluate("If-Match", WEAK_TAG));
+
+		assertNull(evaluate("If-Unmodified-Since", httpDate(MODIFIED)));
+		assertEquals(Response.Status.PRECONDITION_FAILED, evaluate("If-Unmodified-Since", httpDate(new Date(MODIFIED.getTime() - 1000))));
+		// If-Unmodified-Since is ignored when If-Match is present
+		assertNull(evaluate("If-Match", TAG, "If-Unmodified-Since", httpDate(new Date(MODIFIED.getTime() - 1000))));
+		// an invalid date is ignored
+		assertNull(evaluate("If-Unmodified-Since", "yesterday"));
+	}
+
+	@Test
+	public void ifNoneMatchTest() {
+		assertEquals(Response.Status.NOT_MODIFIED, evaluate("If-None-Match", TAG));
+		assertEquals(Response.Status.NOT_MODIFIED, evaluate("If-None-Match", "*"));
+		// If-None-Match uses the weak comparison
+		assertEquals(Response.Status.NOT_MODIFIED, evaluate("If-None-Match", WEAK_TAG));
+		assertNull(evaluate("If-None-Match", OTHER));
+
+		assertEquals(Response.Status.NOT_MODIFIED, evaluate("If-Modified-Since", httpDate(MODIFIED)));
+		assertNull(evaluate("If-Modified-Since", httpDate(new Date(MODIFIED.getTime() - 1000))));
+
+		// If-Modified-Since is ignored when If-None-Match is present, whether or not it matches
+		assertNull(evaluate("If-None-Match", OTHER, "If-Modified-Since", httpDate(MODIFIED)));
+		assertEquals(Response.Status.NOT_MODIFIED, evaluate("If-None-Match", TAG, "If-Modified-Since", httpDate(new Date(MODIFIED.getTime() - 1000))));
+
+		// a failed If-Match takes precedence over If-None-Match
+		assertEquals(Response.Status.PRECONDITION_FAILED, evaluate("If-Match", OTHER, "If-None-Match", TAG));
+	}
+
+	@Test
+	public void acceptsGzipTest() {
+		assertFalse(RangedFileResponse.acceptsGzip(null));
+		assertFalse(RangedFileResponse.acceptsGzip(RequestHeaders.NONE));
+		assertTrue(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "gzip")));
+		assertTrue(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "deflate, GZIP;q=0.5")));
+		assertTrue(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "x-gzip")));
+		assertTrue(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "*")));
+		assertFalse(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "identity, deflate")));
+
+		// q=0 refuses the coding
+		assertFalse(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "gzip;q=0")));
+		assertFalse(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "gzip; q=0.000")));
+		assertFalse(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "*;q=0")));
+		// an explicit refusal of gzip is not overridden by *
+		assertFalse(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "gzip;q=0, *")));
+		assertTrue(RangedFileResponse.acceptsGzip(RequestHeaders.of("Accept-Encoding", "gzip;q=0.1, *;q=0")));
+	}
+}
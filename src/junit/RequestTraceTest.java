@@ -0,0 +1,74 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.seqdb.RecentTraces;
+import au.edu.unimelb.plantcell.seqdb.RequestTrace;
+
+public class RequestTraceTest {
+
+	@Test
+	public void stageTest() throws InterruptedException {
+		assertEquals(0L, RequestTrace.start());		// no trace bound: stages are ignored
+		RequestTrace.end("ignored", 0L);
+
+		RequestTrace t = RequestTrace.begin("abc-123", "k49 get ABCD_Locus_1");
+		assertSame(t, RequestTrace.current());
+		assertEquals("abc-123", t.getTraceID());
+		long start = RequestTrace.start();
+		Thread.sleep(2);
+		RequestTrace.end("findFastaFile", start);
+
+		// continued on another thread, as when the container writes the response
+		assertSame(t, RequestTrace.detach());
+		assertNull(RequestTrace.current());
+		t.attach();
+		RequestTrace.end("write", RequestTrace.start());
+		t.finish();
+		assertNull(RequestTrace.current());
+
+		String s = t.toString();
+		assertTrue(s, s.startsWith("trace=abc-123 "));
+		assertTrue(s, s.contains(" findFastaFile_us="));
+		assertTrue(s, s.contains(" write_us="));
+		assertTrue(t.getTotalNanos() >= 2 * 1000 * 1000);
+
+		// unsuitable ID's are replaced
+		RequestTrace u = RequestTrace.begin("bad id\n", "test");
+		assertTrue(!u.getTraceID().equals("bad id\n"));
+		u.finish();
+	}
+
+	@Test
+	public void ringBufferTest() throws InterruptedException {
+		RecentTraces rt = new RecentTraces(3);
+		RequestTrace slow = RequestTrace.begin(null, "slow");
+		Thread.sleep(5);
+		slow.finish();
+		rt.add(slow);
+		for (int i=0; i<2; i++) {
+			RequestTrace t = RequestTrace.begin(null, "fast"+i);
+			t.finish();
+			rt.add(t);
+		}
+		List<RequestTrace> l = rt.getSlowest(10);
+		assertEquals(3, l.size());
+		assertSame(slow, l.get(0));
+
+		// the oldest (slowest) trace is overwritten once the buffer is full
+		RequestTrace t = RequestTrace.begin(null, "fast3");
+		t.finish();
+		rt.add(t);
+		assertEquals(4, rt.getTotalAdded());
+		l = rt.getSlowest(1);
+		assertEquals(1, l.size());
+		assertTrue(l.get(0) != slow);
+	}
+}
@@ -0,0 +1,91 @@
+package junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import au.edu.unimelb.plantcell.seqdb.SampleIDSet;
+import au.edu.unimelb.plantcell.seqdb.SequenceID;
+import au.edu.unimelb.plantcell.seqdb.SequenceID.Grammar;
+
+public class SequenceIDTest {
+	// the regular expressions which the parser replaces: it must accept exactly the same ID's
+	private final static Pattern K25   = Pattern.compile("^[A-Z]{4}_\\d+$");
+	private final static Pattern K25S  = Pattern.compile("^scaffold-[A-Z]{4}-\\d+(-\\S{1,60})?$");
+	private final static Pattern OASES = Pattern.compile("^[A-Z]{4}_Locus_\\d+(_Transcript_\\d+(/\\d+_Confidence_[\\d.]+_Length_\\d+(_\\d+)?)?)?$");
+
+	private final static String[] IDS = new String[] {
+		"ABCD_1234", "ABCD_1", "ABCD_", "ABC_1234", "abcd_1234", "ABCD-1234", "ABCD_12a", "ABCD_1234 ", "", "ABCDE_1",
+		"scaffold-ABCD-1234", "scaffold-ABCD-1234-", "scaffold-ABCD-1234-x", "scaffold-ABCD-1234-x y", "scaffold-ABCD-",
+		"scaffold-ABCD-1234-0123456789012345678901234567890123456789012345678901234567890", "scaffold-abcd-1234", "Scaffold-ABCD-1",
+		"ABCD_Locus_1", "ABCD_Locus_", "ABCD_Locus_1_Transcript_4", "ABCD_Locus_1_Transcript_", "ABCD_Locus_1_Transcript_4/",
+		"ABCD_Locus_1_Transcript_4/7_Confidence_0.417_Length_1203", "ABCD_Locus_1_Transcript_4/7_Confidence_0.417_Length_1203_2",
+		"ABCD_Locus_1_Transcript_4/7_Confidence_0.417_Length_1203_", "ABCD_Locus_1_Transcript_4/7_Confidence__Length_1203",
+		"ABCD_Locus_1_Transcript_4/7_Confidence_1.000_Length_", "ABCD_Locus_99999999999999999999999_Transcript_4",
+		"ABCD_Locus_1_Transcript_4/7_Confidence_0.4_Length_12_2_3", "ABCD_Locus_1x"
+	};
+
+	@Test
+	public void regexEquivalenceTest() {
+		SequenceID sid = new SequenceID();
+		for (String id : IDS) {
+			assertEquals(id, K25.matcher(id).matches(),   sid.parse(Grammar.K25, id));
+			assertEquals(id, K25S.matcher(id).matches(),  sid.parse(Grammar.SCAFFOLD, id));
+			assertEquals(id, OASES.matcher(id).matches(), sid.parse(Grammar.OASES, id));
+		}
+		assertFalse(sid.parse(Grammar.K25, null));
+	}
+
+	@Test
+	public void fieldTest() {
+		SequenceID sid = SequenceID.of(Grammar.OASES, "ABCD_Locus_12_Transcript_4/7_Confidence_0.417_Length_1203_2");
+		assertTrue(sid.isValid());
+		assertEquals("ABCD", sid.getSampleID());
+		assertEquals("Locus_12_Transcript_4/7_Confidence_0.417_Length_1203", sid.getDatabaseID(false));
+		assertEquals("Locus_12_Transcript_4/7_Confidence_0.417_Length_1203_2", sid.getDatabaseID(true));
+		assertEquals(12, sid.getLocus());
+		assertEquals(4, sid.getTranscript());
+		assertEquals(7, sid.getTranscriptCount());
+		assertEquals(1203, sid.getLength());
+		assertEquals(2, sid.getORF());
+		assertTrue(sid.hasORF());
+
+		// re-use of the same view
+		assertTrue(sid.parse(Grammar.OASES, "WXYZ_Locus_3_Transcript_1"));
+		assertEquals("WXYZ", sid.getSampleID());
+		assertEquals("Locus_3_Transcript_1", sid.getDatabaseID(true));
+		assertFalse(sid.hasORF());
+		assertFalse(sid.isFullLength());
+		assertEquals(-1, sid.getORF());
+
+		assertTrue(sid.parse(Grammar.K25, "ABCD_1234"));
+		assertEquals("1234", sid.getDatabaseID(true));
+		assertTrue(sid.parse(Grammar.SCAFFOLD, "scaffold-WXYZ-2-abc"));
+		assertEquals("WXYZ", sid.getSampleID());
+		assertEquals("scaffold-WXYZ-2-abc", sid.getDatabaseID(false));
+	}
+
+	@Test
+	public void sampleSetTest() {
+		SampleIDSet set = new SampleIDSet();
+		assertTrue(set.add("AAAA"));
+		assertTrue(set.add("ZZZZ"));
+		assertTrue(set.add("ABCD"));
+		assertTrue(set.add("ABCD"));
+		assertFalse(set.add("abcd"));
+		assertFalse(set.add("ABC"));
+		assertEquals(3, set.size());
+		assertTrue(set.contains("AAAA_1", 0));
+		assertTrue(set.contains("scaffold-ZZZZ-1", 9));
+		assertTrue(set.contains("ABCD", 0));
+		assertFalse(set.contains("ABCE", 0));
+		assertFalse(set.contains("AB", 0));
+		assertEquals(SampleIDSet.N_SAMPLE_IDS - 1, SampleIDSet.indexOf("ZZZZ", 0));
+		SequenceID sid = SequenceID.of(Grammar.OASES, "ABCD_Locus_1");
+		assertTrue(set.contains(sid.getSampleIndex()));
+	}
+}